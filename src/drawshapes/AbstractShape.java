@@ -3,6 +3,7 @@ package drawshapes;
 import java.awt.Color;
 import java.awt.Point;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Abstract shape class.
@@ -10,15 +11,28 @@ import java.util.Random;
  * Lots of the data and methods for a shape are in here
  * and can be inherited by subclass shapes.
  * 
+ * copy() shares the anchor point and bounding box with the original until
+ * one of them moves, so copying many shapes (for undo or the clipboard)
+ * doesn't copy their geometry.
+ * 
  * 
  * 
  */
-public abstract class AbstractShape implements IShape {
+public abstract class AbstractShape implements IShape, Cloneable {
+    private static final AtomicLong nextId = new AtomicLong(1);
+    private static final AtomicLong nextVersion = new AtomicLong(1);
+    // what scaleUp() and scaleDown() scale by
+    static final double SCALE_UP = 1.25;
+    static final double SCALE_DOWN = 0.8;
+
     protected BoundingBox boundingBox;
     protected boolean selected;
     protected Color color;
     protected Point anchorPoint;
     protected String[] arr;
+    private long id = newId();
+    // anchorPoint and boundingBox may be shared with copies of this shape
+    private boolean sharedGeometry;
 
     protected AbstractShape(Point anchor) {
         this.anchorPoint = anchor;
@@ -31,8 +45,66 @@ public abstract class AbstractShape implements IShape {
         arr[5] = "BLACK";
     }
 
+    /**
+     * Return an id that no shape has yet.
+     */
+    static long newId() {
+        return nextId.getAndIncrement();
+    }
+
+    /**
+     * Return a number no change of a shape has had yet, see
+     * Group.getVersion().
+     */
+    static long newVersion() {
+        return nextVersion.getAndIncrement();
+    }
+
+    /**
+     * Make sure newId() never hands out the given id, for ids read from
+     * a file.
+     */
+    static void reserveId(long id) {
+        nextId.accumulateAndGet(id + 1, Math::max);
+    }
+
+    @Override
+    public long getId() {
+        return id;
+    }
+
+    @Override
+    public void setId(long id) {
+        reserveId(id);
+        this.id = id;
+    }
+
+    /**
+     * Set the bounding box, changing the current one in place unless a
+     * copy shares it.
+     */
     protected void setBoundingBox(int left, int right, int top, int bottom) {
-        this.boundingBox = new BoundingBox(left, right, top, bottom);
+        if (boundingBox == null || sharedGeometry) {
+            unshare();
+            this.boundingBox = new BoundingBox(left, right, top, bottom);
+        } else {
+            boundingBox.set(left, right, top, bottom);
+        }
+    }
+
+    /**
+     * Give this shape its own anchor point, if it shares it with copies.
+     * The bounding box is copied too if there is one.
+     */
+    private void unshare() {
+        if (sharedGeometry) {
+            anchorPoint = new Point(anchorPoint);
+            if (boundingBox != null) {
+                boundingBox = new BoundingBox(boundingBox.getLeft(), boundingBox.getRight(), boundingBox.getTop(),
+                        boundingBox.getBottom());
+            }
+            sharedGeometry = false;
+        }
     }
 
     /*
@@ -42,10 +114,57 @@ public abstract class AbstractShape implements IShape {
      */
     @Override
     public boolean intersects(IShape other) {
+        return intersects(other, 0, 0);
+    }
+
+    /**
+     * Does this shape overlap the other one moved by dx, dy? Groups test
+     * their children like this, in the coordinates of the group.
+     * 
+     * @param other
+     * @param dx
+     * @param dy
+     * @return
+     */
+    boolean intersects(IShape other, int dx, int dy) {
         if (this == other || other == null) {
             return false;
         }
-        return this.boundingBox.intersects(other.getBoundingBox());
+        // cheap test first, most shapes are rejected here
+        if (!this.boundingBox.intersects(other.getBoundingBox(), dx, dy)) {
+            return false;
+        }
+        return intersectsExactly(other, dx, dy);
+    }
+
+    /**
+     * Does the shape overlap the other one moved by dx, dy, for shapes
+     * that may not be AbstractShapes.
+     */
+    static boolean intersects(IShape s, IShape other, int dx, int dy) {
+        if (s instanceof AbstractShape) {
+            return ((AbstractShape) s).intersects(other, dx, dy);
+        }
+        IShape moved = other.copy();
+        moved.move(dx, dy);
+        return s.intersects(moved);
+    }
+
+    /**
+     * Exact intersection test, only called when the bounding boxes overlap.
+     * The default is right for shapes that fill their bounding box, so
+     * only the other shape can make the answer false.
+     * 
+     * @param other
+     * @param dx    how much the other shape is moved
+     * @param dy
+     * @return
+     */
+    protected boolean intersectsExactly(IShape other, int dx, int dy) {
+        if (other instanceof Circle) {
+            return ((Circle) other).intersectsBox(this.boundingBox, dx, dy);
+        }
+        return true;
     }
 
     /*
@@ -55,7 +174,19 @@ public abstract class AbstractShape implements IShape {
      */
     @Override
     public boolean contains(Point point) {
-        return this.boundingBox.contains(point);
+        return this.boundingBox.contains(point) && containsExactly(point);
+    }
+
+    /**
+     * Exact point test, only called when the point is inside the
+     * bounding box. The default is right for shapes that fill their
+     * bounding box.
+     * 
+     * @param point
+     * @return
+     */
+    protected boolean containsExactly(Point point) {
+        return true;
     }
 
     /*
@@ -114,7 +245,6 @@ public abstract class AbstractShape implements IShape {
     }
 
     static String colorToString(Color color) {
-        System.out.println("The color is " + color);
         if (color == Color.RED) {
             return "RED";
         } else if (color == Color.BLUE) {
@@ -133,23 +263,42 @@ public abstract class AbstractShape implements IShape {
 
     @Override
     public void move(int dx, int dy) {
+        unshare();
         anchorPoint.translate(dx, dy);
         boundingBox.move(dx, dy);
     }
 
     @Override
     public void scaleUp() {
-        throw new UnsupportedOperationException("not implemented yet for this shape");
+        scale(SCALE_UP);
     }
 
     @Override
     public void scaleDown() {
+        scale(SCALE_DOWN);
+    }
+
+    @Override
+    public void scale(double factor) {
         throw new UnsupportedOperationException("not implemented yet for this shape");
     }
 
+    /**
+     * Return an unselected copy with a new id. The copy shares its
+     * geometry with this shape until either of them moves.
+     */
     @Override
     public IShape copy() {
-        throw new UnsupportedOperationException();
+        try {
+            AbstractShape c = (AbstractShape) super.clone();
+            c.id = newId();
+            c.selected = false;
+            c.sharedGeometry = true;
+            sharedGeometry = true;
+            return c;
+        } catch (CloneNotSupportedException e) {
+            throw new AssertionError(e);
+        }
     }
 
     // @Override
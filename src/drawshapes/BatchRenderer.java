@@ -0,0 +1,162 @@
+package drawshapes;
+
+import java.awt.Color;
+import java.awt.Graphics;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Draws shapes in batches of the same color: the geometry of each batch is
+ * collected into a flat int array, and the batch is drawn with one
+ * setColor() followed by its fillRect()/fillOval() calls. Drawing one shape
+ * at a time changes the color (and so the Graphics pipeline state) for
+ * almost every shape.
+ *
+ * A shape may also join an earlier batch of its color, as long as it does
+ * not overlap anything in the batches between, so the picture is the same
+ * as drawing the shapes one by one in order. Only the last WINDOW batches
+ * are kept open.
+ *
+ * Rectangles and circles share a batch, since the color is the only
+ * drawing state they need. Other shapes are drawn on their own.
+ */
+class BatchRenderer {
+    // how many batches are kept open for shapes to join
+    private static final int WINDOW = 16;
+    private static final int RECT = 0;
+    private static final int OVAL = 1;
+
+    private static class Batch {
+        Color color;
+        // x, y, width, height, and type of every shape in the batch
+        int[] geometry = new int[5 * 64];
+        int size;
+        int left = Integer.MAX_VALUE;
+        int right = Integer.MIN_VALUE;
+        int top = Integer.MAX_VALUE;
+        int bottom = Integer.MIN_VALUE;
+
+        boolean overlaps(BoundingBox box) {
+            return left <= box.getRight() && box.getLeft() <= right && top <= box.getBottom()
+                    && box.getTop() <= bottom;
+        }
+
+        void add(int type, int x, int y, int w, int h) {
+            if (size + 5 > geometry.length) {
+                geometry = Arrays.copyOf(geometry, geometry.length * 2);
+            }
+            geometry[size++] = type;
+            geometry[size++] = x;
+            geometry[size++] = y;
+            geometry[size++] = w;
+            geometry[size++] = h;
+        }
+
+        void include(BoundingBox box) {
+            left = Math.min(left, box.getLeft());
+            right = Math.max(right, box.getRight());
+            top = Math.min(top, box.getTop());
+            bottom = Math.max(bottom, box.getBottom());
+        }
+    }
+
+    private final Graphics g;
+    private final double scale;
+    private final List<Batch> open = new ArrayList<Batch>();
+    private int batches;
+
+    /**
+     * @param g     where to draw
+     * @param scale pixels per world unit, see Scene.scaleOf()
+     */
+    BatchRenderer(Graphics g, double scale) {
+        this.g = g;
+        this.scale = scale;
+    }
+
+    /**
+     * Add the next shape in drawing order.
+     *
+     * @param s
+     */
+    void add(IShape s) {
+        BoundingBox box = s.getBoundingBox();
+        int w = box.getRight() - box.getLeft();
+        int h = box.getBottom() - box.getTop();
+        boolean tiny = w * scale < Scene.LOD_PIXELS && h * scale < Scene.LOD_PIXELS;
+        if (!tiny && !(s instanceof Rectangle) && !(s instanceof Circle)) {
+            // we don't know how to batch this one
+            flush();
+            s.draw(g);
+            return;
+        }
+        Color color = tiny || !s.isSelected() ? s.getColor() : Util.selectedColor(s.getColor());
+        Batch batch = batchFor(color, box);
+        if (tiny) {
+            batch.add(RECT, box.getLeft(), box.getTop(), Math.max(w, 1), Math.max(h, 1));
+        } else if (s instanceof Circle) {
+            Circle c = (Circle) s;
+            int d = c.getLength();
+            batch.add(OVAL, c.getAnchorPoint().x - d / 2, c.getAnchorPoint().y - d / 2, d, d);
+        } else {
+            Rectangle r = (Rectangle) s;
+            batch.add(RECT, r.getAnchorPoint().x - r.width / 2, r.getAnchorPoint().y - r.height / 2,
+                    r.width, r.height);
+        }
+        batch.include(box);
+    }
+
+    /**
+     * Find the batch the shape can join, or open a new one.
+     */
+    private Batch batchFor(Color color, BoundingBox box) {
+        for (int i = open.size() - 1; i >= 0; i--) {
+            Batch b = open.get(i);
+            if (b.color.equals(color)) {
+                return b;
+            }
+            if (b.overlaps(box)) {
+                // would end up below a shape that is drawn after it
+                break;
+            }
+        }
+        if (open.size() == WINDOW) {
+            fill(open.remove(0));
+        }
+        Batch b = new Batch();
+        b.color = color;
+        open.add(b);
+        return b;
+    }
+
+    private void fill(Batch b) {
+        g.setColor(b.color);
+        int[] geo = b.geometry;
+        for (int i = 0; i < b.size; i += 5) {
+            if (geo[i] == RECT) {
+                g.fillRect(geo[i + 1], geo[i + 2], geo[i + 3], geo[i + 4]);
+            } else {
+                g.fillOval(geo[i + 1], geo[i + 2], geo[i + 3], geo[i + 4]);
+            }
+        }
+        batches++;
+    }
+
+    /**
+     * Draw every open batch. Must be called after the last shape.
+     */
+    void flush() {
+        for (Batch b : open) {
+            fill(b);
+        }
+        open.clear();
+    }
+
+    /**
+     * How many batches were drawn, for measuring.
+     */
+    int getBatchCount() {
+        return batches;
+    }
+}
@@ -7,17 +7,49 @@ class BoundingBox {
     private int right;
     private int top;
     private int bottom;
-    private Point[] corners = new Point[4];
 
     BoundingBox(int left, int right, int top, int bottom) {
         this.left = left;
         this.right = right;
         this.top = top;
         this.bottom = bottom;
-        this.corners[0] = new Point(left, top);
-        this.corners[1] = new Point(left, bottom);
-        this.corners[2] = new Point(right, bottom);
-        this.corners[3] = new Point(right, top);
+    }
+
+    int getLeft() {
+        return left;
+    }
+
+    int getRight() {
+        return right;
+    }
+
+    int getTop() {
+        return top;
+    }
+
+    int getBottom() {
+        return bottom;
+    }
+
+    /**
+     * Return the smallest box containing both this box and the other one.
+     * 
+     * @param other
+     * @return
+     */
+    BoundingBox union(BoundingBox other) {
+        return new BoundingBox(Math.min(left, other.left), Math.max(right, other.right),
+                Math.min(top, other.top), Math.max(bottom, other.bottom));
+    }
+
+    /**
+     * Return a copy of this box grown by the given amount on every side.
+     * 
+     * @param margin
+     * @return
+     */
+    BoundingBox grow(int margin) {
+        return new BoundingBox(left - margin, right + margin, top - margin, bottom + margin);
     }
 
     boolean contains(Point p) {
@@ -29,25 +61,28 @@ class BoundingBox {
     }
 
     boolean intersects(BoundingBox other) {
-        // are any of my corners in their bounding box?
-        for (Point corner : corners) {
-            if (other.contains(corner)) {
-                return true;
-            }
-        }
-        // are any of their corners in my bounding box?
-        for (Point corner : other.corners) {
-            if (this.contains(corner)) {
-                return true;
-            }
-        }
-        // Check for the case where we intersect but no corners are contained
-        if (this.left < other.left && this.right > other.right &&
-                this.top > other.top && this.bottom < other.bottom) {
-            return true;
-        }
-        return this.left > other.left && this.right < other.right &&
-                this.top < other.top && this.bottom > other.bottom;
+        // two boxes overlap when they overlap on both axes
+        return this.left <= other.right && other.left <= this.right &&
+                this.top <= other.bottom && other.top <= this.bottom;
+    }
+
+    /**
+     * Does this box overlap the other one moved by dx, dy?
+     */
+    boolean intersects(BoundingBox other, int dx, int dy) {
+        return this.left <= other.right + dx && other.left + dx <= this.right &&
+                this.top <= other.bottom + dy && other.top + dy <= this.bottom;
+    }
+
+    /**
+     * Change the box in place, so shapes that resize often don't
+     * allocate a new one every time.
+     */
+    void set(int left, int right, int top, int bottom) {
+        this.left = left;
+        this.right = right;
+        this.top = top;
+        this.bottom = bottom;
     }
 
     public void move(int dx, int dy) {
@@ -55,9 +90,5 @@ class BoundingBox {
         left += dx;
         top += dy;
         bottom += dy;
-
-        for (Point corners : corners) {
-            corners.translate(dx, dy);
-        }
     }
 }
@@ -0,0 +1,379 @@
+package drawshapes;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Scanner;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Scene container format for very large scenes.
+ *
+ * Shapes are partitioned into square spatial cells ("chunks") by their
+ * anchor point. Each chunk holds the usual shape records (the same text
+ * as File->Save, see Scene.readShape()) prefixed with the position of the
+ * shape in the drawing order, and is compressed on its own with Deflate.
+ * A footer at the end of the file indexes every chunk by its bounding box,
+ * so a reader can decompress only the chunks it needs.
+ *
+ * <pre>
+ * int    MAGIC
+ * byte[] chunk 0 ... chunk n-1      (deflated "order SQUARE 185 110 100 RED false" lines)
+ * int    n
+ * n x    left right top bottom (int), offset (long), length (int), shapes (int)
+ * long   footer offset
+ * int    MAGIC
+ * </pre>
+ */
+public class ChunkedSceneFile implements Closeable {
+    static final int MAGIC = 0x44534331; // "DSC1"
+    static final int DEFAULT_CELL_SIZE = 1024;
+
+    /**
+     * One entry of the footer index.
+     */
+    static class Chunk {
+        BoundingBox bounds;
+        long offset;
+        int length;
+        int shapes;
+        // compressed contents that replace what is on disk, after the
+        // chunk was edited and evicted
+        byte[] data;
+
+        Chunk copy() {
+            Chunk c = new Chunk();
+            c.bounds = bounds;
+            c.offset = offset;
+            c.length = length;
+            c.shapes = shapes;
+            // never changed, only replaced
+            c.data = data;
+            return c;
+        }
+    }
+
+    /**
+     * The open file, shared by copies until the last one is closed.
+     */
+    private static class Handle {
+        final FileChannel channel;
+        int users = 1;
+
+        Handle(FileChannel channel) {
+            this.channel = channel;
+        }
+    }
+
+    private final File file;
+    private final Handle handle;
+    private final FileChannel channel;
+    private final List<Chunk> chunks = new ArrayList<Chunk>();
+    private boolean closed;
+
+    private ChunkedSceneFile(File file) throws IOException {
+        this.file = file;
+        this.handle = new Handle(FileChannel.open(file.toPath(), StandardOpenOption.READ));
+        this.channel = handle.channel;
+        try {
+            readFooter();
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private ChunkedSceneFile(ChunkedSceneFile other) {
+        this.file = other.file;
+        this.handle = other.handle;
+        this.channel = handle.channel;
+        for (Chunk c : other.chunks) {
+            chunks.add(c.copy());
+        }
+    }
+
+    /**
+     * Open a chunked scene file and read its footer index. No shapes
+     * are read until readChunk() is called.
+     *
+     * @param file
+     * @return
+     * @throws IOException
+     */
+    public static ChunkedSceneFile open(File file) throws IOException {
+        return new ChunkedSceneFile(file);
+    }
+
+    private void readFooter() throws IOException {
+        long size = channel.size();
+        // the magic number, the chunk count and the footer at the least
+        if (size < 4 + 4 + 12) {
+            throw new IOException(file + " is not a chunked scene file");
+        }
+        ByteBuffer tail = read(size - 12, 12);
+        long footer = tail.getLong();
+        if (tail.getInt() != MAGIC || read(0, 4).getInt() != MAGIC || footer < 4 || footer > size - 16) {
+            throw new IOException(file + " is not a chunked scene file");
+        }
+        ByteBuffer index = read(footer, (int) (size - 12 - footer));
+        int n = index.getInt();
+        for (int i = 0; i < n; i++) {
+            Chunk c = new Chunk();
+            int left = index.getInt();
+            int right = index.getInt();
+            int top = index.getInt();
+            int bottom = index.getInt();
+            c.bounds = new BoundingBox(left, right, top, bottom);
+            c.offset = index.getLong();
+            c.length = index.getInt();
+            c.shapes = index.getInt();
+            chunks.add(c);
+        }
+    }
+
+    private ByteBuffer read(long position, int length) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(length);
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, position + buf.position()) < 0) {
+                throw new IOException("Unexpected end of " + file);
+            }
+        }
+        buf.flip();
+        return buf;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Another view of the same file, with its own copy of the index, so
+     * that chunks rewritten in one are not rewritten in the other. The
+     * file stays open until this and every copy are closed.
+     */
+    ChunkedSceneFile copy() {
+        synchronized (handle) {
+            if (closed) {
+                throw new IllegalStateException(file + " is closed");
+            }
+            handle.users++;
+        }
+        return new ChunkedSceneFile(this);
+    }
+
+    public int getChunkCount() {
+        return chunks.size();
+    }
+
+    Chunk getChunk(int i) {
+        return chunks.get(i);
+    }
+
+    /**
+     * Return the compressed bytes of chunk i.
+     */
+    byte[] readRaw(int i) throws IOException {
+        Chunk c = chunks.get(i);
+        if (c.data != null) {
+            return c.data;
+        }
+        return read(c.offset, c.length).array();
+    }
+
+    /**
+     * Decompress chunk i, adding its shapes to shapes and the drawing order
+     * of each shape to order.
+     *
+     * @param i      the chunk
+     * @param shapes receives the shapes of the chunk
+     * @param order  receives the drawing order of each shape
+     * @throws IOException
+     */
+    public void readChunk(int i, List<IShape> shapes, List<Long> order) throws IOException {
+        decode(readRaw(i), shapes, order);
+    }
+
+    /**
+     * Replace the contents of chunk i with the given shapes. The new
+     * contents are kept compressed in memory until the file is saved.
+     */
+    void rewriteChunk(int i, List<IShape> shapes, List<Long> order) {
+        Chunk c = chunks.get(i);
+        c.data = encode(shapes, order);
+        c.length = c.data.length;
+        c.shapes = shapes.size();
+        c.bounds = bounds(shapes, c.bounds);
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (handle) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (--handle.users > 0) {
+                return;
+            }
+        }
+        channel.close();
+    }
+
+    static byte[] encode(List<IShape> shapes, List<Long> order) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < shapes.size(); i++) {
+            text.append(order.get(i)).append(' ').append(shapes.get(i).toString()).append('\n');
+        }
+        byte[] input = text.toString().getBytes(StandardCharsets.UTF_8);
+        Deflater deflater = new Deflater();
+        deflater.setInput(input);
+        deflater.finish();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(input.length / 4 + 16);
+        byte[] buf = new byte[8192];
+        while (!deflater.finished()) {
+            int n = deflater.deflate(buf);
+            out.write(buf, 0, n);
+        }
+        deflater.end();
+        return out.toByteArray();
+    }
+
+    static void decode(byte[] data, List<IShape> shapes, List<Long> order) throws IOException {
+        Inflater inflater = new Inflater();
+        inflater.setInput(data);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(data.length * 4);
+        byte[] buf = new byte[8192];
+        try {
+            while (!inflater.finished()) {
+                int n = inflater.inflate(buf);
+                if (n == 0 && inflater.needsInput()) {
+                    throw new IOException("Truncated chunk");
+                }
+                out.write(buf, 0, n);
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt chunk", e);
+        } finally {
+            inflater.end();
+        }
+        Scanner sc = new Scanner(new String(out.toByteArray(), StandardCharsets.UTF_8));
+        while (sc.hasNext()) {
+            order.add(sc.nextLong());
+            shapes.add(Scene.readShape(sc));
+        }
+    }
+
+    static BoundingBox bounds(List<IShape> shapes, BoundingBox empty) {
+        BoundingBox box = null;
+        for (IShape s : shapes) {
+            box = box == null ? s.getBoundingBox() : box.union(s.getBoundingBox());
+        }
+        return box == null ? empty : box;
+    }
+
+    /**
+     * Write the given shapes (in drawing order) to a new chunked file,
+     * partitioned into cells of the given size.
+     *
+     * @param shapes
+     * @param file
+     * @param cellSize
+     * @throws IOException
+     */
+    public static void write(Iterable<IShape> shapes, File file, int cellSize) throws IOException {
+        Map<Long, List<IShape>> cells = new LinkedHashMap<Long, List<IShape>>();
+        Map<Long, List<Long>> orders = new LinkedHashMap<Long, List<Long>>();
+        long n = 0;
+        for (IShape s : shapes) {
+            long cell = cellOf(s, cellSize);
+            if (!cells.containsKey(cell)) {
+                cells.put(cell, new ArrayList<IShape>());
+                orders.put(cell, new ArrayList<Long>());
+            }
+            cells.get(cell).add(s);
+            orders.get(cell).add(n++);
+        }
+        try (Writer out = new Writer(file)) {
+            for (Long cell : cells.keySet()) {
+                out.addChunk(cells.get(cell), orders.get(cell));
+            }
+        }
+    }
+
+    static long cellOf(IShape s, int cellSize) {
+        long cx = Math.floorDiv(s.getAnchorPoint().x, cellSize);
+        long cy = Math.floorDiv(s.getAnchorPoint().y, cellSize);
+        return (cx << 32) ^ (cy & 0xffffffffL);
+    }
+
+    /**
+     * Writes chunks one at a time, followed by the footer when closed.
+     */
+    static class Writer implements Closeable {
+        private final FileChannel out;
+        private final List<Chunk> written = new ArrayList<Chunk>();
+        private long position;
+
+        Writer(File file) throws IOException {
+            out = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+            ByteBuffer head = ByteBuffer.allocate(4);
+            head.putInt(MAGIC).flip();
+            write(head);
+        }
+
+        void addChunk(List<IShape> shapes, List<Long> order) throws IOException {
+            if (!shapes.isEmpty()) {
+                addChunk(encode(shapes, order), bounds(shapes, null), shapes.size());
+            }
+        }
+
+        void addChunk(byte[] data, BoundingBox bounds, int shapes) throws IOException {
+            Chunk c = new Chunk();
+            c.bounds = bounds;
+            c.offset = position;
+            c.length = data.length;
+            c.shapes = shapes;
+            write(ByteBuffer.wrap(data));
+            written.add(c);
+        }
+
+        private void write(ByteBuffer buf) throws IOException {
+            while (buf.hasRemaining()) {
+                position += out.write(buf);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            long footer = position;
+            ByteBuffer index = ByteBuffer.allocate(4 + written.size() * 32 + 12);
+            index.putInt(written.size());
+            for (Chunk c : written) {
+                index.putInt(c.bounds.getLeft());
+                index.putInt(c.bounds.getRight());
+                index.putInt(c.bounds.getTop());
+                index.putInt(c.bounds.getBottom());
+                index.putLong(c.offset);
+                index.putInt(c.length);
+                index.putInt(c.shapes);
+            }
+            index.putLong(footer);
+            index.putInt(MAGIC);
+            index.flip();
+            write(index);
+            out.close();
+        }
+    }
+}
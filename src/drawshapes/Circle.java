@@ -7,6 +7,8 @@ import java.util.Random;
 
 public class Circle extends AbstractShape {
     private int diameter;
+    // the diameter without rounding, so scaling doesn't drift
+    private double exactDiameter;
     private String[] arr;
 
     public Circle(Color color, Point center, int diameter) {
@@ -15,6 +17,7 @@ public class Circle extends AbstractShape {
                 center.y + diameter / 2);
         this.color = color;
         this.diameter = diameter;
+        this.exactDiameter = diameter;
         arr = new String[6];
         arr[0] = "BLUE";
         arr[1] = "GREEN";
@@ -27,7 +30,7 @@ public class Circle extends AbstractShape {
     @Override
     public void draw(Graphics g) {
         if (isSelected()) {
-            g.setColor(this.color.darker());
+            g.setColor(Util.selectedColor(getColor()));
         } else {
             g.setColor(getColor());
         }
@@ -38,12 +41,13 @@ public class Circle extends AbstractShape {
     }
 
     public String toString() {
-        return String.format("CIRCLE %d %d %d %s %s",
+        return String.format("CIRCLE %d %d %s %s %s #%d",
                 this.getAnchorPoint().x,
                 this.getAnchorPoint().y,
-                this.diameter,
+                Util.sizeToString(this.exactDiameter),
                 colorToString(this.getColor()),
-                this.isSelected());
+                this.isSelected(),
+                this.getId());
     }
 
     @Override
@@ -52,21 +56,56 @@ public class Circle extends AbstractShape {
         setBoundingBox(p.x - diameter / 2, p.x + diameter / 2, p.y - diameter / 2, p.y + diameter / 2);
     }
 
-    public void scaleUp() {
-        this.diameter = (int) (this.diameter * 1.25);
-        setBoundingBox(anchorPoint.x - diameter / 2, anchorPoint.x + diameter / 2, anchorPoint.y - diameter / 2,
-                anchorPoint.y + diameter / 2);
+    @Override
+    public void scale(double factor) {
+        setExactDiameter(exactDiameter * factor);
     }
 
-    public void scaleDown() {
-        this.diameter = (int) (this.diameter * 0.80);
+    /**
+     * The diameter without rounding, as it is saved.
+     */
+    double getExactDiameter() {
+        return exactDiameter;
+    }
+
+    void setExactDiameter(double exactDiameter) {
+        this.exactDiameter = exactDiameter;
+        this.diameter = (int) Math.round(exactDiameter);
         setBoundingBox(anchorPoint.x - diameter / 2, anchorPoint.x + diameter / 2, anchorPoint.y - diameter / 2,
                 anchorPoint.y + diameter / 2);
     }
 
     @Override
-    public IShape copy() {
-        return new Circle(color, new Point(anchorPoint.x, anchorPoint.y), diameter);
+    protected boolean containsExactly(Point point) {
+        return Util.circleContains(anchorPoint.x, anchorPoint.y, diameter / 2.0, point.x, point.y);
+    }
+
+    @Override
+    protected boolean intersectsExactly(IShape other, int dx, int dy) {
+        if (other instanceof Circle) {
+            Circle c = (Circle) other;
+            return Util.circlesIntersect(anchorPoint.x, anchorPoint.y, diameter / 2.0,
+                    c.anchorPoint.x + dx, c.anchorPoint.y + dy, c.diameter / 2.0);
+        }
+        // the same as this circle moved the other way
+        return intersectsBox(other.getBoundingBox(), -dx, -dy);
+    }
+
+    /**
+     * Does this circle overlap the given box?
+     * 
+     * @param box
+     * @return
+     */
+    boolean intersectsBox(BoundingBox box) {
+        return intersectsBox(box, 0, 0);
+    }
+
+    /**
+     * Does this circle, moved by dx, dy, overlap the given box?
+     */
+    boolean intersectsBox(BoundingBox box, int dx, int dy) {
+        return Util.circleIntersectsBox(anchorPoint.x + dx, anchorPoint.y + dy, diameter / 2.0, box);
     }
 
     public Point getPoint() {
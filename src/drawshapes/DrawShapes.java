@@ -3,6 +3,7 @@ package drawshapes;
 import java.awt.BorderLayout;
 import java.awt.Color;
 import java.awt.Point;
+import java.awt.Toolkit;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.KeyEvent;
@@ -17,15 +18,19 @@ import java.awt.event.WindowEvent;
 import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
-import java.util.List;
-import java.util.Stack;
 
 import javax.swing.JFileChooser;
+import javax.swing.JDialog;
 import javax.swing.JFrame;
+import javax.swing.JLabel;
 import javax.swing.JMenu;
 import javax.swing.JMenuBar;
 import javax.swing.JMenuItem;
 import javax.swing.JOptionPane;
+import javax.swing.KeyStroke;
+import javax.swing.JSlider;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
 import javax.swing.plaf.synth.SynthRadioButtonMenuItemUI;
 
 @SuppressWarnings("serial")
@@ -41,19 +46,42 @@ public class DrawShapes extends JFrame {
     private ShapeType shapeType = ShapeType.SQUARE;
     private Color color = Color.RED;
     private Point startDrag;
-    int distance = 25;
-    private Stack<Scene> undo = new Stack<>();
-    private Stack<Scene> redo = new Stack<>();
+    // how much one notch of the mouse wheel zooms
+    static final double ZOOM_STEP = 1.1;
+    // how much one notch of the mouse wheel scales the selection, with shift
+    static final double SCALE_STEP = 1.1;
+    // all edits to the scene go through here
+    private SceneEditor editor;
+    private SceneJournal journal;
+    private ShapeClipboard clipboard = new ShapeClipboard();
+    // runs the animations on the event thread, one frame at a time
+    private EffectRuntime effects = new EffectRuntime(SwingUtilities::invokeLater, this::effectFrame);
+    // the last query of Edit->Select Where
+    private String lastQuery = "";
 
     public DrawShapes(int width, int height) {
+        this(width, height, new Scene());
+    }
+
+    public DrawShapes(int width, int height, Scene scene) {
         setTitle("Draw Shapes!");
-        scene = new Scene();
-        undo.push(scene);
+        this.scene = scene;
+        this.editor = new SceneEditor(scene);
+
+        // recover anything left over from a crash, then autosave every edit
+        // (paged scenes are already on disk)
+        if (!(scene instanceof PagedScene)) {
+            try {
+                journal = SceneJournal.open(scene, new File("."));
+            } catch (IOException e) {
+                JOptionPane.showMessageDialog(null, "Autosave is disabled: " + e);
+            }
+        }
 
         // create our canvas, add to this frame's content pane
         shapePanel = new DrawShapesPanel(width, height, scene);
         this.getContentPane().add(shapePanel, BorderLayout.CENTER);
-        this.setResizable(false);
+        this.setResizable(true);
         this.pack();
         this.setLocation(100, 100);
 
@@ -67,7 +95,7 @@ public class DrawShapes extends JFrame {
         // Handle closing the window.
         addWindowListener(new WindowAdapter() {
             public void windowClosing(WindowEvent e) {
-                System.exit(0);
+                exit();
             }
         });
     }
@@ -75,50 +103,22 @@ public class DrawShapes extends JFrame {
     private void initializeMouseListener() {
         MouseAdapter a = new MouseAdapter() {
 
+            // last screen point while panning with the middle button
+            private Point panFrom;
+
             public void mouseClicked(MouseEvent e) {
                 System.out.printf("Mouse cliked at (%d, %d)\n", e.getX(), e.getY());
+                Point world = shapePanel.toWorld(e.getPoint());
 
                 if (e.getButton() == MouseEvent.BUTTON1) {
-                    if (shapeType == ShapeType.SQUARE) {
-                        Scene copy = scene.copy();
-                        undo.push(copy);
-                        scene.addShape(new Square(color,
-                                e.getX(),
-                                e.getY(),
-                                100));
-                    } else if (shapeType == ShapeType.CIRCLE) {
-                        Scene copy = scene.copy();
-                        undo.push(copy);
-                        scene.addShape(new Circle(color,
-                                e.getPoint(),
-                                100));
-                    } else if (shapeType == ShapeType.RECTANGLE) {
-                        Scene copy = scene.copy();
-                        undo.push(copy);
-                        scene.addShape(new Rectangle(
-                                e.getPoint(),
-                                100,
-                                200,
-                                color));
-                    }
-
+                    editor.addShape(shapeType, color, world);
                 } else if (e.getButton() == MouseEvent.BUTTON2) {
                     // apparently this is middle click
                 } else if (e.getButton() == MouseEvent.BUTTON3) {
                     // right right-click
-                    Point p = e.getPoint();
-                    System.out.printf("Right click is (%d, %d)\n", p.x, p.y);
-                    List<IShape> selected = scene.select(p);
-                    if (selected.size() > 0) {
-                        for (IShape s : selected) {
-                            s.setSelected(true);
-                        }
-                    } else {
-                        for (IShape s : scene) {
-                            s.setSelected(false);
-                        }
-                    }
-                    System.out.printf("Select %d shapes\n", selected.size());
+                    System.out.printf("Right click is (%d, %d)\n", world.x, world.y);
+                    int selected = editor.selectAt(world);
+                    System.out.printf("Select %d shapes\n", selected);
                 }
                 repaint();
             }
@@ -130,7 +130,11 @@ public class DrawShapes extends JFrame {
              */
             public void mousePressed(MouseEvent e) {
                 System.out.printf("mouse pressed at (%d, %d)\n", e.getX(), e.getY());
-                scene.startDrag(e.getPoint());
+                if (SwingUtilities.isMiddleMouseButton(e)) {
+                    panFrom = e.getPoint();
+                    return;
+                }
+                editor.startDrag(shapePanel.toWorld(e.getPoint()));
 
             }
 
@@ -141,25 +145,49 @@ public class DrawShapes extends JFrame {
              */
             public void mouseReleased(MouseEvent e) {
                 System.out.printf("mouse released at (%d, %d)\n", e.getX(), e.getY());
-                scene.stopDrag();
+                if (panFrom != null) {
+                    panFrom = null;
+                    return;
+                }
+                editor.stopDrag();
                 repaint();
             }
 
             @Override
             public void mouseDragged(MouseEvent e) {
                 System.out.printf("mouse drag! (%d, %d)\n", e.getX(), e.getY());
-                scene.updateSelectRect(e.getPoint());
+                if (panFrom != null) {
+                    // middle button drag pans the view
+                    int dx = e.getX() - panFrom.x;
+                    int dy = e.getY() - panFrom.y;
+                    shapePanel.pan(dx, dy);
+                    recordView(SessionRecorder.Op.PAN, dx, dy);
+                    panFrom = e.getPoint();
+                    return;
+                }
+                editor.dragTo(shapePanel.toWorld(e.getPoint()));
                 repaint();
             }
 
             @Override
             public void mouseWheelMoved(MouseWheelEvent e) {
-                // TODO use this to grow/shrink shapes
+                if (e.isShiftDown()) {
+                    // scale the selection, smoothly with a precise wheel or touchpad
+                    editor.scaleBy((float) Math.pow(SCALE_STEP, -e.getPreciseWheelRotation()));
+                    repaint();
+                    return;
+                }
+                // zoom in and out around the mouse
+                // rounded like the recording, so a replay zooms the same
+                int rotation = (int) Math.round(e.getPreciseWheelRotation() * 1000);
+                shapePanel.zoom(Math.pow(ZOOM_STEP, -rotation / 1000.0), e.getPoint());
+                recordView(SessionRecorder.Op.ZOOM, rotation, e.getX(), e.getY());
             }
 
         };
         shapePanel.addMouseMotionListener(a);
         shapePanel.addMouseListener(a);
+        shapePanel.addMouseWheelListener(a);
     }
 
     /**
@@ -186,13 +214,9 @@ public class DrawShapes extends JFrame {
                     if (returnValue == JFileChooser.APPROVE_OPTION) {
                         File selectedFile = jfc.getSelectedFile();
                         System.out.println("load from " + selectedFile.getAbsolutePath());
-                        Scene copy = scene.copy();
-                        undo.push(copy);
-                        scene.loadShapes(selectedFile);
                         // this is intentional, once a file is loaded, I am clearing all older history
                         // of scenes
-                        undo.clear();
-                        redo.clear();
+                        editor.load(selectedFile);
                         repaint();
                     }
                 } catch (Exception excep) {
@@ -222,7 +246,7 @@ public class DrawShapes extends JFrame {
                         try (PrintWriter out = new PrintWriter(selectedFile)) {
                             out.println(str);
                             JOptionPane.showMessageDialog(null, "Saved");
-                            scene.reload(new Scene());
+                            editor.clear();
                             // this is intentional, once a scene is loaded, I am clearing it from screen
                             repaint();
                         } catch (IOException err) {
@@ -235,6 +259,94 @@ public class DrawShapes extends JFrame {
                 }
             }
         });
+        // open a large scene, only loading what is visible
+        JMenuItem loadChunkedItem = new JMenuItem("Open Large Scene");
+        fileMenu.add(loadChunkedItem);
+        loadChunkedItem.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                try {
+                    JFileChooser jfc = new JFileChooser(".");
+                    int returnValue = jfc.showOpenDialog(null);
+                    if (returnValue == JFileChooser.APPROVE_OPTION) {
+                        File selectedFile = jfc.getSelectedFile();
+                        System.out.println("open large scene from " + selectedFile.getAbsolutePath());
+                        editor.loadChunked(selectedFile);
+                        repaint();
+                    }
+                } catch (Exception excep) {
+                    JOptionPane.showMessageDialog(null, excep);
+                }
+            }
+        });
+        // save as a chunked, compressed scene
+        JMenuItem saveChunkedItem = new JMenuItem("Save Large Scene");
+        fileMenu.add(saveChunkedItem);
+        saveChunkedItem.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                try {
+                    JFileChooser jfc = new JFileChooser(".");
+                    int returnValue = jfc.showSaveDialog(null);
+                    if (returnValue == JFileChooser.APPROVE_OPTION) {
+                        File selectedFile = jfc.getSelectedFile();
+                        System.out.println("save large scene to " + selectedFile.getAbsolutePath());
+                        scene.saveChunked(selectedFile);
+                        JOptionPane.showMessageDialog(null, "Saved");
+                        repaint();
+                    }
+                } catch (Exception excep) {
+                    JOptionPane.showMessageDialog(null, excep);
+                }
+            }
+        });
+        // export what is visible as SVG
+        JMenuItem exportSvgItem = new JMenuItem("Export SVG");
+        fileMenu.add(exportSvgItem);
+        exportSvgItem.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                try {
+                    JFileChooser jfc = new JFileChooser(".");
+                    int returnValue = jfc.showSaveDialog(null);
+                    if (returnValue == JFileChooser.APPROVE_OPTION) {
+                        File selectedFile = jfc.getSelectedFile();
+                        System.out.println("export svg to " + selectedFile.getAbsolutePath());
+                        new VectorExporter(VectorExporter.Format.SVG).export(scene, selectedFile);
+                        JOptionPane.showMessageDialog(null, "Exported");
+                    }
+                } catch (Exception excep) {
+                    JOptionPane.showMessageDialog(null, excep);
+                }
+            }
+        });
+        fileMenu.addSeparator();
+        // record everything done from now on, for SessionReplayer
+        JMenuItem recordItem = new JMenuItem("Record Session");
+        fileMenu.add(recordItem);
+        recordItem.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                try {
+                    if (editor.getRecorder() != null) {
+                        stopRecording();
+                        recordItem.setText("Record Session");
+                        return;
+                    }
+                    JFileChooser jfc = new JFileChooser(".");
+                    int returnValue = jfc.showSaveDialog(null);
+                    if (returnValue == JFileChooser.APPROVE_OPTION) {
+                        File selectedFile = jfc.getSelectedFile();
+                        System.out.println("record session to " + selectedFile.getAbsolutePath());
+                        editor.setRecorder(new SessionRecorder(selectedFile, scene, shapePanel.getViewport(),
+                                shapePanel.getWidth(), shapePanel.getHeight()));
+                        recordItem.setText("Stop Recording");
+                    }
+                } catch (Exception excep) {
+                    JOptionPane.showMessageDialog(null, excep);
+                }
+            }
+        });
         fileMenu.addSeparator();
         // edit
         JMenuItem itemExit = new JMenuItem("Exit");
@@ -243,7 +355,90 @@ public class DrawShapes extends JFrame {
             public void actionPerformed(ActionEvent e) {
                 String text = e.getActionCommand();
                 System.out.println(text);
-                System.exit(0);
+                exit();
+            }
+        });
+
+        // edit menu
+        JMenu editMenu = new JMenu("Edit");
+        menuBar.add(editMenu);
+        int shortcut = Toolkit.getDefaultToolkit().getMenuShortcutKeyMaskEx();
+
+        // copy the selection to the clipboard
+        JMenuItem copyItem = new JMenuItem("Copy");
+        copyItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_C, shortcut));
+        editMenu.add(copyItem);
+        copyItem.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                editor.copy(clipboard);
+            }
+        });
+
+        // copy the selection to the clipboard and remove it
+        JMenuItem cutItem = new JMenuItem("Cut");
+        cutItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_X, shortcut));
+        editMenu.add(cutItem);
+        cutItem.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                if (editor.cut(clipboard)) {
+                    repaint();
+                }
+            }
+        });
+
+        // paste, a little further away every time
+        JMenuItem pasteItem = new JMenuItem("Paste");
+        pasteItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_V, shortcut));
+        editMenu.add(pasteItem);
+        pasteItem.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                if (editor.paste(clipboard)) {
+                    repaint();
+                }
+            }
+        });
+
+        // copy and paste in one step, leaving the clipboard alone
+        JMenuItem duplicateItem = new JMenuItem("Duplicate");
+        duplicateItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_D, shortcut));
+        editMenu.add(duplicateItem);
+        duplicateItem.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                if (editor.duplicate()) {
+                    repaint();
+                }
+            }
+        });
+
+        // select by type, color, length and region, see SceneQuery
+        JMenuItem selectWhereItem = new JMenuItem("Select Where...");
+        selectWhereItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_F, shortcut));
+        editMenu.add(selectWhereItem);
+        selectWhereItem.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                String query = (String) JOptionPane.showInputDialog(DrawShapes.this,
+                        "for example: type=CIRCLE and color=RED and within(0,0,500,500) and length>50",
+                        "Select Where", JOptionPane.PLAIN_MESSAGE, null, null, lastQuery);
+                if (query == null || query.trim().isEmpty()) {
+                    return;
+                }
+                try {
+                    editor.selectWhere(query);
+                    lastQuery = query;
+                    repaint();
+                } catch (IllegalArgumentException err) {
+                    JOptionPane.showMessageDialog(DrawShapes.this, err.getMessage());
+                }
+            }
+        });
+
+        // every version so far, on a slider
+        JMenuItem historyItem = new JMenuItem("History");
+        editMenu.addSeparator();
+        editMenu.add(historyItem);
+        historyItem.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                showHistory();
             }
         });
 
@@ -411,148 +606,86 @@ public class DrawShapes extends JFrame {
                 char ch = e.getKeyChar();
                 // moveUp
                 if (ch == 'w') {
-                    Scene copy = scene.copy();
-                    undo.push(copy);
-                    scene.move(0, -distance);
+                    editor.move(0, -editor.distance);
                 }
                 // moveDown
                 if (ch == 's') {
-                    Scene copy = scene.copy();
-                    undo.push(copy);
-                    scene.move(0, distance);
+                    editor.move(0, editor.distance);
                 }
                 // moveLeft
                 if (ch == 'a') {
-                    Scene copy = scene.copy();
-                    undo.push(copy);
-                    scene.move(-distance, 0);
+                    editor.move(-editor.distance, 0);
                 }
                 // moveRight
                 if (ch == 'd') {
-                    Scene copy = scene.copy();
-                    undo.push(copy);
-                    scene.move(distance, 0);
+                    editor.move(editor.distance, 0);
                 }
 
                 // scaleUp
                 if (ch == 'u') {
-                    Scene copy = scene.copy();
-                    undo.push(copy);
-                    for (IShape s : scene) {
-                        if (s.isSelected()) {
-                            s.scaleUp();
-                        }
-                    }
+                    editor.scale(true);
                 }
                 // scaleDown
                 if (ch == 'l') {
-                    Scene copy = scene.copy();
-                    undo.push(copy);
-                    for (IShape s : scene) {
-                        if (s.isSelected()) {
-                            s.scaleDown();
-                        }
-                    }
+                    editor.scale(false);
                 }
                 // undo
                 if (ch == 'z') {
-                    if (!undo.isEmpty()) {
-                        Scene oldScene = undo.pop();
-                        redo.push(scene.copy());
-                        scene.reload(oldScene);
-                    }
+                    editor.undo();
                 }
                 // redo
                 if (ch == 'y') {
-                    if (!redo.isEmpty()) {
-                        Scene newScene = redo.pop();
-                        undo.push(scene.copy());
-                        scene.reload(newScene);
-
-                    }
+                    editor.redo();
                 }
 
                 // animate
                 if (ch == 'v') {
-                    Scene copy = scene.copy();
-                    undo.push(copy);
-                    for (IShape s : scene) {
-                        if (s.isSelected()) {
-                            final int totalTime = 10000; // 10 seconds
-                            final int interval = 300; // 500 milliseconds
-                            final int totalIterations = totalTime / interval;
-
-                            Thread timerThread = new Thread(() -> {
-                                boolean animationState = true;
-                                try {
-                                    for (int i = 0; i < totalIterations; i++) {
-                                        // Do something with the shape here
-                                        if (animationState) {
-                                            s.scaleUp();
-                                            animationState = false;
-                                        } else {
-                                            s.scaleDown();
-                                            animationState = true;
-                                        }
-                                        s.animate();
-                                        repaint();
-                                        Thread.sleep(interval);
-                                    }
-                                } catch (InterruptedException ex) {
-                                    ex.printStackTrace();
-                                }
-                            });
-                            timerThread.start();
-                        }
+                    for (Effect effect : editor.startAnimation((int) System.nanoTime())) {
+                        effects.add(effect);
                     }
                 }
 
                 // dance
                 if (ch == 'n') {
-                    Scene copy = scene.copy();
-                    undo.push(copy);
-                    for (IShape s : scene) {
-                        if (s.isSelected()) {
-                            final int totalTime = 5000; // 5 seconds
-                            final int interval = 100; // 100 milliseconds
-                            final int totalIterations = totalTime / interval;
-
-                            Thread danceThread = new Thread(() -> {
-                                try {
-                                    for (int i = 0; i < totalIterations; i++) {
-                                        // Random direction movement
-                                        int dx = (int) (Math.random() * 20) - 10;
-                                        int dy = (int) (Math.random() * 20) - 10;
-                                        s.move(dx, dy);
-
-                                        repaint();
-                                        Thread.sleep(interval);
-                                    }
-                                } catch (InterruptedException ex) {
-                                    ex.printStackTrace();
-                                }
-                            });
-                            danceThread.start();
-                        }
+                    for (Effect effect : editor.startDance((int) System.nanoTime())) {
+                        effects.add(effect);
                     }
                 }
 
+                // group the selection, or break up the selected groups
+                if (ch == 'g') {
+                    editor.group();
+                }
+                if (ch == 'G') {
+                    editor.ungroup();
+                }
+                // one instanced shape per kind and size in the selection
+                if (ch == 'i') {
+                    editor.instance();
+                }
+
                 // bring one selected forward in the layering
                 if (ch == 'f') {
-                    scene.bringForward();
+                    editor.bringForward();
                 }
                 // bring one selected backward in the layering
                 if (ch == 'b') {
-                    scene.sendBackward();
+                    editor.sendBackward();
+                }
+
+                // switch between Java2D and our own raster renderer
+                if (ch == 'r') {
+                    shapePanel.setRasterRendering(!shapePanel.isRasterRendering());
+                }
+
+                // draw frames on a render thread, or on the event thread
+                if (ch == 'R') {
+                    shapePanel.setBackgroundRendering(!shapePanel.isBackgroundRendering());
                 }
 
                 // change shape on the spot
                 if (ch == 'c') {
-                    for (IShape s : scene) {
-                        if (s.isSelected()) {
-                            changeShape(s);
-                        }
-                    }
+                    editor.changeShapes();
                 }
 
                 repaint();
@@ -560,35 +693,123 @@ public class DrawShapes extends JFrame {
         });
     }
 
+    /**
+     * After every frame of the animations: repaint, and once the last
+     * one is over, make what they did a version for undo.
+     */
+    private void effectFrame() {
+        if (effects.getActive() == 0) {
+            editor.effectsFinished();
+        }
+        repaint();
+    }
+
+    /**
+     * Shut down cleanly, closing the autosave journal.
+     */
+    private void exit() {
+        stopRecording();
+        if (editor.getHistory() != null) {
+            editor.getHistory().close();
+        }
+        if (journal != null) {
+            try {
+                journal.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        System.exit(0);
+    }
+
+    /**
+     * A window with a slider over every version of the scene so far;
+     * dragging it goes back and forth in time.
+     */
+    private void showHistory() {
+        SceneHistory history = editor.getHistory();
+        if (history == null) {
+            JOptionPane.showMessageDialog(this, "Chunked and paged scenes have no history");
+            return;
+        }
+        JDialog dialog = new JDialog(this, "History");
+        JSlider slider = new JSlider(0, history.getVersionCount() - 1, history.getCursor());
+        JLabel label = new JLabel();
+        dialog.add(slider, BorderLayout.CENTER);
+        dialog.add(label, BorderLayout.SOUTH);
+        // new versions come and go while the window is open
+        Timer refresh = new Timer(250, e -> {
+            if (!slider.getValueIsAdjusting()) {
+                slider.setMaximum(history.getVersionCount() - 1);
+                slider.setValue(history.getCursor());
+            }
+            label.setText(String.format(" version %d of %d, %d KB in memory, %d KB on disk", history.getCursor(),
+                    history.getVersionCount() - 1, history.getMemoryBytes() / 1024, history.getDiskBytes() / 1024));
+        });
+        slider.addChangeListener(e -> {
+            if (slider.getValue() != history.getCursor()) {
+                editor.jumpTo(slider.getValue());
+                repaint();
+            }
+        });
+        dialog.addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosed(WindowEvent e) {
+                refresh.stop();
+            }
+        });
+        dialog.setDefaultCloseOperation(JDialog.DISPOSE_ON_CLOSE);
+        dialog.setSize(400, 80);
+        dialog.setLocationRelativeTo(this);
+        refresh.setInitialDelay(0);
+        refresh.start();
+        dialog.setVisible(true);
+    }
+
     public void changeShape(IShape shape) {
-        if (shape instanceof Square) {
-            // Convert to Circle
-            Circle newShape = new Circle(shape.getColor(), shape.getAnchorPoint(), shape.getLength());
-            newShape.setSelected(true);
-            scene.replaceShape(shape, newShape);
-        } else if (shape instanceof Circle) {
-            // Convert to Rectangle
-            Circle circle = (Circle) shape;
-            Rectangle newShape = new Rectangle(shape.getAnchorPoint(), (int) (circle.getLength() * 0.75),
-                    (int) (circle.getLength() * 1.5),
-                    shape.getColor());
-            newShape.setSelected(true);
-            scene.replaceShape(shape, newShape);
-        } else if (shape instanceof Rectangle) {
-            // Convert to Square
-            Rectangle rect = (Rectangle) shape;
-            Square newShape = new Square(shape.getColor(), shape.getAnchorPoint().x, shape.getAnchorPoint().y,
-                    shape.getLength());
-            newShape.setSelected(true);
-            scene.replaceShape(shape, newShape);
+        editor.changeShape(shape);
+    }
+
+    /**
+     * Record a pan or zoom of the view, if a session is being recorded.
+     */
+    private void recordView(SessionRecorder.Op op, int... args) {
+        SessionRecorder recorder = editor.getRecorder();
+        if (recorder != null) {
+            recorder.record(op, args);
+        }
+    }
+
+    private void stopRecording() {
+        SessionRecorder recorder = editor.getRecorder();
+        if (recorder != null) {
+            editor.setRecorder(null);
+            try {
+                recorder.close();
+                System.out.printf("recorded %d events\n", recorder.getEvents());
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
         }
     }
 
     /**
+     * With no arguments, start with an empty scene.
+     * 
+     * With "--paged file [megabytes]", open a scene that may be bigger
+     * than the heap, keeping at most the given number of megabytes of
+     * shapes in memory (default 64).
+     * 
      * @param args
      */
-    public static void main(String[] args) {
-        DrawShapes shapes = new DrawShapes(700, 600);
+    public static void main(String[] args) throws Exception {
+        DrawShapes shapes;
+        if (args.length >= 2 && args[0].equals("--paged")) {
+            long budget = (args.length >= 3 ? Long.parseLong(args[2]) : 64) * 1024 * 1024;
+            shapes = new DrawShapes(700, 600, PagedScene.open(new File(args[1]), budget));
+        } else {
+            shapes = new DrawShapes(700, 600);
+        }
         shapes.setVisible(true);
     }
 
@@ -2,60 +2,292 @@ package drawshapes;
 
 
 
+import java.awt.Color;
 import java.awt.Dimension;
 import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.Point;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.swing.JPanel;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
 
 /**
- * The Panel owned by the DrawShapes frame.  This code
- * doesn't need to be changed.
- * 
+ * The Panel owned by the DrawShapes frame.
+ *
+ * The scene is drawn through a Viewport that can be panned and zoomed.
+ * The rendered scene is kept in an image; while the user is panning or
+ * zooming we only move and scale that image, and the scene is drawn again
+ * once the user stops for SETTLE_MILLIS.
+ *
+ * The panel draws the scene's published SceneSnapshot, never the live
+ * scene. With background rendering on, frames are drawn on a render
+ * thread into a second image while the user keeps editing, and swapped
+ * in when done; until then the panel shows the previous frame. If the
+ * scene changes again while a frame is being drawn, only the latest
+ * change gets a frame.
+ *
  * @author jspacco
  *
  */
 @SuppressWarnings("serial")
 public class DrawShapesPanel extends JPanel
 {
+    private static final int SETTLE_MILLIS = 150;
+
     private int width;
     private int height;
     private Scene scene;
-    
+    private Viewport viewport = new Viewport();
+    private BufferedImage cache;
+    private Viewport cacheViewport;
+    private boolean interacting;
+    private boolean rasterRendering;
+    private Timer settle;
+    private SceneSnapshot cacheSnapshot;
+    private boolean backgroundRendering;
+    private ExecutorService renderThread;
+    // the image the render thread draws into, swapped with cache when done
+    private BufferedImage back;
+    // the frame to draw next, and whether the render thread is busy
+    private final AtomicReference<Frame> nextFrame = new AtomicReference<Frame>();
+    private boolean rendering;
+
+    /**
+     * What a frame is drawn from; all of it only read by the render
+     * thread.
+     */
+    private static class Frame {
+        final SceneSnapshot snapshot;
+        final Viewport viewport;
+        final boolean raster;
+        final Color background;
+
+        Frame(SceneSnapshot snapshot, Viewport viewport, boolean raster, Color background) {
+            this.snapshot = snapshot;
+            this.viewport = viewport;
+            this.raster = raster;
+            this.background = background;
+        }
+    }
+
     public DrawShapesPanel(int width, int height, Scene scene)
     {
         this.width = width;
         this.height = height;
         this.scene=scene;
+        this.settle = new Timer(SETTLE_MILLIS, e -> {
+            interacting = false;
+            repaint();
+        });
+        this.settle.setRepeats(false);
+    }
+
+    /**
+     * Draw rectangles and circles with our own RasterRenderer instead
+     * of Java2D.
+     *
+     * @param rasterRendering
+     */
+    public void setRasterRendering(boolean rasterRendering) {
+        this.rasterRendering = rasterRendering;
+        repaint();
+    }
+
+    public boolean isRasterRendering() {
+        return rasterRendering;
+    }
+
+    /**
+     * Draw frames on a render thread instead of the event thread.
+     *
+     * @param backgroundRendering
+     */
+    public void setBackgroundRendering(boolean backgroundRendering) {
+        this.backgroundRendering = backgroundRendering;
+        if (backgroundRendering && renderThread == null) {
+            renderThread = Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, "renderer");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        repaint();
+    }
+
+    public boolean isBackgroundRendering() {
+        return backgroundRendering;
+    }
+
+    public Viewport getViewport() {
+        return viewport;
+    }
+
+    /**
+     * Convert a point on the panel (for example from a MouseEvent)
+     * into world coordinates.
+     *
+     * @param screen
+     * @return
+     */
+    public Point toWorld(Point screen) {
+        return viewport.toWorld(screen);
+    }
+
+    /**
+     * Move the view by the given number of pixels.
+     *
+     * @param dx
+     * @param dy
+     */
+    public void pan(int dx, int dy) {
+        viewport.pan(dx, dy);
+        interact();
+    }
+
+    /**
+     * Zoom by the given factor around the given point on the panel.
+     *
+     * @param factor
+     * @param anchor
+     */
+    public void zoom(double factor, Point anchor) {
+        viewport.zoom(factor, anchor);
+        interact();
+    }
+
+    private void interact() {
+        interacting = true;
+        settle.restart();
+        repaint();
     }
-    
+
     /* (non-Javadoc)
      * @see javax.swing.JComponent#paint(java.awt.Graphics)
      */
     public void paint(Graphics g) {
-        scene.draw(g);
+        int w = Math.max(1, getWidth());
+        int h = Math.max(1, getHeight());
+        boolean resized = cache == null || cache.getWidth() != w || cache.getHeight() != h;
+        if (!interacting || resized) {
+            Viewport v = viewport.copy();
+            try {
+                scene.setViewport(v.getWorldBounds(w, h));
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            Frame frame = new Frame(scene.publish(), v, rasterRendering, getBackground());
+            if (!backgroundRendering || resized) {
+                cache = render(frame, resized ? null : cache, w, h);
+                show(frame);
+            } else if (frame.snapshot != cacheSnapshot || !sameView(frame.viewport, cacheViewport)) {
+                renderLater(frame);
+            }
+        }
+        // show the cached image as if it was drawn with the current viewport
+        Graphics2D g2 = (Graphics2D) g.create();
+        g2.setColor(getBackground());
+        g2.fillRect(0, 0, w, h);
+        double s = viewport.getScale();
+        g2.translate((cacheViewport.getOriginX() - viewport.getOriginX()) * s,
+                (cacheViewport.getOriginY() - viewport.getOriginY()) * s);
+        g2.scale(s / cacheViewport.getScale(), s / cacheViewport.getScale());
+        g2.drawImage(cache, 0, 0, null);
+        g2.dispose();
     }
-    
-    /* (non-Javadoc)
-     * @see javax.swing.JComponent#getMinimumSize()
+
+    private static boolean sameView(Viewport a, Viewport b) {
+        return a.getOriginX() == b.getOriginX() && a.getOriginY() == b.getOriginY() && a.getScale() == b.getScale();
+    }
+
+    private void show(Frame frame) {
+        cacheViewport = frame.viewport;
+        cacheSnapshot = frame.snapshot;
+    }
+
+    /**
+     * Have the render thread draw the frame, or the one after it if it
+     * is busy.
      */
-    public Dimension getMinimumSize() {
-        return new Dimension(width, height);
+    private void renderLater(Frame frame) {
+        nextFrame.set(frame);
+        if (rendering) {
+            return;
+        }
+        rendering = true;
+        int w = cache.getWidth();
+        int h = cache.getHeight();
+        BufferedImage image = back != null && back.getWidth() == w && back.getHeight() == h ? back : null;
+        renderThread.execute(() -> {
+            Frame f = nextFrame.getAndSet(null);
+            BufferedImage done = render(f, image, w, h);
+            SwingUtilities.invokeLater(() -> {
+                rendering = false;
+                // unless the panel was resized in the meantime
+                if (done.getWidth() == cache.getWidth() && done.getHeight() == cache.getHeight()) {
+                    back = cache;
+                    cache = done;
+                    show(f);
+                }
+                // a change that came in while drawing
+                Frame pending = nextFrame.get();
+                if (pending != null) {
+                    renderLater(pending);
+                }
+                repaint();
+            });
+        });
+    }
+
+    /**
+     * Draw a frame into the image, or a new one if it is null. Only uses
+     * the frame, so it can run on any thread.
+     */
+    private BufferedImage render(Frame frame, BufferedImage image, int w, int h) {
+        if (image == null) {
+            image = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+        }
+        if (frame.raster) {
+            RasterRenderer raster = new RasterRenderer(image, frame.viewport);
+            raster.clear(frame.background.getRGB());
+            frame.snapshot.render(raster);
+            raster.dispose();
+        }
+        Graphics2D g2 = image.createGraphics();
+        g2.clipRect(0, 0, w, h);
+        if (!frame.raster) {
+            g2.setColor(frame.background);
+            g2.fillRect(0, 0, w, h);
+        }
+        g2.transform(frame.viewport.getTransform());
+        if (frame.raster) {
+            frame.snapshot.drawSelection(g2);
+        } else {
+            frame.snapshot.draw(g2);
+        }
+        g2.dispose();
+        return image;
     }
-    
+
     /* (non-Javadoc)
-     * @see javax.swing.JComponent#getMaximumSize()
+     * @see javax.swing.JComponent#getMinimumSize()
      */
-    public Dimension getMaximumSize() {
+    public Dimension getMinimumSize() {
         return new Dimension(width, height);
     }
-    
+
     /* (non-Javadoc)
      * @see javax.swing.JComponent#getPreferredSize()
      */
     public Dimension getPreferredSize() {
         return new Dimension(width, height);
     }
-    
+
     /* (non-Javadoc)
      * @see java.awt.Component#isFocusable()
      */
@@ -0,0 +1,198 @@
+package drawshapes;
+
+import java.awt.Color;
+import java.util.Arrays;
+
+/**
+ * An animation of one shape, declared as a timeline of keyframes. Each
+ * keyframe gives, at a time since the effect started, where the shape is
+ * (relative to where it started), how big it is (relative to its size at
+ * the start) and optionally its color.
+ *
+ * Between keyframes the position and size are interpolated, or with a
+ * stepped effect they jump at every keyframe. Colors always jump, since
+ * shapes can only be saved in the named colors.
+ *
+ * Effects are run by an EffectRuntime. They only depend on the time, not
+ * on how many frames were drawn, so a frame that is dropped under load
+ * just makes the next one jump further.
+ *
+ * An effect on a shape in a scene changes the shape through the scene,
+ * which keeps its indexes up to date every frame. Only when the effect is
+ * over (or cancelled) is the shape journaled and the change reported to
+ * the scene's listeners, once, see settle().
+ */
+public class Effect {
+    private final Scene scene;
+    private final IShape shape;
+    private final boolean stepped;
+    private int count;
+    private long[] times = new long[8];
+    private int[] xs = new int[8];
+    private int[] ys = new int[8];
+    private double[] scales = new double[8];
+    private Color[] colors = new Color[8];
+    // what has been done to the shape so far
+    private int appliedX;
+    private int appliedY;
+    private double appliedScale = 1.0;
+    private boolean scaled;
+    private boolean recolored;
+    private boolean settled;
+    private volatile boolean cancelled;
+    // System.nanoTime() of the first frame, set by the runtime
+    long start;
+
+    /**
+     * @param shape   the shape to animate, which is not in a scene
+     * @param stepped jump from keyframe to keyframe instead of
+     *                interpolating
+     */
+    public Effect(IShape shape, boolean stepped) {
+        this(null, shape, stepped);
+    }
+
+    /**
+     * @param scene   the scene the shape is in
+     * @param shape   the shape to animate
+     * @param stepped jump from keyframe to keyframe instead of
+     *                interpolating
+     */
+    public Effect(Scene scene, IShape shape, boolean stepped) {
+        this.scene = scene;
+        this.shape = shape;
+        this.stepped = stepped;
+    }
+
+    /**
+     * Add a keyframe, after the ones already added.
+     *
+     * @param millis since the effect started
+     * @param dx     from where the shape was when the effect started
+     * @param dy
+     * @param scale  relative to the size when the effect started
+     * @param color  or null to leave the color alone
+     * @return this effect
+     */
+    public Effect keyframe(long millis, int dx, int dy, double scale, Color color) {
+        if (count > 0 && millis < times[count - 1]) {
+            throw new IllegalArgumentException("Keyframes must be added in time order");
+        }
+        if (count == times.length) {
+            int n = count * 2;
+            times = Arrays.copyOf(times, n);
+            xs = Arrays.copyOf(xs, n);
+            ys = Arrays.copyOf(ys, n);
+            scales = Arrays.copyOf(scales, n);
+            colors = Arrays.copyOf(colors, n);
+        }
+        times[count] = millis;
+        xs[count] = dx;
+        ys[count] = dy;
+        scales[count] = scale;
+        colors[count] = color;
+        count++;
+        return this;
+    }
+
+    public IShape getShape() {
+        return shape;
+    }
+
+    /**
+     * How long the effect runs, in milliseconds.
+     */
+    public long getDuration() {
+        return count == 0 ? 0 : times[count - 1];
+    }
+
+    /**
+     * Stop the effect where it is. The runtime drops it at the next frame.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Put the shape where the timeline says it is at the given time.
+     *
+     * @param millis since the effect started
+     * @return true if the effect is over
+     */
+    boolean apply(long millis) {
+        if (count == 0 || millis < times[0]) {
+            return count == 0;
+        }
+        // the last keyframe at or before millis
+        int k = Arrays.binarySearch(times, 0, count, millis);
+        if (k < 0) {
+            k = -k - 2;
+        } else {
+            // several keyframes at the same time, take the last one
+            while (k + 1 < count && times[k + 1] == millis) {
+                k++;
+            }
+        }
+        int x = xs[k];
+        int y = ys[k];
+        double scale = scales[k];
+        if (!stepped && k + 1 < count) {
+            double t = (double) (millis - times[k]) / (times[k + 1] - times[k]);
+            x += (int) Math.round((xs[k + 1] - xs[k]) * t);
+            y += (int) Math.round((ys[k + 1] - ys[k]) * t);
+            scale *= Math.pow(scales[k + 1] / scales[k], t);
+        }
+        int dx = x - appliedX;
+        int dy = y - appliedY;
+        double factor = scale / appliedScale;
+        Color color = colors[k] != null && shape.getColor() != colors[k] ? colors[k] : null;
+        if (dx != 0 || dy != 0 || factor != 1.0 || color != null) {
+            if (scene != null) {
+                scene.animate(shape, dx, dy, factor, color);
+            } else {
+                if (dx != 0 || dy != 0) {
+                    shape.move(dx, dy);
+                }
+                if (factor != 1.0) {
+                    shape.scale(factor);
+                }
+                if (color != null) {
+                    shape.setColor(color);
+                }
+            }
+        }
+        appliedX = x;
+        appliedY = y;
+        appliedScale = scale;
+        scaled |= factor != 1.0;
+        recolored |= color != null;
+        return k == count - 1;
+    }
+
+    /**
+     * The effect is over: journal the shape as it is now and tell the
+     * listeners of the scene what the effect did to it. Only the first
+     * call does anything.
+     */
+    void settle() {
+        if (settled) {
+            return;
+        }
+        settled = true;
+        if (scene != null && (appliedX != 0 || appliedY != 0 || scaled || recolored)) {
+            scene.settled(shape, appliedX, appliedY, scaled, recolored ? shape.getColor() : null);
+        }
+    }
+
+    /**
+     * Jump straight to the end of the effect.
+     */
+    public void finish() {
+        apply(getDuration());
+        settle();
+    }
+}
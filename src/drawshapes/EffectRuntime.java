@@ -0,0 +1,217 @@
+package drawshapes;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Runs any number of Effects from one timer, instead of a thread per
+ * animated shape.
+ *
+ * The timer ticks once per frame and hands the frame to an Executor, for
+ * DrawShapes the Swing event thread, so effects never change shapes at
+ * the same time as the user does. Each frame has a time budget: when it
+ * runs out, the effects that didn't get a turn go first in the next
+ * frame. If the previous frame hasn't run yet when the timer ticks
+ * again, the tick is dropped. Effects follow the clock, not the frame
+ * count, so under load they get choppier but not slower.
+ *
+ * The timer only runs while there are effects.
+ */
+public class EffectRuntime {
+    // 60 frames a second
+    static final long DEFAULT_FRAME_NANOS = 16666667L;
+    // leave the rest of the frame for drawing and input
+    static final long DEFAULT_BUDGET_NANOS = 4000000L;
+
+    private final Executor executor;
+    private final Runnable onFrame;
+    private final long frameNanos;
+    private final long budgetNanos;
+    private final ScheduledExecutorService timer;
+    private ScheduledFuture<?> ticking;
+    private final AtomicBoolean framePending = new AtomicBoolean();
+    private final ConcurrentLinkedQueue<Effect> added = new ConcurrentLinkedQueue<Effect>();
+    // only touched by frames
+    private final List<Effect> effects = new ArrayList<Effect>();
+    // the effect to run first in the next frame
+    private int next;
+    // statistics
+    private volatile long frames;
+    private volatile long droppedFrames;
+    private volatile long overBudgetFrames;
+
+    /**
+     * @param executor runs the frames
+     * @param onFrame  called after every frame that changed something,
+     *                 for example to repaint; may be null
+     */
+    public EffectRuntime(Executor executor, Runnable onFrame) {
+        this(executor, onFrame, DEFAULT_FRAME_NANOS, DEFAULT_BUDGET_NANOS);
+    }
+
+    /**
+     * @param executor    runs the frames
+     * @param onFrame     called after every frame that changed something
+     * @param frameNanos  time between frames
+     * @param budgetNanos how long one frame may spend on effects
+     */
+    public EffectRuntime(Executor executor, Runnable onFrame, long frameNanos, long budgetNanos) {
+        this.executor = executor;
+        this.onFrame = onFrame;
+        this.frameNanos = frameNanos;
+        this.budgetNanos = budgetNanos;
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "effects");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Start an effect; it starts at the next frame.
+     *
+     * @param effect
+     */
+    public void add(Effect effect) {
+        added.add(effect);
+        startTicking();
+    }
+
+    private synchronized void startTicking() {
+        if (ticking == null) {
+            ticking = timer.scheduleAtFixedRate(this::tick, 0, frameNanos, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private synchronized void stopTicking() {
+        // an effect may have been added since the frame looked
+        if (ticking != null && added.isEmpty()) {
+            ticking.cancel(false);
+            ticking = null;
+        }
+    }
+
+    private void tick() {
+        if (!framePending.compareAndSet(false, true)) {
+            droppedFrames++;
+            return;
+        }
+        executor.execute(() -> {
+            try {
+                frame(System.nanoTime());
+            } finally {
+                framePending.set(false);
+            }
+        });
+    }
+
+    /**
+     * Run one frame: bring every effect up to the given time, as far as
+     * the budget allows.
+     *
+     * @param now System.nanoTime()
+     */
+    void frame(long now) {
+        for (Effect e = added.poll(); e != null; e = added.poll()) {
+            e.start = now;
+            effects.add(e);
+        }
+        if (effects.isEmpty()) {
+            stopTicking();
+            return;
+        }
+        frames++;
+        int n = effects.size();
+        int first = next < n ? next : 0;
+        // round robin, starting where the last frame ran out of time
+        int ran = 0;
+        boolean finished = false;
+        while (ran < n) {
+            if (ran > 0 && System.nanoTime() - now > budgetNanos) {
+                overBudgetFrames++;
+                break;
+            }
+            int i = (first + ran) % n;
+            Effect e = effects.get(i);
+            if (e.isCancelled() || e.apply((now - e.start) / 1000000)) {
+                e.settle();
+                effects.set(i, null);
+                finished = true;
+            }
+            ran++;
+        }
+        int skipped = ran < n ? (first + ran) % n : -1;
+        next = 0;
+        if (finished) {
+            int kept = 0;
+            for (int i = 0; i < n; i++) {
+                Effect e = effects.get(i);
+                if (i == skipped) {
+                    next = kept;
+                }
+                if (e != null) {
+                    effects.set(kept++, e);
+                }
+            }
+            effects.subList(kept, n).clear();
+        } else if (skipped != -1) {
+            next = skipped;
+        }
+        if (onFrame != null) {
+            onFrame.run();
+        }
+    }
+
+    /**
+     * Stop every effect where it is.
+     */
+    public void cancelAll() {
+        for (Effect e : added) {
+            e.cancel();
+        }
+        executor.execute(() -> {
+            for (Effect e : effects) {
+                e.cancel();
+            }
+        });
+    }
+
+    /**
+     * How many effects are running, as of the last frame.
+     */
+    public int getActive() {
+        return effects.size() + added.size();
+    }
+
+    public long getFrames() {
+        return frames;
+    }
+
+    /**
+     * Ticks that were dropped because the previous frame hadn't run yet.
+     */
+    public long getDroppedFrames() {
+        return droppedFrames;
+    }
+
+    /**
+     * Frames that ran out of budget before every effect had a turn.
+     */
+    public long getOverBudgetFrames() {
+        return overBudgetFrames;
+    }
+
+    /**
+     * Stop the timer for good.
+     */
+    public void shutdown() {
+        timer.shutdownNow();
+    }
+}
@@ -0,0 +1,257 @@
+package drawshapes;
+
+import java.awt.Color;
+import java.awt.Graphics;
+import java.awt.Point;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A group of shapes (which may be groups themselves) that is drawn,
+ * selected and moved as one shape.
+ *
+ * The children keep their own coordinates, and the group adds an offset
+ * to them, so moving a group only changes the offset no matter how many
+ * shapes are in it. The bounding box of the group is the union of the
+ * boxes of its children, computed when it is first needed after the
+ * children changed.
+ *
+ * Drawing and hit testing only look inside the group (and inside nested
+ * groups) when the bounding box overlaps the clip, point or shape.
+ *
+ * Children should only be changed through the group.
+ */
+public class Group extends AbstractShape {
+    private List<IShape> children;
+    private int offsetX;
+    private int offsetY;
+    // new after every change, and kept by copies
+    private long version = newVersion();
+
+    /**
+     * Group the given shapes, drawn in the given order.
+     *
+     * @param children
+     */
+    public Group(Collection<IShape> children) {
+        this(children, 0, 0);
+    }
+
+    /**
+     * @param children in the coordinates of the group
+     * @param offsetX  added to the children's x
+     * @param offsetY  added to the children's y
+     */
+    Group(Collection<IShape> children, int offsetX, int offsetY) {
+        super(null);
+        this.children = new ArrayList<IShape>(children);
+        this.offsetX = offsetX;
+        this.offsetY = offsetY;
+        this.color = this.children.isEmpty() ? Color.BLUE : this.children.get(0).getColor();
+    }
+
+    /**
+     * The children, in the coordinates of the group.
+     */
+    public List<IShape> getChildren() {
+        return Collections.unmodifiableList(children);
+    }
+
+    public int getOffsetX() {
+        return offsetX;
+    }
+
+    public int getOffsetY() {
+        return offsetY;
+    }
+
+    /**
+     * Changes with every change to the group or its children, and copies
+     * keep it, so two groups with the same id and version are the same
+     * without comparing the children. Selecting doesn't change it, the
+     * children are always selected with the group.
+     */
+    long getVersion() {
+        return version;
+    }
+
+    /**
+     * Take the children out of the group, moved to where they are drawn.
+     * The group is empty afterwards.
+     *
+     * @return the children, in drawing order
+     */
+    public List<IShape> ungroup() {
+        List<IShape> result = children;
+        for (IShape s : result) {
+            s.move(offsetX, offsetY);
+        }
+        children = new ArrayList<IShape>();
+        boundingBox = null;
+        version = newVersion();
+        return result;
+    }
+
+    @Override
+    public BoundingBox getBoundingBox() {
+        if (boundingBox == null) {
+            if (children.isEmpty()) {
+                return new BoundingBox(offsetX, offsetX, offsetY, offsetY);
+            }
+            BoundingBox box = children.get(0).getBoundingBox();
+            for (int i = 1; i < children.size(); i++) {
+                box = box.union(children.get(i).getBoundingBox());
+            }
+            boundingBox = new BoundingBox(box.getLeft() + offsetX, box.getRight() + offsetX,
+                    box.getTop() + offsetY, box.getBottom() + offsetY);
+        }
+        return boundingBox;
+    }
+
+    /**
+     * Forget the cached bounding box, after the children changed.
+     */
+    private void invalidate() {
+        boundingBox = null;
+        version = newVersion();
+    }
+
+    @Override
+    public void draw(Graphics g) {
+        g.translate(offsetX, offsetY);
+        try {
+            BoundingBox clip = Scene.clipOf(g);
+            double scale = Scene.scaleOf(g);
+            for (IShape s : children) {
+                if (Scene.isVisible(s, clip)) {
+                    Scene.drawShape(g, s, scale);
+                }
+            }
+        } finally {
+            g.translate(-offsetX, -offsetY);
+        }
+    }
+
+    @Override
+    public boolean contains(Point point) {
+        if (!getBoundingBox().contains(point)) {
+            return false;
+        }
+        Point local = new Point(point.x - offsetX, point.y - offsetY);
+        for (IShape s : children) {
+            if (s.contains(local)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    boolean intersects(IShape other, int dx, int dy) {
+        if (this == other || other == null || !getBoundingBox().intersects(other.getBoundingBox(), dx, dy)) {
+            return false;
+        }
+        // in the coordinates of the children the other shape is moved back by the offset
+        for (IShape s : children) {
+            if (intersects(s, other, dx - offsetX, dy - offsetY)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void move(int dx, int dy) {
+        offsetX += dx;
+        offsetY += dy;
+        version = newVersion();
+        if (boundingBox != null) {
+            // copies of the group may share the box, so don't change it
+            boundingBox = new BoundingBox(boundingBox.getLeft() + dx, boundingBox.getRight() + dx,
+                    boundingBox.getTop() + dy, boundingBox.getBottom() + dy);
+        }
+    }
+
+    /**
+     * The center of the bounding box.
+     */
+    @Override
+    public Point getAnchorPoint() {
+        BoundingBox box = getBoundingBox();
+        return new Point((box.getLeft() + box.getRight()) / 2, (box.getTop() + box.getBottom()) / 2);
+    }
+
+    @Override
+    public void setAnchorPoint(Point p) {
+        Point anchor = getAnchorPoint();
+        move(p.x - anchor.x, p.y - anchor.y);
+    }
+
+    @Override
+    public void setColor(Color color) {
+        super.setColor(color);
+        for (IShape s : children) {
+            s.setColor(color);
+        }
+        version = newVersion();
+    }
+
+    @Override
+    public void setSelected(boolean b) {
+        super.setSelected(b);
+        for (IShape s : children) {
+            s.setSelected(b);
+        }
+    }
+
+    /**
+     * Scale every child around its own anchor point.
+     */
+    @Override
+    public void scale(double factor) {
+        for (IShape s : children) {
+            s.scale(factor);
+        }
+        invalidate();
+    }
+
+    @Override
+    public void animate() {
+        for (IShape s : children) {
+            s.animate();
+        }
+        version = newVersion();
+    }
+
+    @Override
+    public int getLength() {
+        BoundingBox box = getBoundingBox();
+        return (box.getRight() - box.getLeft() + box.getBottom() - box.getTop()) / 2;
+    }
+
+    @Override
+    public IShape copy() {
+        Group c = (Group) super.copy();
+        c.children = new ArrayList<IShape>(children.size());
+        for (IShape s : children) {
+            c.children.add(s.copy());
+        }
+        return c;
+    }
+
+    /**
+     * GROUP offsetX offsetY count selected, followed by the records of
+     * the children, all on one line.
+     */
+    public String toString() {
+        StringBuilder text = new StringBuilder();
+        text.append(String.format("GROUP %d %d %d %s", offsetX, offsetY, children.size(), selected));
+        for (IShape s : children) {
+            text.append(' ').append(s.toString());
+        }
+        text.append(" #").append(getId());
+        return text.toString();
+    }
+}
@@ -0,0 +1,110 @@
+package drawshapes;
+
+import java.awt.Color;
+import java.awt.Point;
+import java.util.Random;
+
+/**
+ * Compares bounding-box-only hit testing with the exact hit testing in
+ * AbstractShape.contains() and intersects(), which uses the bounding box
+ * as a fast reject before the exact geometry test.
+ *
+ * Run with: java drawshapes.HitTestBenchmark [shapes] [queries]
+ */
+public class HitTestBenchmark {
+    private static final int WORLD = 20000;
+
+    public static void main(String[] args) {
+        int n = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        int queries = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+
+        Random rand = new Random(42);
+        IShape[] shapes = new IShape[n];
+        for (int i = 0; i < n; i++) {
+            int x = rand.nextInt(WORLD);
+            int y = rand.nextInt(WORLD);
+            int size = 10 + rand.nextInt(200);
+            switch (i % 3) {
+                case 0:
+                    shapes[i] = new Square(Color.RED, x, y, size);
+                    break;
+                case 1:
+                    shapes[i] = new Circle(Color.BLUE, new Point(x, y), size);
+                    break;
+                default:
+                    shapes[i] = new Rectangle(new Point(x, y), size, size / 2 + 1, Color.GREEN);
+            }
+        }
+        Point[] points = new Point[queries];
+        IShape[] boxes = new IShape[queries];
+        for (int i = 0; i < queries; i++) {
+            points[i] = new Point(rand.nextInt(WORLD), rand.nextInt(WORLD));
+            int x = rand.nextInt(WORLD);
+            int y = rand.nextInt(WORLD);
+            boxes[i] = new SelectionRectangle(x, x + 500, y, y + 500);
+        }
+
+        // warm up, then measure
+        for (int round = 0; round < 2; round++) {
+            long hits = 0;
+            long start = System.nanoTime();
+            for (Point p : points) {
+                for (IShape s : shapes) {
+                    if (s.getBoundingBox().contains(p)) {
+                        hits++;
+                    }
+                }
+            }
+            long boxPoint = System.nanoTime() - start;
+            long boxPointHits = hits;
+
+            hits = 0;
+            start = System.nanoTime();
+            for (Point p : points) {
+                for (IShape s : shapes) {
+                    if (s.contains(p)) {
+                        hits++;
+                    }
+                }
+            }
+            long exactPoint = System.nanoTime() - start;
+            long exactPointHits = hits;
+
+            hits = 0;
+            start = System.nanoTime();
+            for (IShape b : boxes) {
+                for (IShape s : shapes) {
+                    if (s.getBoundingBox().intersects(b.getBoundingBox())) {
+                        hits++;
+                    }
+                }
+            }
+            long boxRect = System.nanoTime() - start;
+            long boxRectHits = hits;
+
+            hits = 0;
+            start = System.nanoTime();
+            for (IShape b : boxes) {
+                for (IShape s : shapes) {
+                    if (s.intersects(b)) {
+                        hits++;
+                    }
+                }
+            }
+            long exactRect = System.nanoTime() - start;
+            long exactRectHits = hits;
+
+            if (round == 1) {
+                System.out.printf("%d shapes, %d queries%n", n, queries);
+                System.out.printf("point, bounding box: %8.2f ms/query, %d hits%n", ms(boxPoint, queries), boxPointHits);
+                System.out.printf("point, exact:        %8.2f ms/query, %d hits%n", ms(exactPoint, queries), exactPointHits);
+                System.out.printf("rect,  bounding box: %8.2f ms/query, %d hits%n", ms(boxRect, queries), boxRectHits);
+                System.out.printf("rect,  exact:        %8.2f ms/query, %d hits%n", ms(exactRect, queries), exactRectHits);
+            }
+        }
+    }
+
+    private static double ms(long nanos, int queries) {
+        return nanos / 1e6 / queries;
+    }
+}
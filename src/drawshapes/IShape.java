@@ -90,9 +90,34 @@ public interface IShape
     public void scaleUp();
     public void scaleDown();
 
+    /**
+     * Scale the shape around its anchor point by any factor, for
+     * example 1.1 to make it 10% bigger. Sizes are kept exactly, so
+     * scaling by a factor and then by its inverse gives back the same
+     * shape.
+     * 
+     * @param factor
+     */
+    public void scale(double factor);
+
     public IShape copy();
 
     public void animate();
 
     public int getLength();
+
+    /**
+     * Return the id of this shape. Ids are stable: they are saved with
+     * the shape and survive copying the scene (for undo).
+     * 
+     * @return
+     */
+    public long getId();
+
+    /**
+     * Set the id of this shape, for example when reading it from a file.
+     * 
+     * @param id
+     */
+    public void setId(long id);
 }
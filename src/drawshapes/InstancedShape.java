@@ -0,0 +1,374 @@
+package drawshapes;
+
+import java.awt.Color;
+import java.awt.Graphics;
+import java.awt.Point;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * The same square, rectangle or circle placed many times.
+ *
+ * There is one prototype shape for the size and kind, and for every
+ * placement (instance) only its center, a color (an index into a small
+ * palette) and a byte of flags. That is about 10 bytes per instance
+ * instead of a whole shape object with its Point and BoundingBox.
+ *
+ * The scene sees the instances as one shape: they are drawn, selected,
+ * moved, saved and loaded together. Hit testing is exact for every
+ * instance, after checking the bounding box of the whole set.
+ */
+public class InstancedShape extends AbstractShape {
+    /** flag: the instance is drawn highlighted, like a selected shape */
+    static final int HIGHLIGHTED = 1;
+
+    private IShape prototype;
+    private boolean oval;
+    private int width;
+    private int height;
+    private int count;
+    private int[] xs;
+    private int[] ys;
+    private byte[] colors;
+    private byte[] flags;
+    private List<Color> palette = new ArrayList<Color>();
+    // new after every change, and kept by copies, see Group.getVersion()
+    private long version = newVersion();
+
+    /**
+     * @param prototype a Square, Rectangle or Circle giving the size of
+     *                  every instance; its position doesn't matter
+     */
+    public InstancedShape(IShape prototype) {
+        super(null);
+        setPrototype(prototype);
+        this.color = prototype.getColor();
+        xs = new int[16];
+        ys = new int[16];
+        colors = new byte[16];
+        flags = new byte[16];
+    }
+
+    private void setPrototype(IShape prototype) {
+        if (prototype instanceof Circle) {
+            oval = true;
+            width = prototype.getLength();
+            height = width;
+        } else if (prototype instanceof Rectangle) {
+            oval = false;
+            width = ((Rectangle) prototype).width;
+            height = ((Rectangle) prototype).height;
+        } else {
+            throw new IllegalArgumentException("Cannot instance " + prototype.getClass().getSimpleName());
+        }
+        this.prototype = prototype;
+        boundingBox = null;
+        version = newVersion();
+    }
+
+    /**
+     * Place one more instance.
+     *
+     * @param x     center
+     * @param y     center
+     * @param color
+     * @return the index of the new instance
+     */
+    public int add(int x, int y, Color color) {
+        if (count == xs.length) {
+            int n = count * 2;
+            xs = Arrays.copyOf(xs, n);
+            ys = Arrays.copyOf(ys, n);
+            colors = Arrays.copyOf(colors, n);
+            flags = Arrays.copyOf(flags, n);
+        }
+        xs[count] = x;
+        ys[count] = y;
+        colors[count] = (byte) paletteIndex(color);
+        flags[count] = 0;
+        boundingBox = null;
+        version = newVersion();
+        return count++;
+    }
+
+    private int paletteIndex(Color color) {
+        int i = palette.indexOf(color);
+        if (i == -1) {
+            if (palette.size() == 256) {
+                throw new IllegalStateException("Too many colors in one instanced shape");
+            }
+            palette.add(color);
+            i = palette.size() - 1;
+        }
+        return i;
+    }
+
+    public IShape getPrototype() {
+        return prototype;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public Point getInstance(int i) {
+        return new Point(xs[i], ys[i]);
+    }
+
+    public Color getInstanceColor(int i) {
+        return palette.get(colors[i] & 0xFF);
+    }
+
+    public void setInstanceColor(int i, Color color) {
+        colors[i] = (byte) paletteIndex(color);
+        version = newVersion();
+    }
+
+    public boolean isHighlighted(int i) {
+        return (flags[i] & HIGHLIGHTED) != 0;
+    }
+
+    public void setHighlighted(int i, boolean b) {
+        flags[i] = (byte) (b ? flags[i] | HIGHLIGHTED : flags[i] & ~HIGHLIGHTED);
+        version = newVersion();
+    }
+
+    /**
+     * Changes with every change to the instances, see Group.getVersion().
+     */
+    long getVersion() {
+        return version;
+    }
+
+    boolean isOval() {
+        return oval;
+    }
+
+    int getWidth() {
+        return width;
+    }
+
+    int getHeight() {
+        return height;
+    }
+
+    int x(int i) {
+        return xs[i];
+    }
+
+    int y(int i) {
+        return ys[i];
+    }
+
+    /**
+     * The color to draw the instance in.
+     */
+    Color drawColor(int i) {
+        Color c = palette.get(colors[i] & 0xFF);
+        return selected || (flags[i] & HIGHLIGHTED) != 0 ? Util.selectedColor(c) : c;
+    }
+
+    @Override
+    public BoundingBox getBoundingBox() {
+        if (boundingBox == null) {
+            if (count == 0) {
+                return new BoundingBox(0, 0, 0, 0);
+            }
+            int left = Integer.MAX_VALUE;
+            int right = Integer.MIN_VALUE;
+            int top = Integer.MAX_VALUE;
+            int bottom = Integer.MIN_VALUE;
+            for (int i = 0; i < count; i++) {
+                left = Math.min(left, xs[i]);
+                right = Math.max(right, xs[i]);
+                top = Math.min(top, ys[i]);
+                bottom = Math.max(bottom, ys[i]);
+            }
+            boundingBox = new BoundingBox(left - width / 2, right + width / 2, top - height / 2,
+                    bottom + height / 2);
+        }
+        return boundingBox;
+    }
+
+    @Override
+    public void draw(Graphics g) {
+        BoundingBox clip = Scene.clipOf(g);
+        Color current = null;
+        for (int i = 0; i < count; i++) {
+            int left = xs[i] - width / 2;
+            int top = ys[i] - height / 2;
+            if (clip != null && (left > clip.getRight() || left + width < clip.getLeft()
+                    || top > clip.getBottom() || top + height < clip.getTop())) {
+                continue;
+            }
+            Color c = drawColor(i);
+            if (c != current) {
+                g.setColor(c);
+                current = c;
+            }
+            if (oval) {
+                g.fillOval(left, top, width, height);
+            } else {
+                g.fillRect(left, top, width, height);
+            }
+        }
+    }
+
+    /**
+     * Return the topmost instance containing the point, or -1.
+     *
+     * @param point
+     * @return
+     */
+    public int instanceAt(Point point) {
+        if (!getBoundingBox().contains(point)) {
+            return -1;
+        }
+        for (int i = count - 1; i >= 0; i--) {
+            if (instanceContains(i, point.x, point.y)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private boolean instanceContains(int i, int x, int y) {
+        if (x < xs[i] - width / 2 || x > xs[i] + width / 2 || y < ys[i] - height / 2 || y > ys[i] + height / 2) {
+            return false;
+        }
+        return !oval || Util.circleContains(xs[i], ys[i], width / 2.0, x, y);
+    }
+
+    @Override
+    public boolean contains(Point point) {
+        return instanceAt(point) != -1;
+    }
+
+    @Override
+    boolean intersects(IShape other, int dx, int dy) {
+        if (this == other || other == null) {
+            return false;
+        }
+        BoundingBox box = other.getBoundingBox();
+        if (!getBoundingBox().intersects(box, dx, dy)) {
+            return false;
+        }
+        // the instances are moved the other way, into the coordinates of box
+        for (int i = 0; i < count; i++) {
+            int left = xs[i] - dx - width / 2;
+            int top = ys[i] - dy - height / 2;
+            if (left > box.getRight() || left + width < box.getLeft() || top > box.getBottom()
+                    || top + height < box.getTop()) {
+                continue;
+            }
+            if (oval) {
+                if (Util.circleIntersectsBox(xs[i] - dx, ys[i] - dy, width / 2.0, box)) {
+                    return true;
+                }
+            } else if (other instanceof Circle) {
+                if (((Circle) other).intersectsBox(new BoundingBox(left, left + width, top, top + height))) {
+                    return true;
+                }
+            } else {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void move(int dx, int dy) {
+        for (int i = 0; i < count; i++) {
+            xs[i] += dx;
+            ys[i] += dy;
+        }
+        version = newVersion();
+        if (boundingBox != null) {
+            boundingBox = new BoundingBox(boundingBox.getLeft() + dx, boundingBox.getRight() + dx,
+                    boundingBox.getTop() + dy, boundingBox.getBottom() + dy);
+        }
+    }
+
+    /**
+     * The center of the bounding box.
+     */
+    @Override
+    public Point getAnchorPoint() {
+        BoundingBox box = getBoundingBox();
+        return new Point((box.getLeft() + box.getRight()) / 2, (box.getTop() + box.getBottom()) / 2);
+    }
+
+    @Override
+    public void setAnchorPoint(Point p) {
+        Point anchor = getAnchorPoint();
+        move(p.x - anchor.x, p.y - anchor.y);
+    }
+
+    /**
+     * Give every instance the same color.
+     */
+    @Override
+    public void setColor(Color color) {
+        super.setColor(color);
+        palette.clear();
+        palette.add(color);
+        Arrays.fill(colors, 0, count, (byte) 0);
+        version = newVersion();
+    }
+
+    /**
+     * Scale every instance around its own center.
+     */
+    @Override
+    public void scale(double factor) {
+        prototype.scale(factor);
+        setPrototype(prototype);
+    }
+
+    /**
+     * Give every instance a random color.
+     */
+    @Override
+    public void animate() {
+        Random rand = new Random();
+        for (int i = 0; i < count; i++) {
+            colors[i] = (byte) paletteIndex(Util.stringToColor(arr[rand.nextInt(arr.length)]));
+        }
+        version = newVersion();
+    }
+
+    @Override
+    public int getLength() {
+        return prototype.getLength();
+    }
+
+    @Override
+    public IShape copy() {
+        InstancedShape c = (InstancedShape) super.copy();
+        c.prototype = prototype.copy();
+        c.xs = xs.clone();
+        c.ys = ys.clone();
+        c.colors = colors.clone();
+        c.flags = flags.clone();
+        c.palette = new ArrayList<Color>(palette);
+        return c;
+    }
+
+    /**
+     * INSTANCES count selected, the record of the prototype, then
+     * x y COLOR flags for every instance, all on one line.
+     */
+    public String toString() {
+        StringBuilder text = new StringBuilder(count * 16 + 64);
+        text.append("INSTANCES ").append(count).append(' ').append(selected).append(' ')
+                .append(prototype.toString());
+        for (int i = 0; i < count; i++) {
+            text.append(' ').append(xs[i]).append(' ').append(ys[i]).append(' ')
+                    .append(Util.colorToString(getInstanceColor(i))).append(' ').append(flags[i]);
+        }
+        text.append(" #").append(getId());
+        return text.toString();
+    }
+}
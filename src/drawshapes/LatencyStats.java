@@ -0,0 +1,45 @@
+package drawshapes;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Latencies of named operations, for the benchmark drivers
+ * (StressTest, SessionReplayer). Reports count, p50, p95, p99 and max
+ * for every operation, in the order they first happened.
+ */
+class LatencyStats {
+    // latencies in nanoseconds by operation
+    private final Map<String, long[]> latencies = new LinkedHashMap<String, long[]>();
+    private final Map<String, Integer> counts = new LinkedHashMap<String, Integer>();
+
+    void record(String name, long nanos) {
+        long[] l = latencies.get(name);
+        int n = counts.getOrDefault(name, 0);
+        if (l == null) {
+            l = new long[64];
+        } else if (n == l.length) {
+            l = Arrays.copyOf(l, n * 2);
+        }
+        l[n] = nanos;
+        latencies.put(name, l);
+        counts.put(name, n + 1);
+    }
+
+    /**
+     * Print count, p50, p95, p99 and max latency for every operation.
+     */
+    void report() {
+        System.out.printf("%-12s %8s %10s %10s %10s %10s%n", "operation", "count", "p50 ms", "p95 ms", "p99 ms",
+                "max ms");
+        for (Map.Entry<String, long[]> e : latencies.entrySet()) {
+            int n = counts.get(e.getKey());
+            long[] sorted = Arrays.copyOf(e.getValue(), n);
+            Arrays.sort(sorted);
+            System.out.printf("%-12s %8d %10.3f %10.3f %10.3f %10.3f%n", e.getKey(), n,
+                    LoadTestClient.percentile(sorted, 0.50), LoadTestClient.percentile(sorted, 0.95),
+                    LoadTestClient.percentile(sorted, 0.99), LoadTestClient.percentile(sorted, 1.0));
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package drawshapes;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Load test for SceneServer. Starts a number of clients, each sending a
+ * mix of ADD, SELECT and MOVE commands to one of a few scenes, and reports
+ * throughput and latency percentiles.
+ *
+ * Run with:
+ * java drawshapes.LoadTestClient [--port N | --unix path] [--clients N] [--ops N] [--scenes N]
+ */
+public class LoadTestClient {
+    private static final String[] COLORS = { "RED", "BLUE", "GREEN", "YELLOW", "CYAN", "BLACK" };
+
+    public static void main(String[] args) throws Exception {
+        SocketAddress address = SceneServer.parseAddress(args);
+        int clients = intArg(args, "--clients", 8);
+        int ops = intArg(args, "--ops", 10000);
+        int scenes = intArg(args, "--scenes", 4);
+
+        long[][] latencies = new long[clients][];
+        Thread[] threads = new Thread[clients];
+        long start = System.nanoTime();
+        for (int i = 0; i < clients; i++) {
+            final int id = i;
+            threads[i] = new Thread(() -> {
+                try {
+                    latencies[id] = run(address, "load" + (id % scenes), ops, new Random(id));
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    latencies[id] = new long[0];
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        long elapsed = System.nanoTime() - start;
+
+        int total = 0;
+        for (long[] l : latencies) {
+            total += l.length;
+        }
+        long[] all = new long[total];
+        int k = 0;
+        for (long[] l : latencies) {
+            System.arraycopy(l, 0, all, k, l.length);
+            k += l.length;
+        }
+        Arrays.sort(all);
+        System.out.printf("%d clients, %d scenes, %d ops%n", clients, scenes, total);
+        System.out.printf("throughput: %.0f ops/sec%n", total / (elapsed / 1e9));
+        System.out.printf("latency p50: %.3f ms  p99: %.3f ms  max: %.3f ms%n",
+                percentile(all, 0.50), percentile(all, 0.99), percentile(all, 1.0));
+    }
+
+    private static long[] run(SocketAddress address, String scene, int ops, Random rand) throws IOException {
+        long[] latency = new long[ops];
+        try (SocketChannel channel = open(address);
+                BufferedReader in = new BufferedReader(
+                        new InputStreamReader(Channels.newInputStream(channel), StandardCharsets.UTF_8));
+                PrintWriter out = new PrintWriter(new BufferedWriter(
+                        new OutputStreamWriter(Channels.newOutputStream(channel), StandardCharsets.UTF_8)))) {
+            send(out, in, "SCENE " + scene);
+            for (int i = 0; i < ops; i++) {
+                String command;
+                int op = rand.nextInt(10);
+                if (op < 6) {
+                    command = String.format("ADD SQUARE %d %d %d %s false", rand.nextInt(2000),
+                            rand.nextInt(2000), 10 + rand.nextInt(100), COLORS[rand.nextInt(COLORS.length)]);
+                } else if (op < 8) {
+                    command = String.format("SELECT %d %d", rand.nextInt(2000), rand.nextInt(2000));
+                } else {
+                    command = String.format("MOVE %d %d", rand.nextInt(21) - 10, rand.nextInt(21) - 10);
+                }
+                long t = System.nanoTime();
+                String reply = send(out, in, command);
+                latency[i] = System.nanoTime() - t;
+                if (!reply.startsWith("OK")) {
+                    System.err.println(command + " -> " + reply);
+                }
+            }
+            send(out, in, "QUIT");
+        }
+        return latency;
+    }
+
+    private static SocketChannel open(SocketAddress address) throws IOException {
+        if (address instanceof UnixDomainSocketAddress) {
+            SocketChannel channel = SocketChannel.open(StandardProtocolFamily.UNIX);
+            channel.connect(address);
+            return channel;
+        }
+        return SocketChannel.open(address);
+    }
+
+    private static String send(PrintWriter out, BufferedReader in, String command) throws IOException {
+        out.println(command);
+        out.flush();
+        String reply = in.readLine();
+        if (reply == null) {
+            throw new IOException("Server closed the connection");
+        }
+        return reply;
+    }
+
+    static double percentile(long[] sorted, double p) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int i = (int) Math.min(sorted.length - 1, Math.ceil(p * sorted.length) - 1);
+        return sorted[Math.max(i, 0)] / 1e6;
+    }
+
+    private static int intArg(String[] args, String name, int otherwise) {
+        for (int i = 0; i + 1 < args.length; i++) {
+            if (args[i].equals(name)) {
+                return Integer.parseInt(args[i + 1]);
+            }
+        }
+        return otherwise;
+    }
+}
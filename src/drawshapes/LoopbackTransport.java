@@ -0,0 +1,82 @@
+package drawshapes;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
+
+/**
+ * In-process transport for replicas living in the same JVM, mostly for
+ * testing. Every endpoint connected to the same LoopbackTransport receives
+ * what the others send. Batches wait in the endpoint's inbox until
+ * deliver() is called, so tests can decide when replicas see each other's
+ * changes.
+ */
+public class LoopbackTransport {
+    private final List<Endpoint> endpoints = new ArrayList<Endpoint>();
+    private long bytesSent;
+
+    /**
+     * One replica's connection to the loopback.
+     */
+    public class Endpoint implements ReplicaTransport {
+        private final Queue<byte[]> inbox = new ConcurrentLinkedQueue<byte[]>();
+        private Consumer<byte[]> receiver;
+
+        @Override
+        public void send(byte[] batch) {
+            synchronized (LoopbackTransport.this) {
+                bytesSent += batch.length;
+                for (Endpoint e : endpoints) {
+                    if (e != this) {
+                        e.inbox.add(batch);
+                    }
+                }
+            }
+        }
+
+        @Override
+        public void setReceiver(Consumer<byte[]> receiver) {
+            this.receiver = receiver;
+        }
+
+        /**
+         * Hand every waiting batch to the receiver.
+         */
+        public void deliver() {
+            byte[] batch;
+            while ((batch = inbox.poll()) != null) {
+                if (receiver != null) {
+                    receiver.accept(batch);
+                }
+            }
+        }
+    }
+
+    public synchronized Endpoint connect() {
+        Endpoint e = new Endpoint();
+        endpoints.add(e);
+        return e;
+    }
+
+    /**
+     * Deliver everything waiting in every endpoint.
+     */
+    public void deliverAll() {
+        List<Endpoint> all;
+        synchronized (this) {
+            all = new ArrayList<Endpoint>(endpoints);
+        }
+        for (Endpoint e : all) {
+            e.deliver();
+        }
+    }
+
+    /**
+     * Total size of all batches sent so far.
+     */
+    public synchronized long getBytesSent() {
+        return bytesSent;
+    }
+}
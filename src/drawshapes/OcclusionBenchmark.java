@@ -0,0 +1,103 @@
+package drawshapes;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Point;
+import java.awt.image.BufferedImage;
+import java.util.Random;
+
+/**
+ * Compares drawing a dense scene with and without occlusion culling (see
+ * OcclusionCuller), through Java2D and RasterRenderer, and checks that
+ * the pictures are the same.
+ *
+ * Run with: java drawshapes.OcclusionBenchmark [shapes] [frames]
+ */
+public class OcclusionBenchmark {
+    private static final int WIDTH = 1400;
+    private static final int HEIGHT = 1200;
+
+    public static void main(String[] args) {
+        int n = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        int frames = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+
+        Random rand = new Random(42);
+        Color[] colors = { Color.RED, Color.BLUE, Color.GREEN, Color.YELLOW, Color.CYAN, Color.BLACK };
+        Scene scene = new Scene();
+        for (int i = 0; i < n; i++) {
+            int x = rand.nextInt(WIDTH);
+            int y = rand.nextInt(HEIGHT);
+            // mostly small shapes, with big ones now and then covering them
+            int size = rand.nextInt(50) == 0 ? 50 + rand.nextInt(150) : 2 + rand.nextInt(30);
+            Color color = colors[rand.nextInt(colors.length)];
+            switch (i % 3) {
+                case 0:
+                    scene.addShape(new Square(color, x, y, size));
+                    break;
+                case 1:
+                    scene.addShape(new Circle(color, new Point(x, y), size));
+                    break;
+                default:
+                    scene.addShape(new Rectangle(new Point(x, y), size, size / 2 + 1, color));
+            }
+        }
+        Viewport viewport = new Viewport();
+
+        long start = System.nanoTime();
+        int hidden = scene.hiddenShapes(1.0).cardinality();
+        long findTime = System.nanoTime() - start;
+
+        BufferedImage[] java2d = new BufferedImage[2];
+        BufferedImage[] raster = new BufferedImage[2];
+        long[] java2dTime = new long[2];
+        long[] rasterTime = new long[2];
+        for (int culling = 0; culling < 2; culling++) {
+            scene.setOcclusionCulling(culling == 1);
+            java2d[culling] = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+            raster[culling] = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+            // the first half of the frames are warm up
+            for (int frame = 0; frame < frames * 2; frame++) {
+                start = System.nanoTime();
+                Graphics2D g = java2d[culling].createGraphics();
+                g.setColor(Color.WHITE);
+                g.fillRect(0, 0, WIDTH, HEIGHT);
+                scene.draw(g);
+                g.dispose();
+                long t1 = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                RasterRenderer r = new RasterRenderer(raster[culling], viewport);
+                r.clear(Color.WHITE.getRGB());
+                scene.render(r);
+                r.dispose();
+                long t2 = System.nanoTime() - start;
+
+                if (frame >= frames) {
+                    java2dTime[culling] += t1;
+                    rasterTime[culling] += t2;
+                }
+            }
+        }
+
+        System.out.printf("%d shapes, %dx%d, %d frames%n", n, WIDTH, HEIGHT, frames);
+        System.out.printf("hidden shapes:            %8d (found in %.2f ms)%n", hidden, findTime / 1e6);
+        System.out.printf("Java2D:                   %8.2f ms/frame, %8.2f culled%n", java2dTime[0] / 1e6 / frames,
+                java2dTime[1] / 1e6 / frames);
+        System.out.printf("RasterRenderer:           %8.2f ms/frame, %8.2f culled%n", rasterTime[0] / 1e6 / frames,
+                rasterTime[1] / 1e6 / frames);
+        System.out.printf("pixels that differ:       %8d Java2D, %d RasterRenderer%n", differ(java2d[0], java2d[1]),
+                differ(raster[0], raster[1]));
+    }
+
+    private static int differ(BufferedImage a, BufferedImage b) {
+        int differ = 0;
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                if (a.getRGB(x, y) != b.getRGB(x, y)) {
+                    differ++;
+                }
+            }
+        }
+        return differ;
+    }
+}
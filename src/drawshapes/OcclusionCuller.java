@@ -0,0 +1,253 @@
+package drawshapes;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Finds what is completely hidden under opaque shapes drawn after it.
+ *
+ * Go through the shapes from the top of the drawing order down: ask
+ * isHidden() for each one, and if it isn't hidden, addOccluder() the part
+ * of it that is certainly opaque. Rectangles and squares are opaque
+ * everywhere they are filled, circles inside their inscribed square.
+ *
+ * What is covered is kept as a bitmap of cells over the bounds given to
+ * the constructor. An occluder only marks the cells it covers entirely,
+ * and something is hidden only if every cell it touches is marked, so
+ * the answer is conservative: shapes only count as hidden if they are,
+ * though two occluders that each cover part of a cell don't hide it.
+ * Everything tested is grown by a margin first, at least MARGIN, so edges
+ * of a hidden shape that the rasterizer rounds outwards or antialiases
+ * can't bleed through next to the edge of an occluder.
+ */
+class OcclusionCuller {
+    // grow what is tested by at least this much, for antialiasing
+    static final int MARGIN = 1;
+    // the bitmap has at most this many cells, 8 MB
+    static final long MAX_CELLS = 1L << 26;
+    // cells this many times smaller than the average shape
+    static final int CELLS_PER_SHAPE = 4;
+
+    private final int margin;
+    private final int originX;
+    private final int originY;
+    private final int cellSize;
+    private final int columns;
+    private final int rows;
+    private final int words;
+    private final long[] bits;
+
+    /**
+     * @param left        the bounds of everything that will be tested
+     * @param top
+     * @param right
+     * @param bottom
+     * @param averageSize the average width or height of the shapes, to
+     *                    choose the size of the cells
+     */
+    OcclusionCuller(int left, int top, int right, int bottom, int averageSize) {
+        this(left, top, right, bottom, averageSize, MARGIN);
+    }
+
+    /**
+     * @param margin how much to grow what is tested, at least a pixel of
+     *               where it will be drawn
+     */
+    OcclusionCuller(int left, int top, int right, int bottom, int averageSize, int margin) {
+        this.margin = Math.max(MARGIN, margin);
+        long width = (long) right - left + 1 + 2L * this.margin;
+        long height = (long) bottom - top + 1 + 2L * this.margin;
+        long size = Math.max(1, averageSize / CELLS_PER_SHAPE);
+        while (((width + size - 1) / size) * ((height + size - 1) / size) > MAX_CELLS) {
+            size *= 2;
+        }
+        this.cellSize = (int) Math.min(size, Integer.MAX_VALUE);
+        this.originX = left - this.margin;
+        this.originY = top - this.margin;
+        this.columns = (int) ((width + cellSize - 1) / cellSize);
+        this.rows = (int) ((height + cellSize - 1) / cellSize);
+        this.words = (columns + 63) / 64;
+        this.bits = new long[words * rows];
+    }
+
+    /**
+     * How much to grow shapes drawn at the given scale: zoomed out, the
+     * rasterizer can round a shape out by a pixel, which is many world
+     * units, so two pixels. It is a power of two, so what is found for one
+     * scale can be kept while zooming a little.
+     *
+     * @param scale pixels per world unit
+     */
+    static int marginFor(double scale) {
+        int margin = MARGIN;
+        while (margin * scale < 2 && margin < 1 << 30) {
+            margin *= 2;
+        }
+        return margin;
+    }
+
+    /**
+     * Find the shapes hidden under opaque shapes drawn after them.
+     *
+     * @param shapes in drawing order, may have nulls
+     * @param margin see marginFor()
+     * @return the positions of the hidden shapes
+     */
+    static BitSet findHidden(List<IShape> shapes, int margin) {
+        BitSet hidden = new BitSet(shapes.size());
+        int left = Integer.MAX_VALUE;
+        int top = Integer.MAX_VALUE;
+        int right = Integer.MIN_VALUE;
+        int bottom = Integer.MIN_VALUE;
+        long extent = 0;
+        int count = 0;
+        for (IShape s : shapes) {
+            if (s != null) {
+                BoundingBox b = s.getBoundingBox();
+                left = Math.min(left, b.getLeft());
+                top = Math.min(top, b.getTop());
+                right = Math.max(right, b.getRight());
+                bottom = Math.max(bottom, b.getBottom());
+                extent += Math.max(b.getRight() - b.getLeft(), b.getBottom() - b.getTop());
+                count++;
+            }
+        }
+        if (count == 0) {
+            return hidden;
+        }
+        OcclusionCuller culler = new OcclusionCuller(left, top, right, bottom, (int) (extent / count), margin);
+        for (int i = shapes.size() - 1; i >= 0; i--) {
+            IShape s = shapes.get(i);
+            if (s == null) {
+                continue;
+            }
+            BoundingBox b = s.getBoundingBox();
+            if (culler.isHidden(b.getLeft(), b.getTop(), b.getRight(), b.getBottom())) {
+                hidden.set(i);
+            } else {
+                culler.addOccluder(s);
+            }
+        }
+        return hidden;
+    }
+
+    /**
+     * Is the box hidden under the occluders added so far?
+     *
+     * @param left   the leftmost column of pixels the shape may draw
+     * @param top
+     * @param right  the rightmost column, included
+     * @param bottom
+     */
+    boolean isHidden(int left, int top, int right, int bottom) {
+        int x0 = column((long) left - margin);
+        int x1 = column((long) right + margin);
+        int y0 = row((long) top - margin);
+        int y1 = row((long) bottom + margin);
+        if (x0 < 0 || y0 < 0 || x1 >= columns || y1 >= rows) {
+            return false;
+        }
+        for (int y = y0; y <= y1; y++) {
+            if (!allSet(y * words, x0, x1)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Mark the cells entirely inside the opaque area left..right-1,
+     * top..bottom-1.
+     */
+    void addOccluder(int left, int top, int right, int bottom) {
+        // the first cell starting at or after left, the last ending at or before right
+        int x0 = Math.max(0, column((long) left + cellSize - 1));
+        int x1 = Math.min(columns, column(right)) - 1;
+        int y0 = Math.max(0, row((long) top + cellSize - 1));
+        int y1 = Math.min(rows, row(bottom)) - 1;
+        for (int y = y0; y <= y1; y++) {
+            setRange(y * words, x0, x1);
+        }
+    }
+
+    /**
+     * Add the opaque part of the shape as an occluder, if it has one.
+     * Groups and instanced shapes don't occlude anything here.
+     */
+    void addOccluder(IShape s) {
+        if (s.getColor().getAlpha() != 255) {
+            return;
+        }
+        if (s instanceof Rectangle) {
+            Rectangle r = (Rectangle) s;
+            int left = r.getAnchorPoint().x - r.width / 2;
+            int top = r.getAnchorPoint().y - r.height / 2;
+            addOccluder(left, top, left + r.width, top + r.height);
+        } else if (s instanceof Circle) {
+            int d = s.getLength();
+            addOval(s.getAnchorPoint().x - d / 2, s.getAnchorPoint().y - d / 2, d, d);
+        }
+    }
+
+    /**
+     * Add the inscribed square of an oval drawn with fillOval(), less a
+     * pixel all around.
+     */
+    void addOval(int x, int y, int width, int height) {
+        double halfWidth = width / 2.0 / Math.sqrt(2) - 1;
+        double halfHeight = height / 2.0 / Math.sqrt(2) - 1;
+        if (halfWidth <= 0 || halfHeight <= 0) {
+            return;
+        }
+        double cx = x + width / 2.0;
+        double cy = y + height / 2.0;
+        addOccluder((int) Math.ceil(cx - halfWidth), (int) Math.ceil(cy - halfHeight),
+                (int) Math.floor(cx + halfWidth), (int) Math.floor(cy + halfHeight));
+    }
+
+    private int column(long x) {
+        return (int) Math.max(-1, Math.min(Integer.MAX_VALUE, Math.floorDiv(x - originX, cellSize)));
+    }
+
+    private int row(long y) {
+        return (int) Math.max(-1, Math.min(Integer.MAX_VALUE, Math.floorDiv(y - originY, cellSize)));
+    }
+
+    private void setRange(int base, int from, int to) {
+        if (from > to) {
+            return;
+        }
+        int first = from >>> 6;
+        int last = to >>> 6;
+        long firstMask = -1L << (from & 63);
+        long lastMask = -1L >>> (63 - (to & 63));
+        if (first == last) {
+            bits[base + first] |= firstMask & lastMask;
+            return;
+        }
+        bits[base + first] |= firstMask;
+        Arrays.fill(bits, base + first + 1, base + last, -1L);
+        bits[base + last] |= lastMask;
+    }
+
+    private boolean allSet(int base, int from, int to) {
+        int first = from >>> 6;
+        int last = to >>> 6;
+        long firstMask = -1L << (from & 63);
+        long lastMask = -1L >>> (63 - (to & 63));
+        if (first == last) {
+            long mask = firstMask & lastMask;
+            return (bits[base + first] & mask) == mask;
+        }
+        if ((bits[base + first] & firstMask) != firstMask || (bits[base + last] & lastMask) != lastMask) {
+            return false;
+        }
+        for (int i = base + first + 1; i < base + last; i++) {
+            if (bits[i] != -1L) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
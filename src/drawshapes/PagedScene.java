@@ -0,0 +1,712 @@
+package drawshapes;
+
+import java.awt.Color;
+import java.awt.Point;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Scanner;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+
+/**
+ * A scene that can be bigger than the heap.
+ *
+ * Shapes are kept in pages of PAGE_SIZE shapes, in drawing order. Pages
+ * live in a page store on disk (compressed the same way as the chunks of
+ * a ChunkedSceneFile) and only the recently used ones are kept in memory,
+ * evicting the least recently used page when the estimated size of the
+ * loaded pages goes over the byte budget.
+ *
+ * draw(), select(Point) and select(IShape) only load the pages whose
+ * bounding box matters to them. Iterating over the scene still visits
+ * every shape, loading pages one after another.
+ *
+ * An evicted page is written back to the store if it changed, so the
+ * budget should be large enough for the pages that one operation works on.
+ * A shape taken out of the scene may be on a page that was evicted since,
+ * which reads back new shapes, so edits find their shapes again by id and
+ * change them one page at a time, see moveShapes().
+ *
+ * Shapes are found by id through an index from ids to pages, so looking
+ * up, replacing or removing a shape only loads its own page.
+ *
+ * The store is append only: a changed page is written after the others.
+ * Copies of the scene share the store, each with its own pages, so a copy
+ * costs no more than the page index. The store is deleted when the scene
+ * and all its copies are closed.
+ */
+public class PagedScene extends Scene {
+    static final int PAGE_SIZE = 1024;
+    // rough heap size of one shape with its Point and BoundingBox
+    static final int BYTES_PER_SHAPE = 300;
+
+    /**
+     * A page of shapes. shapes is null when the page is not in memory.
+     */
+    private static class Page {
+        BoundingBox bounds;
+        long offset;
+        int length;
+        int count;
+        int hash;
+        // shapes on the page were edited since it was read
+        boolean dirty;
+        List<IShape> shapes;
+    }
+
+    /**
+     * The page store file, shared by copies until the last one is closed.
+     */
+    private static class Store {
+        final File file;
+        final FileChannel channel;
+        long end;
+        int users = 1;
+
+        Store() throws IOException {
+            file = File.createTempFile("drawshapes", ".pages");
+            file.deleteOnExit();
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+    }
+
+    private final long byteBudget;
+    private Store store;
+    private List<Page> pages = new ArrayList<Page>();
+    // loaded pages, least recently used first
+    private Map<Page, Boolean> lru = new LinkedHashMap<Page, Boolean>(16, 0.75f, true);
+    private long residentBytes;
+    // which page every shape is on, by id
+    private IdIndex pageOf = new IdIndex();
+    // true while loading, when we tell listeners about the whole scene at the end
+    private boolean loading;
+
+    /**
+     * Create an empty paged scene.
+     *
+     * @param byteBudget how many bytes of shapes to keep in memory
+     * @throws IOException if the page store cannot be created
+     */
+    public PagedScene(long byteBudget) throws IOException {
+        this(byteBudget, new Store());
+    }
+
+    private PagedScene(long byteBudget, Store store) {
+        this.byteBudget = byteBudget;
+        this.store = store;
+    }
+
+    /**
+     * Open a scene file (in the File->Save format) as a paged scene.
+     *
+     * @param file
+     * @param byteBudget
+     * @return
+     * @throws Exception
+     */
+    public static PagedScene open(File file, long byteBudget) throws Exception {
+        PagedScene scene = new PagedScene(byteBudget);
+        scene.loadShapes(file);
+        return scene;
+    }
+
+    public long getByteBudget() {
+        return byteBudget;
+    }
+
+    /**
+     * Estimated number of bytes of shapes currently in memory.
+     */
+    public long getResidentBytes() {
+        return residentBytes;
+    }
+
+    public int getPageCount() {
+        return pages.size();
+    }
+
+    public int getResidentPageCount() {
+        return lru.size();
+    }
+
+    /**
+     * Make sure the page is in memory and mark it as the most recently used.
+     */
+    private List<IShape> fault(Page p) {
+        if (p.shapes != null) {
+            lru.get(p);
+            return p.shapes;
+        }
+        try {
+            ByteBuffer buf = ByteBuffer.allocate(p.length);
+            while (buf.hasRemaining()) {
+                if (store.channel.read(buf, p.offset + buf.position()) < 0) {
+                    throw new IOException("Unexpected end of page store");
+                }
+            }
+            List<IShape> shapes = new ArrayList<IShape>(p.count);
+            ChunkedSceneFile.decode(buf.array(), shapes, new ArrayList<Long>(p.count));
+            p.hash = Arrays.hashCode(buf.array());
+            p.shapes = shapes;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        lru.put(p, Boolean.TRUE);
+        residentBytes += (long) p.count * BYTES_PER_SHAPE;
+        evict(p);
+        return p.shapes;
+    }
+
+    /**
+     * Evict least recently used pages until we are within the budget,
+     * never evicting the given page.
+     */
+    private void evict(Page keep) {
+        Iterator<Page> it = lru.keySet().iterator();
+        while (residentBytes > byteBudget && it.hasNext()) {
+            Page p = it.next();
+            if (p == keep) {
+                continue;
+            }
+            writeBack(p);
+            it.remove();
+            p.shapes = null;
+            residentBytes -= (long) p.count * BYTES_PER_SHAPE;
+        }
+    }
+
+    /**
+     * Write a loaded page to the store if it changed since it was read.
+     */
+    private void writeBack(Page p) {
+        List<Long> order = Collections.nCopies(p.shapes.size(), 0L);
+        byte[] data = ChunkedSceneFile.encode(p.shapes, order);
+        p.bounds = ChunkedSceneFile.bounds(p.shapes, p.bounds);
+        int hash = Arrays.hashCode(data);
+        if (!p.dirty && p.length == data.length && p.hash == hash) {
+            return;
+        }
+        try {
+            ByteBuffer buf = ByteBuffer.wrap(data);
+            long offset = store.end;
+            while (buf.hasRemaining()) {
+                store.end += store.channel.write(buf, store.end);
+            }
+            p.offset = offset;
+            p.length = data.length;
+            p.hash = hash;
+            p.dirty = false;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void writeBackAll() {
+        for (Page p : lru.keySet()) {
+            writeBack(p);
+        }
+    }
+
+    /**
+     * Does the page matter for a query over the given box? Loaded pages
+     * always do, since their shapes may have moved since the bounds were
+     * computed.
+     */
+    private boolean mayIntersect(Page p, BoundingBox box) {
+        return p.shapes != null || p.bounds == null || box == null || p.bounds.intersects(box);
+    }
+
+    @Override
+    protected void forEachVisible(BoundingBox clip, Consumer<IShape> action) {
+        for (Page p : pages) {
+            if (mayIntersect(p, clip)) {
+                for (IShape s : fault(p)) {
+                    if (isVisible(s, clip)) {
+                        action.accept(s);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Only what is in view, so publishing doesn't load every page.
+     */
+    @Override
+    protected BoundingBox snapshotRegion() {
+        return getViewport();
+    }
+
+    /**
+     * No indexes, they would need every page; queries scan the pages.
+     */
+    @Override
+    ShapeIndex shapeIndex() {
+        return null;
+    }
+
+    /**
+     * Nothing is culled, finding what is hidden would need every page.
+     */
+    @Override
+    BitSet hiddenShapes(double scale) {
+        return null;
+    }
+
+    @Override
+    public List<IShape> select(Point point) {
+        BoundingBox box = new BoundingBox(point.x, point.x, point.y, point.y);
+        List<IShape> selected = new LinkedList<IShape>();
+        for (Page p : pages) {
+            if (mayIntersect(p, box)) {
+                for (IShape s : fault(p)) {
+                    if (s.contains(point)) {
+                        selected.add(s);
+                    }
+                }
+            }
+        }
+        return selected;
+    }
+
+    @Override
+    public List<IShape> select(IShape shape) {
+        List<IShape> selected = new LinkedList<IShape>();
+        for (Page p : pages) {
+            if (mayIntersect(p, shape.getBoundingBox())) {
+                for (IShape s : fault(p)) {
+                    if (s.intersects(shape)) {
+                        selected.add(s);
+                    }
+                }
+            }
+        }
+        return selected;
+    }
+
+    /**
+     * Iterate over every shape in drawing order, loading pages as needed.
+     */
+    @Override
+    public Iterator<IShape> iterator() {
+        return new Iterator<IShape>() {
+            private int page = 0;
+            private Iterator<IShape> it = Collections.emptyIterator();
+
+            @Override
+            public boolean hasNext() {
+                while (!it.hasNext() && page < pages.size()) {
+                    it = fault(pages.get(page++)).iterator();
+                }
+                return it.hasNext();
+            }
+
+            @Override
+            public IShape next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return it.next();
+            }
+        };
+    }
+
+    /**
+     * Apply an edit to every selected shape, one page at a time, so that
+     * no page is evicted between loading a shape and changing it.
+     *
+     * @return the changed shapes
+     */
+    private List<IShape> editSelected(Consumer<IShape> edit) {
+        List<IShape> edited = new ArrayList<IShape>();
+        for (Page p : pages) {
+            boolean changed = false;
+            for (IShape s : fault(p)) {
+                if (s.isSelected()) {
+                    edit.accept(s);
+                    edited.add(s);
+                    changed = true;
+                }
+            }
+            p.dirty |= changed;
+        }
+        return edited;
+    }
+
+    /**
+     * Apply an edit to the shapes with the same ids as the given ones,
+     * one page at a time, like editSelected().
+     *
+     * @return the changed shapes, as they are in the scene
+     */
+    private List<IShape> editById(Collection<IShape> shapes, Consumer<IShape> edit) {
+        List<IShape> edited = new ArrayList<IShape>();
+        for (Map.Entry<Integer, Set<Long>> e : byPage(shapes).entrySet()) {
+            Page p = pages.get(e.getKey());
+            Set<Long> ids = e.getValue();
+            for (IShape s : fault(p)) {
+                if (ids.contains(s.getId())) {
+                    edit.accept(s);
+                    edited.add(s);
+                }
+            }
+            p.dirty = true;
+        }
+        return edited;
+    }
+
+    /**
+     * The ids of the shapes, by the page they are on, in page order.
+     */
+    private Map<Integer, Set<Long>> byPage(Collection<IShape> shapes) {
+        Map<Integer, Set<Long>> byPage = new TreeMap<Integer, Set<Long>>();
+        for (IShape s : shapes) {
+            int page = pageOf.get(s.getId());
+            if (page != -1) {
+                byPage.computeIfAbsent(page, k -> new HashSet<Long>()).add(s.getId());
+            }
+        }
+        return byPage;
+    }
+
+    @Override
+    public void move(int dx, int dy) {
+        fireMoved(editSelected(s -> s.move(dx, dy)), dx, dy);
+    }
+
+    @Override
+    public void moveShapes(Collection<IShape> shapes, int dx, int dy) {
+        fireMoved(editById(shapes, s -> s.move(dx, dy)), dx, dy);
+    }
+
+    private void fireMoved(List<IShape> moved, int dx, int dy) {
+        if (!moved.isEmpty()) {
+            for (SceneListener l : getListeners()) {
+                l.shapesMoved(moved, dx, dy);
+            }
+        }
+    }
+
+    @Override
+    public void recolor(Color color) {
+        fireRecolored(editSelected(s -> s.setColor(color)), color);
+    }
+
+    @Override
+    public void recolorShapes(Collection<IShape> shapes, Color color) {
+        fireRecolored(editById(shapes, s -> s.setColor(color)), color);
+    }
+
+    private void fireRecolored(List<IShape> recolored, Color color) {
+        if (!recolored.isEmpty()) {
+            for (SceneListener l : getListeners()) {
+                l.shapesRecolored(recolored, color);
+            }
+        }
+    }
+
+    @Override
+    public void scale(boolean up) {
+        fireScaled(editSelected(up ? IShape::scaleUp : IShape::scaleDown));
+    }
+
+    @Override
+    public void scale(double factor) {
+        fireScaled(editSelected(s -> s.scale(factor)));
+    }
+
+    private void fireScaled(List<IShape> scaled) {
+        if (!scaled.isEmpty()) {
+            for (SceneListener l : getListeners()) {
+                l.shapesScaled(scaled);
+            }
+        }
+    }
+
+    @Override
+    public void setSelected(Collection<IShape> shapes, boolean selected) {
+        editById(shapes, s -> s.setSelected(selected));
+    }
+
+    @Override
+    public void addShape(IShape s) {
+        Page last = pages.isEmpty() ? null : pages.get(pages.size() - 1);
+        if (last == null || last.count >= PAGE_SIZE) {
+            last = new Page();
+            last.shapes = new ArrayList<IShape>(PAGE_SIZE);
+            // an empty page that was never written always differs from what we encode
+            last.length = -1;
+            pages.add(last);
+            lru.put(last, Boolean.TRUE);
+        }
+        if (pageOf.containsKey(s.getId())) {
+            s.setId(AbstractShape.newId());
+        }
+        fault(last).add(s);
+        pageOf.put(s.getId(), pages.size() - 1);
+        last.count++;
+        residentBytes += BYTES_PER_SHAPE;
+        evict(last);
+        if (!loading) {
+            for (SceneListener l : getListeners()) {
+                l.shapeAdded(s);
+            }
+        }
+    }
+
+    @Override
+    public void addShapes(Collection<IShape> shapes) {
+        for (IShape s : shapes) {
+            addShape(s);
+        }
+    }
+
+    @Override
+    public void removeShapes(Collection<IShape> shapesToRemove) {
+        // only the pages holding the shapes are loaded, each one once
+        for (Map.Entry<Integer, Set<Long>> e : byPage(shapesToRemove).entrySet()) {
+            Page p = pages.get(e.getKey());
+            Set<Long> ids = e.getValue();
+            List<IShape> shapes = fault(p);
+            if (shapes.removeIf(s -> ids.contains(s.getId()))) {
+                residentBytes -= (long) (p.count - shapes.size()) * BYTES_PER_SHAPE;
+                p.count = shapes.size();
+            }
+            for (long id : ids) {
+                pageOf.remove(id);
+            }
+        }
+        for (SceneListener l : getListeners()) {
+            l.shapesRemoved(shapesToRemove);
+        }
+    }
+
+    @Override
+    public void replaceShape(IShape curr, IShape newShape) {
+        int page = pageOf.get(curr.getId());
+        if (page == -1) {
+            return;
+        }
+        List<IShape> shapes = fault(pages.get(page));
+        int index = indexOfId(shapes, curr.getId());
+        if (index != -1) {
+            pageOf.remove(curr.getId());
+            if (pageOf.containsKey(newShape.getId())) {
+                newShape.setId(AbstractShape.newId());
+            }
+            pageOf.put(newShape.getId(), page);
+            shapes.set(index, newShape);
+            for (SceneListener l : getListeners()) {
+                l.shapeReplaced(curr, newShape);
+            }
+        }
+    }
+
+    /**
+     * Shapes on an evicted page are read back as new objects, so shapes
+     * are matched by id rather than by reference.
+     */
+    private static int indexOfId(List<IShape> shapes, long id) {
+        for (int i = 0; i < shapes.size(); i++) {
+            if (shapes.get(i).getId() == id) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public IShape getShapeById(long id) {
+        int page = pageOf.get(id);
+        if (page == -1) {
+            return null;
+        }
+        List<IShape> shapes = fault(pages.get(page));
+        int index = indexOfId(shapes, id);
+        return index == -1 ? null : shapes.get(index);
+    }
+
+    @Override
+    int indexOf(IShape shape) {
+        int page = pageOf.get(shape.getId());
+        if (page == -1) {
+            return -1;
+        }
+        int index = indexOfId(fault(pages.get(page)), shape.getId());
+        if (index == -1) {
+            return -1;
+        }
+        for (int i = 0; i < page; i++) {
+            index += pages.get(i).count;
+        }
+        return index;
+    }
+
+    @Override
+    int size() {
+        int n = 0;
+        for (Page p : pages) {
+            n += p.count;
+        }
+        return n;
+    }
+
+    @Override
+    IShape getShape(int index) {
+        for (Page p : pages) {
+            if (index < p.count) {
+                return fault(p).get(index);
+            }
+            index -= p.count;
+        }
+        throw new IndexOutOfBoundsException();
+    }
+
+    @Override
+    void setShape(int index, IShape s) {
+        for (int page = 0; page < pages.size(); page++) {
+            Page p = pages.get(page);
+            if (index < p.count) {
+                List<IShape> shapes = fault(p);
+                IShape old = shapes.set(index, s);
+                // when swapping within a page the old shape is still here
+                if (pageOf.get(old.getId()) == page && indexOfId(shapes, old.getId()) == -1) {
+                    pageOf.remove(old.getId());
+                }
+                pageOf.put(s.getId(), page);
+                return;
+            }
+            index -= p.count;
+        }
+        throw new IndexOutOfBoundsException();
+    }
+
+    @Override
+    void removeShapeAt(int index) {
+        for (Page p : pages) {
+            if (index < p.count) {
+                pageOf.remove(fault(p).remove(index).getId());
+                p.count--;
+                residentBytes -= BYTES_PER_SHAPE;
+                return;
+            }
+            index -= p.count;
+        }
+        throw new IndexOutOfBoundsException();
+    }
+
+    private void clear() {
+        pages = new ArrayList<Page>();
+        lru = new LinkedHashMap<Page, Boolean>(16, 0.75f, true);
+        residentBytes = 0;
+        pageOf = new IdIndex();
+    }
+
+    @Override
+    public void loadShapes(File selectedFile) throws Exception {
+        clear();
+        loading = true;
+        try (Scanner sc = new Scanner(new FileInputStream(selectedFile))) {
+            while (sc.hasNext()) {
+                addShape(readShape(sc));
+            }
+        } finally {
+            loading = false;
+        }
+        fireReloaded();
+    }
+
+    @Override
+    public void loadChunked(File selectedFile) throws IOException {
+        throw new UnsupportedOperationException("a paged scene cannot open chunked files");
+    }
+
+    /**
+     * Copy the scene without loading any pages: the copy shares the page
+     * store, and pages changed later in either are written to a new place
+     * in it.
+     */
+    @Override
+    public Scene copy() {
+        writeBackAll();
+        store.users++;
+        PagedScene sc = new PagedScene(byteBudget, store);
+        for (Page p : pages) {
+            Page c = new Page();
+            c.bounds = p.bounds;
+            c.offset = p.offset;
+            c.length = p.length;
+            c.count = p.count;
+            c.hash = p.hash;
+            sc.pages.add(c);
+        }
+        sc.pageOf = pageOf.copy();
+        return sc;
+    }
+
+    /**
+     * Take over the pages of another paged scene, which should not be
+     * used after this, or add the shapes of any other scene.
+     */
+    @Override
+    public void reload(Scene otherScene) {
+        if (otherScene instanceof PagedScene) {
+            PagedScene other = (PagedScene) otherScene;
+            // our reference to the store, if we shared it, becomes theirs
+            close();
+            this.store = other.store;
+            this.pages = other.pages;
+            this.lru = other.lru;
+            this.residentBytes = other.residentBytes;
+            this.pageOf = other.pageOf;
+        } else {
+            clear();
+            loading = true;
+            try {
+                for (IShape s : otherScene) {
+                    addShape(s);
+                }
+            } finally {
+                loading = false;
+            }
+        }
+        fireReloaded();
+    }
+
+    /**
+     * Delete the page store, unless a copy of the scene still uses it.
+     */
+    @Override
+    public void close() {
+        if (store == null) {
+            return;
+        }
+        if (--store.users == 0) {
+            try {
+                store.channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            store.file.delete();
+        }
+        store = null;
+    }
+}
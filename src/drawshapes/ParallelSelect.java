@@ -0,0 +1,89 @@
+package drawshapes;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Predicate;
+
+/**
+ * Finds the shapes matching a test, in drawing order, splitting big lists
+ * into chunks that are tested on a ForkJoinPool.
+ *
+ * Each chunk collects its matches in order and the results are joined
+ * left to right, so the result is the same as a sequential scan. Lists
+ * shorter than PARALLEL_THRESHOLD are always scanned sequentially, since
+ * forking costs more than it saves there.
+ *
+ * The list may contain nulls, which are skipped, and must not change
+ * during the scan.
+ */
+class ParallelSelect extends RecursiveTask<List<IShape>> {
+    private static final long serialVersionUID = 1L;
+    // below this many shapes, a parallel scan doesn't pay off
+    static final int PARALLEL_THRESHOLD = 32768;
+    // shapes tested by one task without splitting further
+    static final int CHUNK = 4096;
+
+    private final List<IShape> shapes;
+    private final int from;
+    private final int to;
+    private final Predicate<IShape> test;
+
+    private ParallelSelect(List<IShape> shapes, int from, int to, Predicate<IShape> test) {
+        this.shapes = shapes;
+        this.from = from;
+        this.to = to;
+        this.test = test;
+    }
+
+    /**
+     * Sequentially or on the common pool, depending on the size of the
+     * list and the number of cores.
+     */
+    static List<IShape> select(List<IShape> shapes, Predicate<IShape> test) {
+        boolean parallel = shapes.size() >= PARALLEL_THRESHOLD && ForkJoinPool.getCommonPoolParallelism() > 1;
+        return select(shapes, test, parallel ? ForkJoinPool.commonPool() : null);
+    }
+
+    /**
+     * @param shapes
+     * @param test
+     * @param pool   the pool to run on, or null to scan sequentially
+     * @return the matching shapes, in the order of the list
+     */
+    static List<IShape> select(List<IShape> shapes, Predicate<IShape> test, ForkJoinPool pool) {
+        if (pool == null) {
+            return scan(shapes, 0, shapes.size(), test);
+        }
+        return pool.invoke(new ParallelSelect(shapes, 0, shapes.size(), test));
+    }
+
+    private static List<IShape> scan(List<IShape> shapes, int from, int to, Predicate<IShape> test) {
+        List<IShape> selected = new ArrayList<IShape>();
+        for (int i = from; i < to; i++) {
+            IShape s = shapes.get(i);
+            if (s != null && test.test(s)) {
+                selected.add(s);
+            }
+        }
+        return selected;
+    }
+
+    @Override
+    protected List<IShape> compute() {
+        if (to - from <= CHUNK) {
+            return scan(shapes, from, to, test);
+        }
+        int mid = (from + to) >>> 1;
+        ParallelSelect right = new ParallelSelect(shapes, mid, to, test);
+        right.fork();
+        List<IShape> selected = new ParallelSelect(shapes, from, mid, test).compute();
+        List<IShape> rest = right.join();
+        if (selected.isEmpty()) {
+            return rest;
+        }
+        selected.addAll(rest);
+        return selected;
+    }
+}
@@ -0,0 +1,103 @@
+package drawshapes;
+
+import java.awt.Point;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Predicate;
+
+/**
+ * Times Scene.select() sequentially and on ForkJoinPools of 1 up to all
+ * cores, for point and rectangle queries, and checks that every parallel
+ * result is the same as the sequential one, in the same order.
+ *
+ * Run with: java drawshapes.ParallelSelectBenchmark [--count N]
+ * [--queries N] [--distribution UNIFORM]
+ */
+public class ParallelSelectBenchmark {
+    private static final int WORLD = 20000;
+
+    public static void main(String[] args) {
+        int count = SceneGenerator.intArg(args, "--count", 1000000);
+        int queries = SceneGenerator.intArg(args, "--queries", 100);
+        SceneGenerator.Distribution distribution = SceneGenerator.Distribution
+                .valueOf(SceneGenerator.stringArg(args, "--distribution", "UNIFORM").toUpperCase());
+        int cores = Runtime.getRuntime().availableProcessors();
+
+        Scene scene = new SceneGenerator(42, WORLD).generate(count, distribution);
+        Random rand = new Random(7);
+        Point[] points = new Point[queries];
+        IShape[] boxes = new IShape[queries];
+        for (int i = 0; i < queries; i++) {
+            points[i] = new Point(rand.nextInt(WORLD), rand.nextInt(WORLD));
+            int x = rand.nextInt(WORLD);
+            int y = rand.nextInt(WORLD);
+            boxes[i] = new SelectionRectangle(x, x + 500, y, y + 500);
+        }
+
+        System.out.printf("%d %s shapes, %d queries, %d cores%n", count, distribution, queries, cores);
+        System.out.printf("%-12s %12s %12s %8s%n", "", "point ms", "rect ms", "speedup");
+        List<Integer> runs = new ArrayList<Integer>();
+        // sequential first, then 1, 2, 4 ... and all cores
+        runs.add(0);
+        for (int p = 1; p < cores; p *= 2) {
+            runs.add(p);
+        }
+        runs.add(cores);
+        double sequential = 0;
+        for (int p : runs) {
+            ForkJoinPool pool = p == 0 ? null : new ForkJoinPool(p);
+            double[] ms = new double[2];
+            // warm up, then measure
+            for (int round = 0; round < 2; round++) {
+                ms[0] = time(scene, pool, points.length, i -> s -> s.contains(points[i]));
+                ms[1] = time(scene, pool, boxes.length, i -> s -> s.intersects(boxes[i]));
+            }
+            if (p == 0) {
+                sequential = ms[0] + ms[1];
+            } else {
+                check(scene, pool, points, boxes);
+                pool.shutdown();
+            }
+            System.out.printf("%-12s %12.3f %12.3f %7.2fx%n", p == 0 ? "sequential" : p + " cores", ms[0], ms[1],
+                    sequential / (ms[0] + ms[1]));
+        }
+    }
+
+    private interface Query {
+        Predicate<IShape> get(int i);
+    }
+
+    /**
+     * Average milliseconds per query.
+     */
+    private static double time(Scene scene, ForkJoinPool pool, int queries, Query query) {
+        long start = System.nanoTime();
+        for (int i = 0; i < queries; i++) {
+            scene.select(query.get(i), pool);
+        }
+        return (System.nanoTime() - start) / 1e6 / queries;
+    }
+
+    private static void check(Scene scene, ForkJoinPool pool, Point[] points, IShape[] boxes) {
+        for (int i = 0; i < points.length; i++) {
+            Point p = points[i];
+            IShape b = boxes[i];
+            same(scene.select(s -> s.contains(p), null), scene.select(s -> s.contains(p), pool));
+            same(scene.select(s -> s.intersects(b), null), scene.select(s -> s.intersects(b), pool));
+        }
+    }
+
+    private static void same(List<IShape> expected, List<IShape> actual) {
+        if (expected.size() != actual.size()) {
+            throw new AssertionError(expected.size() + " shapes selected sequentially but " + actual.size()
+                    + " in parallel");
+        }
+        for (int i = 0; i < expected.size(); i++) {
+            if (expected.get(i) != actual.get(i)) {
+                throw new AssertionError("parallel selection out of order at " + i);
+            }
+        }
+    }
+}
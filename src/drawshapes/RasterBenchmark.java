@@ -0,0 +1,87 @@
+package drawshapes;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Point;
+import java.awt.image.BufferedImage;
+import java.util.Random;
+
+/**
+ * Compares drawing a scene through Java2D (one fillRect()/fillOval() per
+ * shape, as the shapes draw themselves) with RasterRenderer writing into
+ * the pixels of the image.
+ *
+ * Run with: java drawshapes.RasterBenchmark [shapes] [frames]
+ */
+public class RasterBenchmark {
+    private static final int WIDTH = 1400;
+    private static final int HEIGHT = 1200;
+
+    public static void main(String[] args) {
+        int n = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        int frames = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+
+        Random rand = new Random(42);
+        Color[] colors = { Color.RED, Color.BLUE, Color.GREEN, Color.YELLOW, Color.CYAN, Color.BLACK };
+        Scene scene = new Scene();
+        for (int i = 0; i < n; i++) {
+            int x = rand.nextInt(WIDTH);
+            int y = rand.nextInt(HEIGHT);
+            int size = 2 + rand.nextInt(30);
+            Color color = colors[rand.nextInt(colors.length)];
+            switch (i % 3) {
+                case 0:
+                    scene.addShape(new Square(color, x, y, size));
+                    break;
+                case 1:
+                    scene.addShape(new Circle(color, new Point(x, y), size));
+                    break;
+                default:
+                    scene.addShape(new Rectangle(new Point(x, y), size, size / 2 + 1, color));
+            }
+        }
+        scene.setBatchRendering(false);
+        Viewport viewport = new Viewport();
+
+        BufferedImage java2d = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+        BufferedImage raster = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+
+        // the first half of the frames are warm up
+        long java2dTime = 0;
+        long rasterTime = 0;
+        for (int frame = 0; frame < frames * 2; frame++) {
+            long start = System.nanoTime();
+            Graphics2D g = java2d.createGraphics();
+            g.setColor(Color.WHITE);
+            g.fillRect(0, 0, WIDTH, HEIGHT);
+            scene.draw(g);
+            g.dispose();
+            long t1 = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            RasterRenderer r = new RasterRenderer(raster, viewport);
+            r.clear(Color.WHITE.getRGB());
+            scene.render(r);
+            r.dispose();
+            long t2 = System.nanoTime() - start;
+
+            if (frame >= frames) {
+                java2dTime += t1;
+                rasterTime += t2;
+            }
+        }
+
+        int differ = 0;
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                if (java2d.getRGB(x, y) != raster.getRGB(x, y)) {
+                    differ++;
+                }
+            }
+        }
+        System.out.printf("%d shapes, %dx%d, %d frames%n", n, WIDTH, HEIGHT, frames);
+        System.out.printf("Java2D fillRect/fillOval: %8.2f ms/frame%n", java2dTime / 1e6 / frames);
+        System.out.printf("RasterRenderer:           %8.2f ms/frame%n", rasterTime / 1e6 / frames);
+        System.out.printf("pixels that differ:       %8.3f%%%n", 100.0 * differ / (WIDTH * HEIGHT));
+    }
+}
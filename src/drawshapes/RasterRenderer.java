@@ -0,0 +1,216 @@
+package drawshapes;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Arrays;
+
+/**
+ * Software renderer for rectangles, squares and circles that writes
+ * straight into the int[] pixels of a BufferedImage, without going
+ * through Java2D.
+ *
+ * Rectangles are filled one scanline at a time with Arrays.fill().
+ * Circles are filled with horizontal spans found by the midpoint circle
+ * algorithm. The instances of an InstancedShape are filled the same way.
+ * Everything is clipped to the image. Other kinds of shapes are drawn with
+ * a Graphics2D on the same image, in drawing order.
+ *
+ * Shapes are given in world coordinates and mapped to the image through
+ * a Viewport.
+ */
+public class RasterRenderer {
+    private final BufferedImage image;
+    private final int[] pixels;
+    private final int width;
+    private final int height;
+    private final Viewport viewport;
+    private final double scale;
+    private Graphics2D fallback;
+
+    /**
+     * @param image    must be TYPE_INT_RGB or TYPE_INT_ARGB
+     * @param viewport maps world coordinates to the image
+     */
+    public RasterRenderer(BufferedImage image, Viewport viewport) {
+        if (image.getType() != BufferedImage.TYPE_INT_RGB && image.getType() != BufferedImage.TYPE_INT_ARGB) {
+            throw new IllegalArgumentException("Image must have int pixels");
+        }
+        this.image = image;
+        this.pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        this.width = image.getWidth();
+        this.height = image.getHeight();
+        this.viewport = viewport;
+        this.scale = viewport.getScale();
+    }
+
+    /**
+     * The region of the world that ends up in the image.
+     */
+    public BoundingBox getWorldBounds() {
+        return viewport.getWorldBounds(width, height);
+    }
+
+    /**
+     * Pixels per world unit.
+     */
+    public double getScale() {
+        return scale;
+    }
+
+    /**
+     * Fill the whole image with one color.
+     *
+     * @param rgb
+     */
+    public void clear(int rgb) {
+        Arrays.fill(pixels, rgb);
+    }
+
+    /**
+     * Draw the next shape, in drawing order.
+     *
+     * @param s
+     */
+    public void add(IShape s) {
+        int rgb = (s.isSelected() ? Util.selectedColor(s.getColor()) : s.getColor()).getRGB();
+        if (s instanceof Circle) {
+            Circle c = (Circle) s;
+            int d = c.getLength();
+            double cx = (c.getAnchorPoint().x - d / 2 + d / 2.0 - viewport.getOriginX()) * scale;
+            double cy = (c.getAnchorPoint().y - d / 2 + d / 2.0 - viewport.getOriginY()) * scale;
+            fillCircle((int) Math.round(cx), (int) Math.round(cy), (int) Math.round(d / 2.0 * scale), rgb);
+        } else if (s instanceof Rectangle) {
+            Rectangle r = (Rectangle) s;
+            int left = r.getAnchorPoint().x - r.width / 2;
+            int top = r.getAnchorPoint().y - r.height / 2;
+            fillWorldRect(left, top, left + r.width, top + r.height, rgb);
+        } else if (s instanceof InstancedShape) {
+            addInstances((InstancedShape) s);
+        } else {
+            if (fallback == null) {
+                fallback = image.createGraphics();
+                fallback.transform(viewport.getTransform());
+            }
+            s.draw(fallback);
+        }
+    }
+
+    /**
+     * Draw every instance that is in the image, with the same spans as a
+     * single circle or rectangle.
+     */
+    private void addInstances(InstancedShape s) {
+        BoundingBox world = getWorldBounds();
+        if (!s.getBoundingBox().intersects(world)) {
+            return;
+        }
+        int w = s.getWidth();
+        int h = s.getHeight();
+        int r = (int) Math.round(w / 2.0 * scale);
+        Color last = null;
+        int rgb = 0;
+        for (int i = 0; i < s.getCount(); i++) {
+            int left = s.x(i) - w / 2;
+            int top = s.y(i) - h / 2;
+            if (left > world.getRight() || left + w < world.getLeft() || top > world.getBottom()
+                    || top + h < world.getTop()) {
+                continue;
+            }
+            Color c = s.drawColor(i);
+            if (c != last) {
+                rgb = c.getRGB();
+                last = c;
+            }
+            if (s.isOval()) {
+                double cx = (left + w / 2.0 - viewport.getOriginX()) * scale;
+                double cy = (top + w / 2.0 - viewport.getOriginY()) * scale;
+                fillCircle((int) Math.round(cx), (int) Math.round(cy), r, rgb);
+            } else {
+                fillWorldRect(left, top, left + w, top + h, rgb);
+            }
+        }
+    }
+
+    /**
+     * Release the Graphics used for shapes we can't draw ourselves.
+     */
+    public void dispose() {
+        if (fallback != null) {
+            fallback.dispose();
+            fallback = null;
+        }
+    }
+
+    private void fillWorldRect(int left, int top, int right, int bottom, int rgb) {
+        int x0 = (int) Math.floor((left - viewport.getOriginX()) * scale);
+        int y0 = (int) Math.floor((top - viewport.getOriginY()) * scale);
+        // always at least one pixel, so tiny shapes don't disappear
+        int x1 = Math.max(x0 + 1, (int) Math.floor((right - viewport.getOriginX()) * scale));
+        int y1 = Math.max(y0 + 1, (int) Math.floor((bottom - viewport.getOriginY()) * scale));
+        fillRect(x0, y0, x1, y1, rgb);
+    }
+
+    /**
+     * Fill pixels x0 &lt;= x &lt; x1, y0 &lt;= y &lt; y1.
+     */
+    void fillRect(int x0, int y0, int x1, int y1, int rgb) {
+        x0 = Math.max(x0, 0);
+        y0 = Math.max(y0, 0);
+        x1 = Math.min(x1, width);
+        y1 = Math.min(y1, height);
+        if (x0 >= x1) {
+            return;
+        }
+        for (int y = y0; y < y1; y++) {
+            int row = y * width;
+            Arrays.fill(pixels, row + x0, row + x1, rgb);
+        }
+    }
+
+    /**
+     * Fill the span x0 &lt;= x &lt;= x1 on row y.
+     */
+    private void span(int y, int x0, int x1, int rgb) {
+        if (y < 0 || y >= height) {
+            return;
+        }
+        x0 = Math.max(x0, 0);
+        x1 = Math.min(x1, width - 1);
+        if (x0 <= x1) {
+            int row = y * width;
+            Arrays.fill(pixels, row + x0, row + x1 + 1, rgb);
+        }
+    }
+
+    /**
+     * Fill a circle with the midpoint circle algorithm. Each step gives
+     * the half-width of four rows, which are filled as spans.
+     */
+    void fillCircle(int cx, int cy, int r, int rgb) {
+        if (r <= 0) {
+            fillRect(cx, cy, cx + 1, cy + 1, rgb);
+            return;
+        }
+        if (cx + r < 0 || cx - r >= width || cy + r < 0 || cy - r >= height) {
+            return;
+        }
+        int x = r;
+        int y = 0;
+        int err = 1 - r;
+        while (x >= y) {
+            span(cy + y, cx - x, cx + x, rgb);
+            span(cy - y, cx - x, cx + x, rgb);
+            span(cy + x, cx - y, cx + y, rgb);
+            span(cy - x, cx - y, cx + y, rgb);
+            y++;
+            if (err < 0) {
+                err += 2 * y + 1;
+            } else {
+                x--;
+                err += 2 * (y - x) + 1;
+            }
+        }
+    }
+}
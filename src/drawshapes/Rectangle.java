@@ -7,14 +7,19 @@ import java.awt.Point;
 public class Rectangle extends AbstractShape {
     protected int width;
     protected int height;
+    // the size without rounding, so scaling doesn't drift
+    private double exactWidth;
+    private double exactHeight;
 
     public Rectangle(Point clicked, int width, int height, Color color) {
         // super(new Point(clicked.x - width / 2, clicked.y - height / 2));
-        super(clicked);
+        super(new Point(clicked));
         setBoundingBox(clicked.x - width / 2, clicked.x + width / 2, clicked.y - height / 2, clicked.y + height / 2);
         this.color = color;
         this.width = width;
         this.height = height;
+        this.exactWidth = width;
+        this.exactHeight = height;
     }
 
     public Rectangle(int left, int right, int top, int bottom) {
@@ -23,6 +28,8 @@ public class Rectangle extends AbstractShape {
         this.color = Color.BLUE;
         this.width = right - left;
         this.height = bottom - top;
+        this.exactWidth = width;
+        this.exactHeight = height;
     }
 
     /*
@@ -33,7 +40,7 @@ public class Rectangle extends AbstractShape {
     @Override
     public void draw(Graphics g) {
         if (isSelected()) {
-            g.setColor(color.darker());
+            g.setColor(Util.selectedColor(getColor()));
         } else {
             g.setColor(getColor());
         }
@@ -42,13 +49,14 @@ public class Rectangle extends AbstractShape {
     }
 
     public String toString() {
-        return String.format("RECTANGLE %d %d %d %d %s %s",
+        return String.format("RECTANGLE %d %d %s %s %s %s #%d",
                 getAnchorPoint().x,
                 getAnchorPoint().y,
-                width,
-                height,
+                Util.sizeToString(exactWidth),
+                Util.sizeToString(exactHeight),
                 colorToString(getColor()),
-                selected);
+                selected,
+                getId());
     }
 
     /*
@@ -63,24 +71,31 @@ public class Rectangle extends AbstractShape {
     }
 
     @Override
-    public void scaleUp() {
-        height = (int) (height * 1.25);
-        width = (int) (width * 1.25);
-        setBoundingBox(anchorPoint.x - width / 2, anchorPoint.x + width / 2, anchorPoint.y - height / 2,
-                anchorPoint.y + height / 2);
+    public void scale(double factor) {
+        setExactSize(exactWidth * factor, exactHeight * factor);
     }
 
-    @Override
-    public void scaleDown() {
-        height = (int) (height * 0.80);
-        width = (int) (width * 0.80);
-        setBoundingBox(anchorPoint.x - width / 2, anchorPoint.x + width / 2, anchorPoint.y - height / 2,
-                anchorPoint.y + height / 2);
+    /**
+     * The width without rounding, as it is saved.
+     */
+    double getExactWidth() {
+        return exactWidth;
     }
 
-    @Override
-    public IShape copy() {
-        return new Rectangle(new Point(anchorPoint.x, anchorPoint.y), width, height, color);
+    /**
+     * The height without rounding, as it is saved.
+     */
+    double getExactHeight() {
+        return exactHeight;
+    }
+
+    void setExactSize(double exactWidth, double exactHeight) {
+        this.exactWidth = exactWidth;
+        this.exactHeight = exactHeight;
+        height = (int) Math.round(exactHeight);
+        width = (int) Math.round(exactWidth);
+        setBoundingBox(anchorPoint.x - width / 2, anchorPoint.x + width / 2, anchorPoint.y - height / 2,
+                anchorPoint.y + height / 2);
     }
 
     public Point gePoint() {
@@ -0,0 +1,26 @@
+package drawshapes;
+
+import java.util.function.Consumer;
+
+/**
+ * Carries batches of encoded operations between SceneReplicas.
+ *
+ * A transport delivers every batch sent by one replica to all the other
+ * replicas, in the order it was sent.
+ */
+public interface ReplicaTransport
+{
+    /**
+     * Send a batch to the other replicas.
+     * 
+     * @param batch
+     */
+    public void send(byte[] batch);
+
+    /**
+     * Set who receives the batches sent by the other replicas.
+     * 
+     * @param receiver
+     */
+    public void setReceiver(Consumer<byte[]> receiver);
+}
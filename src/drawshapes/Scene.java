@@ -2,17 +2,31 @@ package drawshapes;
 
 import java.awt.Color;
 import java.awt.Graphics;
+import java.awt.Graphics2D;
 import java.awt.Point;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Scanner;
-
-import javax.security.sasl.SaslException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
 
 /**
  * A scene of shapes. Uses the Model-View-Controller (MVC) design pattern,
@@ -29,10 +43,38 @@ import javax.security.sasl.SaslException;
  *
  */
 public class Scene implements Iterable<IShape> {
-    private List<IShape> shapeList = new LinkedList<IShape>();
+    // shapes smaller than this many pixels are drawn as plain boxes
+    static final double LOD_PIXELS = 3.0;
+    // the id at the end of a shape record
+    static final Pattern ID_PATTERN = Pattern.compile("#\\d+");
+    // hidden when nothing changed since the last draw, but the hidden
+    // shapes weren't found yet
+    private static final BitSet NOT_FOUND = new BitSet();
+
+    // removed shapes leave null holes here until compact()
+    private ArrayList<IShape> shapeList = new ArrayList<IShape>();
+    // position of every shape in shapeList, by id
+    private IdIndex index = new IdIndex();
+    private int holes;
     private SelectionRectangle selectRect;
     private boolean isDrag;
     private Point startDrag;
+    private BoundingBox viewport;
+    protected boolean batchRendering = true;
+    private SceneJournal journal;
+    private SceneChunks chunks;
+    private List<SceneListener> listeners = new CopyOnWriteArrayList<SceneListener>();
+    // the last published snapshot, see SceneSnapshot
+    private final AtomicReference<SceneSnapshot> snapshot = new AtomicReference<SceneSnapshot>(SceneSnapshot.EMPTY);
+    // secondary indexes for query(), built by the first query and then
+    // kept up to date; null until then or after a change we can't follow
+    private ShapeIndex shapeIndex;
+    // the positions in shapeList of the shapes hidden under opaque shapes
+    // drawn after them, see OcclusionCuller; null after a change
+    private BitSet hidden;
+    // how much the shapes were grown when hidden was found
+    private int hiddenMargin;
+    protected boolean occlusionCulling = true;
     Scene copy;
 
     public void updateSelectRect(Point drag) {
@@ -56,10 +98,7 @@ public class Scene implements Iterable<IShape> {
                 selectRect = new SelectionRectangle(drag.x, startDrag.x, drag.y, startDrag.y);
             }
         }
-        List<IShape> selectedShapes = this.select(selectRect);
-        for (IShape s : selectedShapes) {
-            s.setSelected(true);
-        }
+        setSelected(select(selectRect), true);
     }
 
     public void stopDrag() {
@@ -77,13 +116,182 @@ public class Scene implements Iterable<IShape> {
      * @param g
      */
     public void draw(Graphics g) {
+        drawShapes(g);
+        drawSelection(g);
+    }
+
+    /**
+     * Draw the selection rectangle, if the user is dragging one.
+     * 
+     * @param g
+     */
+    public void drawSelection(Graphics g) {
+        if (isDrag) {
+            selectRect.draw(g);
+        }
+    }
+
+    /**
+     * Draw the shapes themselves, without the selection rectangle.
+     * 
+     * @param g
+     */
+    protected void drawShapes(Graphics g) {
+        BoundingBox clip = clipOf(g);
+        double scale = scaleOf(g);
+        if (batchRendering && g instanceof Graphics2D) {
+            BatchRenderer batch = new BatchRenderer(g, scale);
+            forEachDrawn(clip, scale, batch::add);
+            batch.flush();
+        } else {
+            forEachDrawn(clip, scale, s -> drawShape(g, s, scale));
+        }
+    }
+
+    /**
+     * Draw the shapes straight into the pixels of an image, see
+     * RasterRenderer.
+     * 
+     * @param raster
+     */
+    public void render(RasterRenderer raster) {
+        forEachDrawn(raster.getWorldBounds(), raster.getScale(), raster::add);
+    }
+
+    /**
+     * Call the action on every shape that intersects the clip, in
+     * drawing order.
+     * 
+     * @param clip   the visible region, or null for everything
+     * @param action
+     */
+    protected void forEachVisible(BoundingBox clip, Consumer<IShape> action) {
         for (IShape s : shapeList) {
-            if (s != null) {
-                s.draw(g);
+            if (s != null && isVisible(s, clip)) {
+                action.accept(s);
             }
         }
-        if (isDrag) {
-            selectRect.draw(g);
+    }
+
+    /**
+     * Like forEachVisible(), but without the shapes that are hidden under
+     * opaque shapes drawn after them.
+     * 
+     * @param clip
+     * @param scale  pixels per world unit
+     * @param action
+     */
+    private void forEachDrawn(BoundingBox clip, double scale, Consumer<IShape> action) {
+        BitSet hidden = null;
+        if (occlusionCulling) {
+            if (this.hidden == null) {
+                // changed since the last draw. While shapes are dragged or
+                // animated that is every frame, and finding what is hidden
+                // would cost more than it saves, so wait for a draw with
+                // no change before it
+                this.hidden = NOT_FOUND;
+            } else {
+                hidden = hiddenShapes(scale);
+            }
+        }
+        if (hidden == null) {
+            forEachVisible(clip, action);
+            return;
+        }
+        for (int i = hidden.nextClearBit(0); i < shapeList.size(); i = hidden.nextClearBit(i + 1)) {
+            IShape s = shapeList.get(i);
+            if (s != null && isVisible(s, clip)) {
+                action.accept(s);
+            }
+        }
+    }
+
+    /**
+     * The positions of the shapes hidden under opaque shapes drawn at the
+     * given scale after them, found again after every change; null if the
+     * scene doesn't keep its shapes in memory.
+     */
+    BitSet hiddenShapes(double scale) {
+        if (chunks != null) {
+            return null;
+        }
+        int margin = OcclusionCuller.marginFor(scale);
+        if (hidden == null || hidden == NOT_FOUND || hiddenMargin != margin) {
+            hidden = OcclusionCuller.findHidden(shapeList, margin);
+            hiddenMargin = margin;
+        }
+        return hidden;
+    }
+
+    /**
+     * Skip drawing the shapes that are hidden under opaque shapes drawn
+     * after them. The hidden shapes are found on the second draw in a row
+     * without a change.
+     * 
+     * @param occlusionCulling
+     */
+    public void setOcclusionCulling(boolean occlusionCulling) {
+        this.occlusionCulling = occlusionCulling;
+    }
+
+    public boolean isOcclusionCulling() {
+        return occlusionCulling;
+    }
+
+    /**
+     * Draw shapes of the same color in batches (see BatchRenderer),
+     * or one by one.
+     * 
+     * @param batchRendering
+     */
+    public void setBatchRendering(boolean batchRendering) {
+        this.batchRendering = batchRendering;
+    }
+
+    public boolean isBatchRendering() {
+        return batchRendering;
+    }
+
+    /**
+     * Return the clip of the Graphics object in world coordinates,
+     * or null if everything is visible.
+     */
+    static BoundingBox clipOf(Graphics g) {
+        java.awt.Rectangle clip = g.getClipBounds();
+        if (clip == null) {
+            return null;
+        }
+        return new BoundingBox(clip.x, clip.x + clip.width, clip.y, clip.y + clip.height);
+    }
+
+    /**
+     * Return how many pixels one world unit covers in the Graphics object.
+     */
+    static double scaleOf(Graphics g) {
+        if (g instanceof Graphics2D) {
+            return Math.abs(((Graphics2D) g).getTransform().getScaleX());
+        }
+        return 1.0;
+    }
+
+    static boolean isVisible(IShape s, BoundingBox clip) {
+        return clip == null || s.getBoundingBox().intersects(clip);
+    }
+
+    /**
+     * Draw one shape. Shapes smaller than LOD_PIXELS on the screen are
+     * drawn as a filled box, which looks the same at that size and is much
+     * cheaper than an oval.
+     */
+    static void drawShape(Graphics g, IShape s, double scale) {
+        BoundingBox box = s.getBoundingBox();
+        int w = box.getRight() - box.getLeft();
+        int h = box.getBottom() - box.getTop();
+        if (w * scale < LOD_PIXELS && h * scale < LOD_PIXELS) {
+            g.setColor(s.getColor());
+            g.fillRect(box.getLeft(), box.getTop(), Math.max(w, 1), Math.max(h, 1));
+        } else {
+            s.draw(g);
         }
     }
 
@@ -92,39 +300,71 @@ public class Scene implements Iterable<IShape> {
      * in the scene.
      */
     public Iterator<IShape> iterator() {
-        return shapeList.iterator();
+        return new Iterator<IShape>() {
+            private final List<IShape> list = shapeList;
+            private int next = skipHoles(0);
+
+            private int skipHoles(int i) {
+                while (i < list.size() && list.get(i) == null) {
+                    i++;
+                }
+                return i;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next < list.size();
+            }
+
+            @Override
+            public IShape next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                IShape s = list.get(next);
+                next = skipHoles(next + 1);
+                return s;
+            }
+        };
     }
 
     /**
-     * Return a list of shapes that contain the given point.
+     * Return a list of shapes that contain the given point. Big scenes
+     * are searched on all cores, see ParallelSelect.
      * 
      * @param point The point
-     * @return A list of shapes that contain the given point.
+     * @return A list of shapes that contain the given point, in drawing
+     *         order.
      */
     public List<IShape> select(Point point) {
-        List<IShape> selected = new LinkedList<IShape>();
-        for (IShape s : shapeList) {
-            if (s.contains(point)) {
-                selected.add(s);
-            }
-        }
-        return selected;
+        return ParallelSelect.select(shapeList, s -> s.contains(point));
     }
 
     /**
      * Return a list of shapes in the scene that intersect the given shape.
      * 
      * @param s The shape
-     * @return A list of shapes intersecting the given shape.
+     * @return A list of shapes intersecting the given shape, in drawing
+     *         order.
      */
     public List<IShape> select(IShape shape) {
-        List<IShape> selected = new LinkedList<IShape>();
-        for (IShape s : shapeList) {
-            if (s.intersects(shape)) {
-                selected.add(s);
-            }
-        }
-        return selected;
+        return ParallelSelect.select(shapeList, s -> s.intersects(shape));
+    }
+
+    /**
+     * The shapes passing the test, in drawing order, searched like
+     * select(Point).
+     */
+    List<IShape> select(Predicate<IShape> test) {
+        return ParallelSelect.select(shapeList, test);
+    }
+
+    /**
+     * The shapes passing the test, in drawing order, searched on the given
+     * pool or sequentially if it is null. For benchmarks.
+     */
+    List<IShape> select(Predicate<IShape> test, ForkJoinPool pool) {
+        return ParallelSelect.select(shapeList, test, pool);
     }
 
     /**
@@ -134,7 +374,176 @@ public class Scene implements Iterable<IShape> {
      * @param s
      */
     public void addShape(IShape s) {
+        if (index.containsKey(s.getId())) {
+            // ids are unique within a scene
+            s.setId(AbstractShape.newId());
+        }
+        index.put(s.getId(), shapeList.size());
         shapeList.add(s);
+        if (chunks != null) {
+            chunks.added(s);
+        }
+        if (journaling()) {
+            journal.recordAdd(s);
+        }
+        hidden = null;
+        if (shapeIndex != null) {
+            shapeIndex.add(s);
+        }
+        for (SceneListener l : listeners) {
+            l.shapeAdded(s);
+        }
+    }
+
+    /**
+     * Add many shapes at once, on top of the others. The journal gets
+     * them in one write.
+     * 
+     * @param shapes
+     */
+    public void addShapes(Collection<IShape> shapes) {
+        shapeList.ensureCapacity(shapeList.size() + shapes.size());
+        for (IShape s : shapes) {
+            if (index.containsKey(s.getId())) {
+                s.setId(AbstractShape.newId());
+            }
+            index.put(s.getId(), shapeList.size());
+            shapeList.add(s);
+            if (chunks != null) {
+                chunks.added(s);
+            }
+        }
+        if (journaling()) {
+            journal.recordAdd(shapes);
+        }
+        hidden = null;
+        if (shapeIndex != null) {
+            shapes.forEach(shapeIndex::add);
+        }
+        for (SceneListener l : listeners) {
+            for (IShape s : shapes) {
+                l.shapeAdded(s);
+            }
+        }
+    }
+
+    /**
+     * Return copies of the selected shapes, in drawing order. The copies
+     * share their geometry with the originals until they are moved.
+     */
+    public List<IShape> copySelection() {
+        List<IShape> copies = new ArrayList<IShape>();
+        for (IShape s : this) {
+            if (s.isSelected()) {
+                copies.add(s.copy());
+            }
+        }
+        return copies;
+    }
+
+    /**
+     * Add copies of the given shapes, moved by (dx, dy), and make them
+     * the selection.
+     * 
+     * @param shapes
+     * @param dx
+     * @param dy
+     * @return the new shapes
+     */
+    public List<IShape> paste(Collection<IShape> shapes, int dx, int dy) {
+        for (IShape s : this) {
+            s.setSelected(false);
+        }
+        List<IShape> pasted = new ArrayList<IShape>(shapes.size());
+        for (IShape s : shapes) {
+            IShape c = s.copy();
+            if (dx != 0 || dy != 0) {
+                c.move(dx, dy);
+            }
+            c.setSelected(true);
+            pasted.add(c);
+        }
+        addShapes(pasted);
+        return pasted;
+    }
+
+    /**
+     * Replace the selected shapes by one group, drawn where the topmost
+     * of them was.
+     * 
+     * @return the group, or null if nothing is selected
+     */
+    public Group groupSelection() {
+        List<IShape> selected = selectedShapes();
+        if (selected.isEmpty()) {
+            return null;
+        }
+        Group group = new Group(selected);
+        group.setSelected(true);
+        IShape top = selected.get(selected.size() - 1);
+        removeShapes(selected.subList(0, selected.size() - 1));
+        replaceShape(top, group);
+        return group;
+    }
+
+    /**
+     * Replace selected squares, rectangles and circles of the same kind
+     * and size by one InstancedShape each, drawn where the topmost of
+     * them was. Shapes that have no twin in the selection stay as they
+     * are.
+     *
+     * @return the new instanced shapes
+     */
+    public List<InstancedShape> instanceSelection() {
+        Map<String, List<IShape>> buckets = new LinkedHashMap<String, List<IShape>>();
+        for (IShape s : selectedShapes()) {
+            if (s instanceof Circle || s instanceof Rectangle) {
+                BoundingBox box = s.getBoundingBox();
+                String key = s.getClass().getSimpleName() + " " + (box.getRight() - box.getLeft()) + " "
+                        + (box.getBottom() - box.getTop());
+                buckets.computeIfAbsent(key, k -> new ArrayList<IShape>()).add(s);
+            }
+        }
+        List<InstancedShape> result = new ArrayList<InstancedShape>();
+        for (List<IShape> bucket : buckets.values()) {
+            if (bucket.size() < 2) {
+                continue;
+            }
+            IShape prototype = bucket.get(0).copy();
+            prototype.setSelected(false);
+            prototype.move(-prototype.getAnchorPoint().x, -prototype.getAnchorPoint().y);
+            InstancedShape instances = new InstancedShape(prototype);
+            for (IShape s : bucket) {
+                instances.add(s.getAnchorPoint().x, s.getAnchorPoint().y, s.getColor());
+            }
+            instances.setSelected(true);
+            removeShapes(bucket.subList(0, bucket.size() - 1));
+            replaceShape(bucket.get(bucket.size() - 1), instances);
+            result.add(instances);
+        }
+        return result;
+    }
+
+    /**
+     * Break the selected groups up into their shapes. The shapes end up
+     * in front of everything else, selected.
+     */
+    public void ungroupSelection() {
+        List<IShape> groups = new ArrayList<IShape>();
+        for (IShape s : this) {
+            if (s.isSelected() && s instanceof Group) {
+                groups.add(s);
+            }
+        }
+        if (groups.isEmpty()) {
+            return;
+        }
+        removeShapes(groups);
+        List<IShape> shapes = new ArrayList<IShape>();
+        for (IShape g : groups) {
+            shapes.addAll(((Group) g).ungroup());
+        }
+        addShapes(shapes);
     }
 
     /**
@@ -143,119 +552,881 @@ public class Scene implements Iterable<IShape> {
      * @param shapesToRemove
      */
     public void removeShapes(Collection<IShape> shapesToRemove) {
-        shapeList.removeAll(shapesToRemove);
+        if (journaling()) {
+            journal.recordRemove(indicesOf(shapesToRemove));
+        }
+        for (IShape s : shapesToRemove) {
+            int i = positionOf(s);
+            if (i != -1) {
+                shapeList.set(i, null);
+                index.remove(s.getId());
+                holes++;
+                hidden = null;
+                if (shapeIndex != null) {
+                    shapeIndex.remove(s);
+                }
+            }
+        }
+        if (holes > shapeList.size() / 2) {
+            compact();
+        }
+        if (chunks != null) {
+            for (IShape s : shapesToRemove) {
+                chunks.removed(s);
+            }
+        }
+        for (SceneListener l : listeners) {
+            l.shapesRemoved(shapesToRemove);
+        }
     }
 
     @Override
     public String toString() {
-        System.out.println("I am inside toString of Scene ");
         String shapeText = "";
-        for (IShape s : shapeList) {
+        for (IShape s : this) {
             shapeText += s.toString() + "\n";
         }
         return shapeText;
     }
 
     public void move(int dx, int dy) {
-        for (IShape s : shapeList) {
+        moveShapes(selectedShapes(), dx, dy);
+    }
+
+    /**
+     * Move the given shapes.
+     * 
+     * @param shapes
+     * @param dx
+     * @param dy
+     */
+    public void moveShapes(Collection<IShape> shapes, int dx, int dy) {
+        if (shapes.isEmpty()) {
+            return;
+        }
+        for (IShape s : shapes) {
+            s.move(dx, dy);
+        }
+        if (journaling()) {
+            journal.recordMove(dx, dy, indicesOf(shapes));
+        }
+        hidden = null;
+        if (shapeIndex != null) {
+            shapes.forEach(shapeIndex::update);
+        }
+        for (SceneListener l : listeners) {
+            l.shapesMoved(shapes, dx, dy);
+        }
+    }
+
+    /**
+     * Change the color of all selected shapes.
+     * 
+     * @param color
+     */
+    public void recolor(Color color) {
+        recolorShapes(selectedShapes(), color);
+    }
+
+    /**
+     * Change the color of the given shapes.
+     * 
+     * @param shapes
+     * @param color
+     */
+    public void recolorShapes(Collection<IShape> shapes, Color color) {
+        if (shapes.isEmpty()) {
+            return;
+        }
+        for (IShape s : shapes) {
+            s.setColor(color);
+        }
+        if (journaling()) {
+            journal.recordRecolor(color, indicesOf(shapes));
+        }
+        hidden = null;
+        if (shapeIndex != null) {
+            shapes.forEach(shapeIndex::update);
+        }
+        for (SceneListener l : listeners) {
+            l.shapesRecolored(shapes, color);
+        }
+    }
+
+    /**
+     * Scale all selected shapes up (if up is true) or down.
+     * 
+     * @param up
+     */
+    public void scale(boolean up) {
+        List<IShape> scaled = selectedShapes();
+        if (scaled.isEmpty()) {
+            return;
+        }
+        for (IShape s : scaled) {
+            if (up) {
+                s.scaleUp();
+            } else {
+                s.scaleDown();
+            }
+        }
+        if (journaling()) {
+            journal.recordScale(up, indicesOf(scaled));
+        }
+        hidden = null;
+        if (shapeIndex != null) {
+            scaled.forEach(shapeIndex::update);
+        }
+        for (SceneListener l : listeners) {
+            l.shapesScaled(scaled);
+        }
+    }
+
+    /**
+     * Scale all selected shapes by the given factor, see IShape.scale().
+     * 
+     * @param factor
+     */
+    public void scale(double factor) {
+        if (!journaling() && listeners.isEmpty()) {
+            // the mouse wheel calls this many times a second, don't allocate
+            for (IShape s : this) {
+                if (s.isSelected()) {
+                    s.scale(factor);
+                    hidden = null;
+                    if (shapeIndex != null) {
+                        shapeIndex.update(s);
+                    }
+                }
+            }
+            return;
+        }
+        List<IShape> scaled = selectedShapes();
+        if (scaled.isEmpty()) {
+            return;
+        }
+        for (IShape s : scaled) {
+            s.scale(factor);
+        }
+        if (journaling()) {
+            journal.recordScale(factor, indicesOf(scaled));
+        }
+        hidden = null;
+        if (shapeIndex != null) {
+            scaled.forEach(shapeIndex::update);
+        }
+        for (SceneListener l : listeners) {
+            l.shapesScaled(scaled);
+        }
+    }
+
+    /**
+     * Select or deselect the given shapes.
+     *
+     * @param shapes
+     * @param selected
+     */
+    public void setSelected(Collection<IShape> shapes, boolean selected) {
+        for (IShape s : shapes) {
+            s.setSelected(selected);
+        }
+    }
+
+    /**
+     * Return the selected shapes, in drawing order.
+     */
+    public List<IShape> selectedShapes() {
+        List<IShape> selected = new ArrayList<IShape>();
+        for (IShape s : this) {
             if (s.isSelected()) {
-                s.move(dx, dy);
+                selected.add(s);
             }
         }
+        return selected;
     }
 
-    @SuppressWarnings("resource")
     public void loadShapes(File selectedFile) throws Exception {
-        shapeList.clear();
-        Scanner sc = new Scanner(new FileInputStream(selectedFile));
+        try (Scanner sc = new Scanner(new FileInputStream(selectedFile))) {
+            loadShapes(sc);
+        }
+    }
 
-        while (sc.hasNext()) {
-            String shape = sc.next();
+    /**
+     * Replace the shapes with the records left in the scanner.
+     */
+    void loadShapes(Scanner sc) {
+        setShapeList(new ArrayList<IShape>());
+        closeChunks();
+        // don't journal every single add, we checkpoint the whole scene at the end
+        SceneJournal j = journal;
+        List<SceneListener> l = listeners;
+        journal = null;
+        listeners = new CopyOnWriteArrayList<SceneListener>();
+        try {
+            while (sc.hasNext()) {
+                addShape(readShape(sc));
+            }
+        } finally {
+            journal = j;
+            listeners = l;
+        }
+        if (journal != null) {
+            journal.checkpoint(this);
+        }
+        fireReloaded();
+    }
 
-            if (shape.equals("SQUARE")) {
-                // SQUARE 185 110 100 RED false
-                int x = sc.nextInt();
-                int y = sc.nextInt();
-                int length = sc.nextInt();
-                String color = sc.next();
-                Color clr = Util.stringToColor(color);
-                Boolean isSelected = sc.nextBoolean();
-                Square square = new Square(clr, x, y, length);
-                square.setSelected(isSelected);
-                addShape(square);
-            } else if (shape.equals("RECTANGLE")) {
-                // RECTANGLE 424 311 100 200 RED false
-                int x = sc.nextInt();
-                int y = sc.nextInt();
-                int width = sc.nextInt();
-                int height = sc.nextInt();
-                String color = sc.next();
-                Boolean isSelected = sc.nextBoolean();
-                Color clr = Util.stringToColor(color);
-                Rectangle rectangle = new Rectangle(new Point(x, y), width, height, clr);
-                rectangle.setSelected(isSelected);
-                addShape(rectangle);
-            } else if (shape.equals("CIRCLE")) {
-                // CIRCLE 243 211 100 RED false
+    /**
+     * Read one shape record in the format produced by toString(),
+     * for example "SQUARE 185 110 100 RED false #42". The id at the end
+     * is optional; shapes from older files get a new one. Sizes are whole
+     * numbers, or decimals for shapes that were scaled, see
+     * Util.sizeToString().
+     * 
+     * @param sc scanner positioned at the start of a record
+     * @return the shape
+     */
+    static IShape readShape(Scanner sc) {
+        String shape = sc.next();
+
+        IShape result;
+        if (shape.equals("SQUARE")) {
+            // SQUARE 185 110 100 RED false
+            int x = sc.nextInt();
+            int y = sc.nextInt();
+            double length = Util.parseSize(sc.next());
+            String color = sc.next();
+            Color clr = Util.stringToColor(color);
+            Boolean isSelected = sc.nextBoolean();
+            Square square = new Square(clr, x, y, (int) Math.round(length));
+            square.setExactSize(length, length);
+            square.setSelected(isSelected);
+            result = square;
+        } else if (shape.equals("RECTANGLE")) {
+            // RECTANGLE 424 311 100 200 RED false
+            int x = sc.nextInt();
+            int y = sc.nextInt();
+            double width = Util.parseSize(sc.next());
+            double height = Util.parseSize(sc.next());
+            String color = sc.next();
+            Boolean isSelected = sc.nextBoolean();
+            Color clr = Util.stringToColor(color);
+            Rectangle rectangle = new Rectangle(new Point(x, y), (int) Math.round(width), (int) Math.round(height),
+                    clr);
+            rectangle.setExactSize(width, height);
+            rectangle.setSelected(isSelected);
+            result = rectangle;
+        } else if (shape.equals("CIRCLE")) {
+            // CIRCLE 243 211 100 RED false
+            int x = sc.nextInt();
+            int y = sc.nextInt();
+            double diameter = Util.parseSize(sc.next());
+            String color = sc.next();
+            Boolean isSelected = sc.nextBoolean();
+            Color clr = Util.stringToColor(color);
+            Circle circle = new Circle(clr, new Point(x, y), (int) Math.round(diameter));
+            circle.setExactDiameter(diameter);
+            circle.setSelected(isSelected);
+            result = circle;
+        } else if (shape.equals("GROUP")) {
+            // GROUP 10 20 2 false SQUARE 185 110 100 RED false #1 CIRCLE 243 211 100 RED false #2
+            int offsetX = sc.nextInt();
+            int offsetY = sc.nextInt();
+            int count = sc.nextInt();
+            Boolean isSelected = sc.nextBoolean();
+            List<IShape> children = new ArrayList<IShape>(count);
+            for (int i = 0; i < count; i++) {
+                children.add(readShape(sc));
+            }
+            Group group = new Group(children, offsetX, offsetY);
+            group.setSelected(isSelected);
+            result = group;
+        } else if (shape.equals("INSTANCES")) {
+            // INSTANCES 2 false CIRCLE 0 0 20 RED false #3 100 100 RED 0 140 100 BLUE 1
+            int count = sc.nextInt();
+            Boolean isSelected = sc.nextBoolean();
+            InstancedShape instances = new InstancedShape(readShape(sc));
+            for (int i = 0; i < count; i++) {
                 int x = sc.nextInt();
                 int y = sc.nextInt();
-                int diameter = sc.nextInt();
-                String color = sc.next();
-                Boolean isSelected = sc.nextBoolean();
-                Color clr = Util.stringToColor(color);
-                Circle circle = new Circle(clr, new Point(x, y), diameter);
-                circle.setSelected(isSelected);
-                addShape(circle);
-            } else {
-                throw new UnsupportedOperationException("File cannot start with " + shape);
+                Color clr = Util.stringToColor(sc.next());
+                int flags = sc.nextInt();
+                int n = instances.add(x, y, clr);
+                instances.setHighlighted(n, (flags & InstancedShape.HIGHLIGHTED) != 0);
             }
+            instances.setSelected(isSelected);
+            result = instances;
+        } else {
+            throw new UnsupportedOperationException("File cannot start with " + shape);
+        }
+        if (sc.hasNext(ID_PATTERN)) {
+            result.setId(Long.parseLong(sc.next().substring(1)));
+        }
+        return result;
+    }
+
+    /**
+     * Open a chunked scene file (see ChunkedSceneFile). Only the chunks
+     * intersecting the viewport are loaded, see setViewport().
+     * 
+     * @param selectedFile
+     * @throws IOException
+     */
+    public void loadChunked(File selectedFile) throws IOException {
+        ChunkedSceneFile file = ChunkedSceneFile.open(selectedFile);
+        setShapeList(new ArrayList<IShape>());
+        closeChunks();
+        chunks = new SceneChunks(file);
+        if (journal != null) {
+            // chunked scenes are not journaled, since chunks come and go
+            journal.checkpoint(this);
+        }
+        fireReloaded();
+    }
+
+    /**
+     * Save the scene as a chunked scene file. If the scene was opened
+     * with loadChunked(), chunks that are not loaded are copied
+     * without decompressing them.
+     * 
+     * @param selectedFile
+     * @throws IOException
+     */
+    public void saveChunked(File selectedFile) throws IOException {
+        if (chunks == null) {
+            ChunkedSceneFile.write(this, selectedFile, ChunkedSceneFile.DEFAULT_CELL_SIZE);
+            return;
+        }
+        // write next to the target, since we may be reading from it
+        File tmp = new File(selectedFile.getPath() + ".tmp");
+        compact();
+        chunks.save(shapeList, tmp);
+        BoundingBox oldViewport = viewport;
+        closeChunks();
+        // copies of the scene still read from the old file, which stays
+        // around while they have it open
+        Files.move(tmp.toPath(), selectedFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        setShapeList(new ArrayList<IShape>());
+        chunks = new SceneChunks(ChunkedSceneFile.open(selectedFile));
+        if (oldViewport != null) {
+            setViewport(oldViewport);
+        }
+    }
 
+    /**
+     * Tell the scene which region is visible. For a chunked scene this
+     * loads the chunks intersecting the region and evicts far away ones.
+     * 
+     * @param viewport
+     * @throws IOException
+     */
+    public void setViewport(BoundingBox viewport) throws IOException {
+        this.viewport = viewport;
+        if (chunks != null) {
+            compact();
+            setShapeList(chunks.setViewport(shapeList, viewport));
         }
     }
 
+    BoundingBox getViewport() {
+        return viewport;
+    }
+
+    /**
+     * Publish an immutable snapshot of the scene as it is now, for readers
+     * on other threads. Only the thread that edits the scene may call
+     * this, after a batch of edits.
+     *
+     * @return the new snapshot, or the last one if nothing changed
+     */
+    public SceneSnapshot publish() {
+        BoundingBox region = snapshotRegion();
+        List<IShape> live = new ArrayList<IShape>(region == null ? size() : 16);
+        forEachVisible(region, live::add);
+        SceneSnapshot next = SceneSnapshot.of(live, snapshot.get(), isDrag ? selectRect : null, region,
+                batchRendering, occlusionCulling);
+        snapshot.set(next);
+        return next;
+    }
+
+    /**
+     * The last published snapshot. Any thread may call this.
+     */
+    public SceneSnapshot getSnapshot() {
+        return snapshot.get();
+    }
+
+    /**
+     * Where publish() takes shapes from, or null for the whole scene.
+     */
+    protected BoundingBox snapshotRegion() {
+        return null;
+    }
+
+    public boolean isChunked() {
+        return chunks != null;
+    }
+
+    /**
+     * Close the file a chunked scene reads from. A copy of the scene
+     * keeps the file open until it is closed too.
+     */
+    public void close() {
+        closeChunks();
+    }
+
+    private void closeChunks() {
+        if (chunks != null) {
+            try {
+                chunks.getFile().close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            chunks = null;
+        }
+    }
+
+    private boolean journaling() {
+        return journal != null && chunks == null;
+    }
+
+    /**
+     * Copy every shape into a new scene, with the same ids. The copy of a
+     * chunked scene keeps the chunk file open until it is closed.
+     */
     public Scene copy() {
         Scene sc = new Scene();
-        for (IShape shape : shapeList) {
-            sc.addShape(shape.copy());
+        Map<IShape, IShape> copies = new IdentityHashMap<IShape, IShape>();
+        for (IShape shape : this) {
+            IShape c = shape.copy();
+            c.setId(shape.getId());
+            copies.put(shape, c);
+            sc.addShape(c);
+        }
+        if (chunks != null) {
+            sc.chunks = chunks.copy(copies);
         }
         return sc;
     }
 
+    /**
+     * Take over the shapes of another scene, which should not be used
+     * after this.
+     *
+     * @param otherScene
+     */
     public void reload(Scene otherScene) {
+        // undo and redo land here, journal only what changed
+        List<IShape> before = null;
+        if (journaling() && otherScene.chunks == null) {
+            before = new ArrayList<IShape>(size());
+            for (IShape s : this) {
+                before.add(s);
+            }
+        }
+        if (otherScene.chunks != chunks) {
+            closeChunks();
+        }
         this.shapeList = otherScene.shapeList;
+        this.index = otherScene.index;
+        this.holes = otherScene.holes;
+        this.chunks = otherScene.chunks;
+        if (before != null) {
+            journal.recordReload(before, this);
+        } else if (journal != null) {
+            journal.checkpoint(this);
+        }
+        fireReloaded();
     }
 
     public void bringForward() {
-        for (int i = shapeList.size() - 2; i >= 0; i--) {
-            IShape current = shapeList.get(i);
+        for (int i = size() - 2; i >= 0; i--) {
+            IShape current = getShape(i);
             if (current.isSelected()) {
-                // Swap with shape in front of it
-                IShape next = shapeList.get(i + 1);
-                shapeList.set(i + 1, current);
-                shapeList.set(i, next);
+                swap(i, i + 1);
                 break;
             }
         }
     }
 
     public void sendBackward() {
-        for (int i = 1; i < shapeList.size(); i++) {
-            IShape current = shapeList.get(i);
+        for (int i = 1; i < size(); i++) {
+            IShape current = getShape(i);
             if (current.isSelected()) {
-                // Swap with shape behind it
-                IShape prev = shapeList.get(i - 1);
-                shapeList.set(i - 1, current);
-                shapeList.set(i, prev);
+                swap(i - 1, i);
                 break;
             }
         }
     }
 
+    /**
+     * Swap the shapes at the two positions in the drawing order.
+     * 
+     * @param i
+     * @param j
+     */
+    void swap(int i, int j) {
+        IShape a = getShape(i);
+        IShape b = getShape(j);
+        setShape(i, b);
+        setShape(j, a);
+        if (chunks != null) {
+            chunks.swapped(a, b);
+        }
+        if (journaling()) {
+            journal.recordReorder(i, j);
+        }
+        for (SceneListener l : listeners) {
+            l.shapesSwapped(a, b);
+        }
+    }
+
     public void replaceShape(IShape curr, IShape newShape) {
-        int index = shapeList.indexOf(curr);
+        int index = positionOf(curr);
         if (index != -1) {
+            this.index.remove(curr.getId());
+            if (this.index.containsKey(newShape.getId())) {
+                newShape.setId(AbstractShape.newId());
+            }
+            this.index.put(newShape.getId(), index);
             shapeList.set(index, newShape);
+            if (chunks != null) {
+                chunks.replaced(curr, newShape);
+            }
+            if (journaling()) {
+                journal.recordReplace(compactedPosition(index), newShape);
+            }
+            hidden = null;
+            if (shapeIndex != null) {
+                shapeIndex.remove(curr);
+                shapeIndex.add(newShape);
+            }
+            for (SceneListener l : listeners) {
+                l.shapeReplaced(curr, newShape);
+            }
+        }
+    }
+
+    /**
+     * Change a shape for one frame of an Effect. The indexes are updated
+     * in place, but nothing is journaled or reported to the listeners
+     * until the effect settles, see settled().
+     */
+    void animate(IShape s, int dx, int dy, double factor, Color color) {
+        if (dx != 0 || dy != 0) {
+            s.move(dx, dy);
+        }
+        if (factor != 1.0) {
+            s.scale(factor);
+        }
+        if (color != null) {
+            s.setColor(color);
+        }
+        hidden = null;
+        if (shapeIndex != null) {
+            shapeIndex.update(s);
+        }
+    }
+
+    /**
+     * An Effect is over: journal the shape as it is now, and tell the
+     * listeners what the effect did to it altogether.
+     *
+     * @param s
+     * @param dx     how far the effect moved it
+     * @param dy
+     * @param scaled if the effect scaled it
+     * @param color  the color the effect left it in, or null
+     */
+    void settled(IShape s, int dx, int dy, boolean scaled, Color color) {
+        int i = positionOf(s);
+        if (i == -1) {
+            // removed or replaced while it was animated
+            return;
+        }
+        if (journaling()) {
+            journal.recordReplace(compactedPosition(i), s);
+        }
+        List<IShape> shapes = Collections.singletonList(s);
+        for (SceneListener l : listeners) {
+            if (dx != 0 || dy != 0) {
+                l.shapesMoved(shapes, dx, dy);
+            }
+            if (scaled) {
+                l.shapesScaled(shapes);
+            }
+            if (color != null) {
+                l.shapesRecolored(shapes, color);
+            }
+        }
+    }
+
+    /**
+     * Tell the scene that shapes were changed directly instead of through
+     * its methods, so query() sees the change.
+     */
+    public void shapesChanged() {
+        shapeIndex = null;
+        hidden = null;
+    }
+
+    /**
+     * Select the shapes matching a query, see SceneQuery.
+     *
+     * @param query for example "type=CIRCLE and within(0,0,500,500)"
+     * @return the matching shapes, in drawing order
+     * @throws IllegalArgumentException if the query can't be parsed
+     */
+    public List<IShape> query(String query) {
+        return SceneQuery.parse(query).run(this);
+    }
+
+    /**
+     * The indexes SceneQuery uses, built on the first query and kept up
+     * to date by every edit after that; null if the scene doesn't keep its
+     * shapes in memory.
+     */
+    ShapeIndex shapeIndex() {
+        if (chunks != null) {
+            return null;
+        }
+        if (shapeIndex == null || shapeIndex.isStale()) {
+            shapeIndex = new ShapeIndex(this, size());
+        }
+        return shapeIndex;
+    }
+
+    /**
+     * Where the shape with the given id is in the drawing order, or -1.
+     * Removed shapes may leave gaps, so this is only good for comparing.
+     */
+    int orderOf(long id) {
+        return index.get(id);
+    }
+
+    public void addListener(SceneListener l) {
+        listeners.add(l);
+    }
+
+    public void removeListener(SceneListener l) {
+        listeners.remove(l);
+    }
+
+    protected List<SceneListener> getListeners() {
+        return listeners;
+    }
+
+    /**
+     * Tell the listeners that the whole scene was replaced.
+     */
+    protected void fireReloaded() {
+        shapeIndex = null;
+        hidden = null;
+        for (SceneListener l : listeners) {
+            l.sceneReloaded();
+        }
+    }
+
+    /**
+     * Attach a journal that records every mutation of this scene.
+     * Pass null to stop journaling.
+     * 
+     * @param journal
+     */
+    public void setJournal(SceneJournal journal) {
+        this.journal = journal;
+    }
+
+    public SceneJournal getJournal() {
+        return journal;
+    }
+
+    /**
+     * Return the shape with the given id, or null.
+     * 
+     * @param id
+     * @return
+     */
+    public IShape getShapeById(long id) {
+        int i = index.get(id);
+        return i == -1 ? null : shapeList.get(i);
+    }
+
+    /**
+     * Remove the shape with the given id.
+     * 
+     * @param id
+     * @return false if there is no such shape
+     */
+    public boolean removeShapeById(long id) {
+        IShape s = getShapeById(id);
+        if (s == null) {
+            return false;
+        }
+        removeShapes(Collections.singletonList(s));
+        return true;
+    }
+
+    /**
+     * Replace the shape with the given id.
+     * 
+     * @param id
+     * @param newShape
+     * @return false if there is no such shape
+     */
+    public boolean replaceShapeById(long id, IShape newShape) {
+        IShape s = getShapeById(id);
+        if (s == null) {
+            return false;
+        }
+        replaceShape(s, newShape);
+        return true;
+    }
+
+    /**
+     * Position of the shape in shapeList, or -1.
+     */
+    private int positionOf(IShape s) {
+        int i = index.get(s.getId());
+        return i != -1 && shapeList.get(i) == s ? i : -1;
+    }
+
+    /**
+     * Where the shape at position i will be after compact(), which is how
+     * the journal counts positions. This doesn't compact, since that would
+     * move shapes under an iterator.
+     */
+    private int compactedPosition(int i) {
+        if (holes == 0) {
+            return i;
+        }
+        int p = 0;
+        for (int k = 0; k < i; k++) {
+            if (shapeList.get(k) != null) {
+                p++;
+            }
+        }
+        return p;
+    }
+
+    /**
+     * Close the holes left by removed shapes.
+     */
+    private void compact() {
+        if (holes == 0) {
+            return;
+        }
+        // the hidden shapes are kept by position
+        hidden = null;
+        int j = 0;
+        for (int i = 0; i < shapeList.size(); i++) {
+            IShape s = shapeList.get(i);
+            if (s != null) {
+                shapeList.set(j, s);
+                index.put(s.getId(), j);
+                j++;
+            }
+        }
+        shapeList.subList(j, shapeList.size()).clear();
+        holes = 0;
+    }
+
+    private void setShapeList(List<IShape> shapes) {
+        shapeList = shapes instanceof ArrayList ? (ArrayList<IShape>) shapes : new ArrayList<IShape>(shapes);
+        index = new IdIndex(shapeList.size());
+        holes = 0;
+        shapeIndex = null;
+        hidden = null;
+        for (int i = 0; i < shapeList.size(); i++) {
+            index.put(shapeList.get(i).getId(), i);
+        }
+    }
+
+    int size() {
+        return shapeList.size() - holes;
+    }
+
+    IShape getShape(int index) {
+        compact();
+        return shapeList.get(index);
+    }
+
+    void setShape(int index, IShape s) {
+        compact();
+        IShape old = shapeList.get(index);
+        if (this.index.get(old.getId()) == index) {
+            this.index.remove(old.getId());
+        }
+        this.index.put(s.getId(), index);
+        shapeList.set(index, s);
+        hidden = null;
+        if (shapeIndex != null) {
+            // swap() puts the old shape back somewhere else
+            if (getShapeById(old.getId()) != old) {
+                shapeIndex.remove(old);
+            }
+            shapeIndex.add(s);
+        }
+    }
+
+    /**
+     * Put a shape at the given position in the drawing order, for
+     * replaying the journal.
+     */
+    void insertShape(int index, IShape s) {
+        compact();
+        shapeList.add(index, s);
+        for (int i = index; i < shapeList.size(); i++) {
+            this.index.put(shapeList.get(i).getId(), i);
+        }
+        hidden = null;
+        if (shapeIndex != null) {
+            shapeIndex.add(s);
+        }
+    }
+
+    void removeShapeAt(int index) {
+        compact();
+        IShape old = shapeList.get(index);
+        this.index.remove(old.getId());
+        shapeList.set(index, null);
+        holes++;
+        hidden = null;
+        if (shapeIndex != null) {
+            shapeIndex.remove(old);
+        }
+    }
+
+    /**
+     * Position of the shape in the drawing order, or -1.
+     */
+    int indexOf(IShape shape) {
+        compact();
+        return positionOf(shape);
+    }
+
+    /**
+     * Positions of the shapes in the drawing order, ascending, without
+     * looking at the other shapes.
+     */
+    private List<Integer> indicesOf(Collection<IShape> shapes) {
+        compact();
+        List<Integer> indices = new ArrayList<Integer>(shapes.size());
+        for (IShape s : shapes) {
+            int i = positionOf(s);
+            if (i != -1) {
+                indices.add(i);
+            }
+        }
+        Collections.sort(indices);
+        // the same shape twice is one index
+        int j = 0;
+        for (int i = 0; i < indices.size(); i++) {
+            if (j == 0 || !indices.get(i).equals(indices.get(j - 1))) {
+                indices.set(j++, indices.get(i));
+            }
         }
+        return indices.subList(0, j);
     }
 
 }
@@ -0,0 +1,240 @@
+package drawshapes;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Keeps track of which chunks of a ChunkedSceneFile are loaded into a Scene.
+ *
+ * Chunks that intersect the viewport are loaded. Chunks that no longer
+ * intersect the viewport grown by one viewport size on every side are
+ * evicted; their current shapes are compressed back into the chunk so that
+ * edits are not lost. Every shape remembers its position in the drawing
+ * order of the whole file, so shapes from different chunks are always
+ * merged back in the right order.
+ */
+class SceneChunks {
+    private final ChunkedSceneFile file;
+    private final Map<IShape, Integer> owner = new IdentityHashMap<IShape, Integer>();
+    private final Map<IShape, Long> order = new IdentityHashMap<IShape, Long>();
+    private final Set<Integer> resident = new HashSet<Integer>();
+    private long nextOrder;
+
+    SceneChunks(ChunkedSceneFile file) {
+        this.file = file;
+        for (int i = 0; i < file.getChunkCount(); i++) {
+            nextOrder += file.getChunk(i).shapes;
+        }
+    }
+
+    ChunkedSceneFile getFile() {
+        return file;
+    }
+
+    int getResidentCount() {
+        return resident.size();
+    }
+
+    /**
+     * Load the chunks intersecting the viewport and evict the ones far away
+     * from it.
+     *
+     * @param shapeList the shapes currently in the scene, in drawing order
+     * @param viewport  the visible region
+     * @return the new list of shapes in the scene, in drawing order
+     * @throws IOException
+     */
+    List<IShape> setViewport(List<IShape> shapeList, BoundingBox viewport) throws IOException {
+        int margin = Math.max(viewport.getRight() - viewport.getLeft(), viewport.getBottom() - viewport.getTop());
+        BoundingBox keep = viewport.grow(margin);
+
+        Set<Integer> evict = new HashSet<Integer>();
+        for (int i : resident) {
+            if (!file.getChunk(i).bounds.intersects(keep)) {
+                evict.add(i);
+            }
+        }
+        if (!evict.isEmpty()) {
+            shapeList = evict(shapeList, evict);
+        }
+
+        List<IShape> loaded = new ArrayList<IShape>();
+        List<Long> loadedOrder = new ArrayList<Long>();
+        for (int i = 0; i < file.getChunkCount(); i++) {
+            if (!resident.contains(i) && file.getChunk(i).bounds.intersects(viewport)) {
+                int from = loaded.size();
+                file.readChunk(i, loaded, loadedOrder);
+                for (int j = from; j < loaded.size(); j++) {
+                    owner.put(loaded.get(j), i);
+                    order.put(loaded.get(j), loadedOrder.get(j));
+                }
+                resident.add(i);
+            }
+        }
+        if (!loaded.isEmpty()) {
+            shapeList = merge(shapeList, loaded);
+        }
+        return shapeList;
+    }
+
+    private List<IShape> evict(List<IShape> shapeList, Set<Integer> evict) {
+        Map<Integer, List<IShape>> evicted = new LinkedHashMap<Integer, List<IShape>>();
+        for (int i : evict) {
+            evicted.put(i, new ArrayList<IShape>());
+        }
+        List<IShape> kept = new ArrayList<IShape>();
+        for (IShape s : shapeList) {
+            Integer chunk = owner.get(s);
+            if (chunk != null && evict.contains(chunk)) {
+                evicted.get(chunk).add(s);
+            } else {
+                kept.add(s);
+            }
+        }
+        for (int i : evict) {
+            List<IShape> shapes = evicted.get(i);
+            file.rewriteChunk(i, shapes, ordersOf(shapes));
+            for (IShape s : shapes) {
+                owner.remove(s);
+                order.remove(s);
+            }
+            resident.remove(i);
+        }
+        return kept;
+    }
+
+    /**
+     * Merge newly loaded shapes into the scene, keeping the drawing order.
+     */
+    private List<IShape> merge(List<IShape> shapeList, List<IShape> loaded) {
+        loaded.sort((a, b) -> Long.compare(order.get(a), order.get(b)));
+        List<IShape> merged = new ArrayList<IShape>();
+        int j = 0;
+        for (IShape s : shapeList) {
+            long o = orderOf(s);
+            while (j < loaded.size() && order.get(loaded.get(j)) < o) {
+                merged.add(loaded.get(j++));
+            }
+            merged.add(s);
+        }
+        while (j < loaded.size()) {
+            merged.add(loaded.get(j++));
+        }
+        return merged;
+    }
+
+    private long orderOf(IShape s) {
+        Long o = order.get(s);
+        return o == null ? Long.MAX_VALUE : o;
+    }
+
+    private List<Long> ordersOf(List<IShape> shapes) {
+        List<Long> orders = new ArrayList<Long>(shapes.size());
+        for (IShape s : shapes) {
+            orders.add(order.get(s));
+        }
+        return orders;
+    }
+
+    void added(IShape s) {
+        order.put(s, nextOrder++);
+    }
+
+    void removed(IShape s) {
+        owner.remove(s);
+        order.remove(s);
+    }
+
+    void replaced(IShape curr, IShape newShape) {
+        Integer chunk = owner.remove(curr);
+        if (chunk != null) {
+            owner.put(newShape, chunk);
+        }
+        Long o = order.remove(curr);
+        if (o != null) {
+            order.put(newShape, o);
+        }
+    }
+
+    void swapped(IShape a, IShape b) {
+        Long oa = order.get(a);
+        Long ob = order.get(b);
+        if (oa != null && ob != null) {
+            order.put(a, ob);
+            order.put(b, oa);
+        }
+    }
+
+    /**
+     * Copy the residency state for a copy of the scene.
+     *
+     * The copy reads from its own view of the chunk file (see
+     * ChunkedSceneFile.copy()), so evicting chunks in one doesn't change
+     * the other, and the file stays open until both are closed.
+     *
+     * @param copies maps every shape of this scene to its copy
+     * @return
+     */
+    SceneChunks copy(Map<IShape, IShape> copies) {
+        SceneChunks c = new SceneChunks(file.copy());
+        c.nextOrder = nextOrder;
+        c.resident.addAll(resident);
+        for (Map.Entry<IShape, Integer> e : owner.entrySet()) {
+            c.owner.put(copies.get(e.getKey()), e.getValue());
+        }
+        for (Map.Entry<IShape, Long> e : order.entrySet()) {
+            c.order.put(copies.get(e.getKey()), e.getValue());
+        }
+        return c;
+    }
+
+    /**
+     * Write the whole scene to a new chunked file. Chunks that are not
+     * loaded are copied over without decompressing them.
+     *
+     * @param shapeList the loaded shapes
+     * @param target
+     * @throws IOException
+     */
+    void save(List<IShape> shapeList, File target) throws IOException {
+        Map<Integer, List<IShape>> byChunk = new LinkedHashMap<Integer, List<IShape>>();
+        Map<Long, List<IShape>> newShapes = new LinkedHashMap<Long, List<IShape>>();
+        for (IShape s : shapeList) {
+            Integer chunk = owner.get(s);
+            if (chunk != null) {
+                if (!byChunk.containsKey(chunk)) {
+                    byChunk.put(chunk, new ArrayList<IShape>());
+                }
+                byChunk.get(chunk).add(s);
+            } else {
+                long cell = ChunkedSceneFile.cellOf(s, ChunkedSceneFile.DEFAULT_CELL_SIZE);
+                if (!newShapes.containsKey(cell)) {
+                    newShapes.put(cell, new ArrayList<IShape>());
+                }
+                newShapes.get(cell).add(s);
+            }
+        }
+        try (ChunkedSceneFile.Writer out = new ChunkedSceneFile.Writer(target)) {
+            for (int i = 0; i < file.getChunkCount(); i++) {
+                if (resident.contains(i)) {
+                    if (byChunk.containsKey(i)) {
+                        out.addChunk(byChunk.get(i), ordersOf(byChunk.get(i)));
+                    }
+                } else if (file.getChunk(i).shapes > 0) {
+                    ChunkedSceneFile.Chunk c = file.getChunk(i);
+                    out.addChunk(file.readRaw(i), c.bounds, c.shapes);
+                }
+            }
+            for (List<IShape> shapes : newShapes.values()) {
+                out.addChunk(shapes, ordersOf(shapes));
+            }
+        }
+    }
+}
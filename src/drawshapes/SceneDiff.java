@@ -0,0 +1,668 @@
+package drawshapes;
+
+import java.awt.Color;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Compares two scenes as an edit script, applies edit scripts, and merges
+ * the changes two people made to the same scene.
+ *
+ * Shapes are matched by id first, since saved scenes keep their ids. The
+ * shapes left over are matched by geometry: a shape of the same kind and
+ * size anchored within MATCH_CELL of where one was removed is taken to
+ * be that shape, moved. Both steps are hash lookups, so diffing is
+ * linear in the size of the scenes; only the reorders take n log n, to
+ * find the longest run of shapes that kept their order and leave those
+ * alone.
+ *
+ * Edits refer to shapes by their id in the base scene. Selection is not
+ * compared, it isn't part of the drawing.
+ */
+public class SceneDiff {
+    // how far a shape without a matching id may have moved and still be matched
+    static final int MATCH_CELL = 256;
+
+    /**
+     * One step of an edit script.
+     */
+    public static class Edit {
+        public enum Kind {
+            /** remove the shape */
+            REMOVE,
+            /** move the shape by dx, dy */
+            MOVE,
+            /** give the shape a new color */
+            RECOLOR,
+            /** put another shape in place of the shape, keeping its id */
+            REPLACE,
+            /** add a shape right after another one */
+            ADD,
+            /** move the shape right after another one in drawing order */
+            ORDER
+        }
+
+        final Kind kind;
+        final long id;
+        final int dx;
+        final int dy;
+        final Color color;
+        final IShape shape;
+        // the shape this one goes right after, or 0 for the bottom
+        final long after;
+
+        private Edit(Kind kind, long id, int dx, int dy, Color color, IShape shape, long after) {
+            this.kind = kind;
+            this.id = id;
+            this.dx = dx;
+            this.dy = dy;
+            this.color = color;
+            this.shape = shape;
+            this.after = after;
+        }
+
+        public Kind getKind() {
+            return kind;
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        private Edit withAfter(long after) {
+            return new Edit(kind, id, dx, dy, color, shape, after);
+        }
+
+        /**
+         * One line, for example "MOVE #12 5 -3" or "ADD #40 after #12
+         * CIRCLE ...".
+         */
+        @Override
+        public String toString() {
+            switch (kind) {
+                case MOVE:
+                    return "MOVE #" + id + " " + dx + " " + dy;
+                case RECOLOR:
+                    return "RECOLOR #" + id + " " + Util.colorToString(color);
+                case REPLACE:
+                    return "REPLACE #" + id + " " + shape;
+                case ADD:
+                    return "ADD #" + id + " after #" + after + " " + shape;
+                case ORDER:
+                    return "ORDER #" + id + " after #" + after;
+                default:
+                    return "REMOVE #" + id;
+            }
+        }
+    }
+
+    /**
+     * The result of a three-way merge.
+     */
+    public static class Merge {
+        private final Scene scene;
+        private final List<Edit> edits;
+        private final List<String> conflicts;
+
+        Merge(Scene scene, List<Edit> edits, List<String> conflicts) {
+            this.scene = scene;
+            this.edits = edits;
+            this.conflicts = conflicts;
+        }
+
+        /**
+         * The merged scene. Where the two sides conflict, ours wins.
+         */
+        public Scene getScene() {
+            return scene;
+        }
+
+        /**
+         * The edits from the base to the merged scene.
+         */
+        public List<Edit> getEdits() {
+            return edits;
+        }
+
+        /**
+         * What both sides changed differently, one line each.
+         */
+        public List<String> getConflicts() {
+            return conflicts;
+        }
+    }
+
+    private static List<IShape> list(Scene scene) {
+        List<IShape> shapes = new ArrayList<IShape>(scene.size());
+        for (IShape s : scene) {
+            shapes.add(s);
+        }
+        return shapes;
+    }
+
+    /**
+     * The edits that turn the base scene into the target scene: first the
+     * removes, then the changes to the shapes both have, then the adds
+     * and reorders in drawing order.
+     *
+     * @param base
+     * @param target
+     * @return
+     */
+    public static List<Edit> diff(Scene base, Scene target) {
+        List<IShape> from = list(base);
+        List<IShape> to = list(target);
+        IdIndex fromIndex = new IdIndex(from.size());
+        for (int i = 0; i < from.size(); i++) {
+            fromIndex.put(from.get(i).getId(), i);
+        }
+        boolean[] matched = new boolean[from.size()];
+        // the position in from of each shape in to, or -1
+        int[] match = new int[to.size()];
+        int unmatched = 0;
+        for (int j = 0; j < to.size(); j++) {
+            int i = fromIndex.get(to.get(j).getId());
+            match[j] = i;
+            if (i != -1) {
+                matched[i] = true;
+            } else {
+                unmatched++;
+            }
+        }
+        if (unmatched > 0) {
+            matchGeometry(from, to, matched, match);
+        }
+
+        List<Edit> edits = new ArrayList<Edit>();
+        for (int i = 0; i < from.size(); i++) {
+            if (!matched[i]) {
+                edits.add(new Edit(Edit.Kind.REMOVE, from.get(i).getId(), 0, 0, null, null, 0));
+            }
+        }
+        for (int j = 0; j < to.size(); j++) {
+            if (match[j] != -1) {
+                changes(from.get(match[j]), to.get(j), edits);
+            }
+        }
+        // the rest keep their order, so only these are placed
+        boolean[] stable = longestIncreasing(match);
+        long after = 0;
+        for (int j = 0; j < to.size(); j++) {
+            IShape t = to.get(j);
+            long id;
+            if (match[j] == -1) {
+                id = t.getId();
+                if (fromIndex.containsKey(id)) {
+                    // a new shape with the id of another one
+                    id = AbstractShape.newId();
+                }
+                edits.add(new Edit(Edit.Kind.ADD, id, 0, 0, null, t, after));
+            } else {
+                id = from.get(match[j]).getId();
+                if (!stable[j]) {
+                    edits.add(new Edit(Edit.Kind.ORDER, id, 0, 0, null, null, after));
+                }
+            }
+            after = id;
+        }
+        return edits;
+    }
+
+    /**
+     * Match the shapes without a matching id to removed shapes of the same
+     * kind and size nearby, the nearest first.
+     */
+    private static void matchGeometry(List<IShape> from, List<IShape> to, boolean[] matched, int[] match) {
+        Map<Long, List<Integer>> cells = new HashMap<Long, List<Integer>>();
+        for (int i = 0; i < from.size(); i++) {
+            if (!matched[i]) {
+                IShape s = from.get(i);
+                long key = key(s, cell(s.getAnchorPoint().x), cell(s.getAnchorPoint().y));
+                cells.computeIfAbsent(key, k -> new ArrayList<Integer>()).add(i);
+            }
+        }
+        for (int j = 0; j < to.size(); j++) {
+            if (match[j] != -1) {
+                continue;
+            }
+            IShape t = to.get(j);
+            int cx = cell(t.getAnchorPoint().x);
+            int cy = cell(t.getAnchorPoint().y);
+            List<Integer> best = null;
+            int bestAt = -1;
+            long bestDistance = Long.MAX_VALUE;
+            for (int x = cx - 1; x <= cx + 1; x++) {
+                for (int y = cy - 1; y <= cy + 1; y++) {
+                    List<Integer> candidates = cells.get(key(t, x, y));
+                    if (candidates == null) {
+                        continue;
+                    }
+                    for (int k = 0; k < candidates.size(); k++) {
+                        IShape s = from.get(candidates.get(k));
+                        if (!sameKind(s, t)) {
+                            continue;
+                        }
+                        long dx = s.getAnchorPoint().x - t.getAnchorPoint().x;
+                        long dy = s.getAnchorPoint().y - t.getAnchorPoint().y;
+                        if (dx * dx + dy * dy < bestDistance) {
+                            bestDistance = dx * dx + dy * dy;
+                            best = candidates;
+                            bestAt = k;
+                        }
+                    }
+                }
+            }
+            if (best != null) {
+                int i = best.remove(bestAt);
+                matched[i] = true;
+                match[j] = i;
+            }
+        }
+    }
+
+    private static int cell(int coordinate) {
+        return Math.floorDiv(coordinate, MATCH_CELL);
+    }
+
+    private static long key(IShape s, int cx, int cy) {
+        BoundingBox b = s.getBoundingBox();
+        long h = s.getClass().getName().hashCode();
+        h = h * 31 + (b.getRight() - b.getLeft());
+        h = h * 31 + (b.getBottom() - b.getTop());
+        h = h * 31 + s.getLength();
+        h = h * 0x9E3779B97F4A7C15L + cx;
+        h = h * 0x9E3779B97F4A7C15L + cy;
+        return h;
+    }
+
+    private static boolean sameKind(IShape a, IShape b) {
+        BoundingBox x = a.getBoundingBox();
+        BoundingBox y = b.getBoundingBox();
+        return a.getClass() == b.getClass() && a.getLength() == b.getLength() && SceneHistory.sameExactSize(a, b)
+                && x.getRight() - x.getLeft() == y.getRight() - y.getLeft()
+                && x.getBottom() - x.getTop() == y.getBottom() - y.getTop();
+    }
+
+    /**
+     * The edits that turn shape b into shape t: a move and a recolor if
+     * that is all it takes, otherwise a replace.
+     */
+    private static void changes(IShape b, IShape t, List<Edit> edits) {
+        long id = b.getId();
+        BoundingBox x = b.getBoundingBox();
+        BoundingBox y = t.getBoundingBox();
+        int dx = y.getLeft() - x.getLeft();
+        int dy = y.getTop() - x.getTop();
+        boolean moved = sameKind(b, t) && t.getAnchorPoint().x - b.getAnchorPoint().x == dx
+                && t.getAnchorPoint().y - b.getAnchorPoint().y == dy;
+        if (moved && (b instanceof Group || b instanceof InstancedShape)) {
+            // only the same if what is inside moved along
+            IShape c = b.copy();
+            c.move(dx, dy);
+            c.setColor(t.getColor());
+            c.setSelected(t.isSelected());
+            moved = withoutIds(c).equals(withoutIds(t));
+        }
+        if (!moved) {
+            edits.add(new Edit(Edit.Kind.REPLACE, id, 0, 0, null, t, 0));
+            return;
+        }
+        if (dx != 0 || dy != 0) {
+            edits.add(new Edit(Edit.Kind.MOVE, id, dx, dy, null, null, 0));
+        }
+        if (b.getColor() != t.getColor()) {
+            edits.add(new Edit(Edit.Kind.RECOLOR, id, 0, 0, t.getColor(), null, 0));
+        }
+    }
+
+    private static String withoutIds(IShape s) {
+        return Scene.ID_PATTERN.matcher(s.toString()).replaceAll("");
+    }
+
+    /**
+     * Mark the longest run of matched positions that is increasing, that
+     * is, the most shapes that can stay where they are.
+     */
+    private static boolean[] longestIncreasing(int[] positions) {
+        int n = positions.length;
+        // tails[k]: the index in positions ending the best run of length k + 1
+        int[] tails = new int[n];
+        int[] previous = new int[n];
+        int length = 0;
+        for (int j = 0; j < n; j++) {
+            int p = positions[j];
+            if (p == -1) {
+                continue;
+            }
+            int lo = 0;
+            int hi = length;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (positions[tails[mid]] < p) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            previous[j] = lo > 0 ? tails[lo - 1] : -1;
+            tails[lo] = j;
+            if (lo == length) {
+                length++;
+            }
+        }
+        boolean[] stable = new boolean[n];
+        for (int j = length > 0 ? tails[length - 1] : -1; j != -1; j = previous[j]) {
+            stable[j] = true;
+        }
+        return stable;
+    }
+
+    /**
+     * Apply an edit script to a copy of the base scene. Edits for shapes
+     * that aren't there are skipped, and adds after a shape that isn't
+     * there go on top.
+     *
+     * @param base   not changed
+     * @param edits
+     * @return a new scene
+     */
+    public static Scene apply(Scene base, List<Edit> edits) {
+        List<IShape> from = list(base);
+        int capacity = from.size() + 1;
+        for (Edit e : edits) {
+            if (e.kind == Edit.Kind.ADD) {
+                capacity++;
+            }
+        }
+        // a circular linked list in drawing order, slot 0 is the head
+        IShape[] shapes = new IShape[capacity];
+        boolean[] copied = new boolean[capacity];
+        int[] prev = new int[capacity];
+        int[] next = new int[capacity];
+        IdIndex slots = new IdIndex(capacity);
+        int used = 1;
+        for (IShape s : from) {
+            shapes[used] = s;
+            slots.put(s.getId(), used);
+            insertAfter(prev[0], used, prev, next);
+            used++;
+        }
+        for (Edit e : edits) {
+            int slot = slots.get(e.id);
+            switch (e.kind) {
+                case REMOVE:
+                    if (slot != -1) {
+                        unlink(slot, prev, next);
+                        slots.remove(e.id);
+                    }
+                    break;
+                case MOVE:
+                case RECOLOR:
+                    if (slot != -1) {
+                        if (!copied[slot]) {
+                            shapes[slot] = SceneHistory.snapshot(shapes[slot]);
+                            copied[slot] = true;
+                        }
+                        if (e.kind == Edit.Kind.MOVE) {
+                            shapes[slot].move(e.dx, e.dy);
+                        } else {
+                            shapes[slot].setColor(e.color);
+                        }
+                    }
+                    break;
+                case REPLACE:
+                    if (slot != -1) {
+                        shapes[slot] = SceneHistory.snapshot(e.shape);
+                        shapes[slot].setId(e.id);
+                        copied[slot] = true;
+                    }
+                    break;
+                case ADD:
+                    slot = used++;
+                    shapes[slot] = SceneHistory.snapshot(e.shape);
+                    shapes[slot].setId(e.id);
+                    copied[slot] = true;
+                    slots.put(e.id, slot);
+                    insertAfter(e.after == 0 ? 0 : after(slots, e.after, prev[0]), slot, prev, next);
+                    break;
+                case ORDER:
+                    int to = e.after == 0 ? 0 : slots.get(e.after);
+                    if (slot != -1 && to != -1) {
+                        unlink(slot, prev, next);
+                        insertAfter(to, slot, prev, next);
+                    }
+                    break;
+            }
+        }
+        List<IShape> result = new ArrayList<IShape>(used);
+        for (int slot = next[0]; slot != 0; slot = next[slot]) {
+            result.add(copied[slot] ? shapes[slot] : SceneHistory.snapshot(shapes[slot]));
+        }
+        Scene scene = new Scene();
+        scene.addShapes(result);
+        return scene;
+    }
+
+    private static int after(IdIndex slots, long id, int otherwise) {
+        int slot = slots.get(id);
+        return slot == -1 ? otherwise : slot;
+    }
+
+    private static void unlink(int slot, int[] prev, int[] next) {
+        next[prev[slot]] = next[slot];
+        prev[next[slot]] = prev[slot];
+    }
+
+    private static void insertAfter(int at, int slot, int[] prev, int[] next) {
+        prev[slot] = at;
+        next[slot] = next[at];
+        prev[next[at]] = slot;
+        next[at] = slot;
+    }
+
+    /**
+     * What one side did to one shape of the base.
+     */
+    private static class Change {
+        Edit remove;
+        Edit move;
+        Edit recolor;
+        Edit replace;
+        Edit order;
+
+        boolean changed() {
+            return move != null || recolor != null || replace != null;
+        }
+    }
+
+    private static Map<Long, Change> changes(List<Edit> edits) {
+        Map<Long, Change> changes = new LinkedHashMap<Long, Change>();
+        for (Edit e : edits) {
+            if (e.kind == Edit.Kind.ADD) {
+                continue;
+            }
+            Change c = changes.computeIfAbsent(e.id, k -> new Change());
+            switch (e.kind) {
+                case REMOVE:
+                    c.remove = e;
+                    break;
+                case MOVE:
+                    c.move = e;
+                    break;
+                case RECOLOR:
+                    c.recolor = e;
+                    break;
+                case REPLACE:
+                    c.replace = e;
+                    break;
+                default:
+                    c.order = e;
+            }
+        }
+        return changes;
+    }
+
+    /**
+     * Merge the changes from base to ours and from base to theirs. Where
+     * both changed the same thing differently, ours wins and the conflict
+     * is reported.
+     *
+     * @param base
+     * @param ours
+     * @param theirs
+     * @return
+     */
+    public static Merge merge(Scene base, Scene ours, Scene theirs) {
+        List<Edit> oursEdits = diff(base, ours);
+        List<Edit> theirsEdits = diff(base, theirs);
+        Map<Long, Change> o = changes(oursEdits);
+        Map<Long, Change> t = changes(theirsEdits);
+        List<Edit> edits = new ArrayList<Edit>();
+        List<String> conflicts = new ArrayList<String>();
+
+        Set<Long> ids = new LinkedHashSet<Long>(o.keySet());
+        ids.addAll(t.keySet());
+        List<Edit> removes = new ArrayList<Edit>();
+        for (long id : ids) {
+            Change co = o.getOrDefault(id, new Change());
+            Change ct = t.getOrDefault(id, new Change());
+            if (co.remove != null || ct.remove != null) {
+                if (co.remove != null && ct.changed() || ct.remove != null && co.changed()) {
+                    conflicts.add("#" + id + " removed on one side and changed on the other");
+                }
+                if (co.remove != null || !co.changed()) {
+                    removes.add(co.remove != null ? co.remove : ct.remove);
+                    continue;
+                }
+            }
+            if (co.replace != null || ct.replace != null) {
+                if (co.replace != null && ct.replace != null
+                        && !withoutIds(co.replace.shape).equals(withoutIds(ct.replace.shape))
+                        || co.replace != null && (ct.move != null || ct.recolor != null)
+                        || ct.replace != null && (co.move != null || co.recolor != null)) {
+                    conflicts.add("#" + id + " replaced on one side and changed on the other");
+                }
+                if (co.replace != null) {
+                    edits.add(co.replace);
+                    continue;
+                }
+                if (!co.changed()) {
+                    edits.add(ct.replace);
+                    continue;
+                }
+            }
+            Edit move = pick(id, co.move, ct.move, conflicts);
+            if (move != null) {
+                edits.add(move);
+            }
+            Edit recolor = pick(id, co.recolor, ct.recolor, conflicts);
+            if (recolor != null) {
+                edits.add(recolor);
+            }
+        }
+        edits.addAll(0, removes);
+
+        // ours' order, then theirs' adds and the reorders ours didn't make
+        Set<Long> taken = new HashSet<Long>();
+        Map<Long, Edit> oursAdds = new HashMap<Long, Edit>();
+        for (Edit e : oursEdits) {
+            if (e.kind == Edit.Kind.ADD || e.kind == Edit.Kind.ORDER) {
+                edits.add(e);
+                taken.add(e.id);
+            }
+            if (e.kind == Edit.Kind.ADD) {
+                oursAdds.put(e.id, e);
+            }
+        }
+        Map<Long, Long> renamed = new HashMap<Long, Long>();
+        for (Edit e : theirsEdits) {
+            long after = renamed.getOrDefault(e.after, e.after);
+            if (e.kind == Edit.Kind.ADD) {
+                Edit same = oursAdds.get(e.id);
+                if (same != null && withoutIds(same.shape).equals(withoutIds(e.shape))) {
+                    // both added it
+                    continue;
+                }
+                Edit add = e;
+                if (taken.contains(e.id)) {
+                    add = new Edit(Edit.Kind.ADD, AbstractShape.newId(), 0, 0, null, e.shape, after);
+                    renamed.put(e.id, add.id);
+                } else if (after != e.after) {
+                    add = e.withAfter(after);
+                }
+                edits.add(add);
+                taken.add(add.id);
+            } else if (e.kind == Edit.Kind.ORDER) {
+                Change co = o.get(e.id);
+                if (co != null && co.order != null) {
+                    if (co.order.after != e.after) {
+                        conflicts.add("#" + e.id + " reordered differently on both sides");
+                    }
+                } else {
+                    edits.add(e.withAfter(after));
+                }
+            }
+        }
+        return new Merge(apply(base, edits), edits, conflicts);
+    }
+
+    /**
+     * The edit to keep when both sides may have made one of the same kind.
+     */
+    private static Edit pick(long id, Edit ours, Edit theirs, List<String> conflicts) {
+        if (ours == null) {
+            return theirs;
+        }
+        if (theirs != null && !ours.toString().equals(theirs.toString())) {
+            conflicts.add("#" + id + " " + ours.kind + " differently on both sides");
+        }
+        return ours;
+    }
+
+    /**
+     * java drawshapes.SceneDiff base target: print the edits from base to
+     * target.
+     *
+     * java drawshapes.SceneDiff --merge base ours theirs merged: merge
+     * into a new file and print the conflicts.
+     *
+     * @param args
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length == 5 && args[0].equals("--merge")) {
+            Merge merge = merge(load(args[1]), load(args[2]), load(args[3]));
+            SceneGenerator.writeText(merge.getScene(), new File(args[4]));
+            for (String conflict : merge.getConflicts()) {
+                System.err.println("conflict: " + conflict);
+            }
+            System.err.printf("%d edits, %d conflicts%n", merge.getEdits().size(), merge.getConflicts().size());
+        } else if (args.length == 2) {
+            long start = System.nanoTime();
+            List<Edit> edits = diff(load(args[0]), load(args[1]));
+            StringBuilder text = new StringBuilder();
+            for (Edit e : edits) {
+                text.append(e).append('\n');
+            }
+            System.out.print(text);
+            System.err.printf("%d edits in %.0f ms%n", edits.size(), (System.nanoTime() - start) / 1e6);
+        } else {
+            System.err.println("usage: java drawshapes.SceneDiff base target");
+            System.err.println("       java drawshapes.SceneDiff --merge base ours theirs merged");
+            System.exit(1);
+        }
+    }
+
+    private static Scene load(String file) throws Exception {
+        Scene scene = new Scene();
+        scene.loadShapes(new File(file));
+        return scene;
+    }
+}
@@ -0,0 +1,450 @@
+package drawshapes;
+
+import java.awt.Color;
+import java.awt.Point;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * The edits DrawShapes makes to its scene in response to the mouse, the
+ * keyboard and the menus, with undo and redo, but without any Swing.
+ * Every edit is a version in a SceneHistory, so undo and redo are just
+ * jumps to the version before or after. Chunked and paged scenes have no
+ * history (see SceneHistory.supports()), so for them undo and redo do
+ * nothing.
+ *
+ * DrawShapes turns input into calls to this class, and so does
+ * SessionReplayer when it replays a recorded session, so a replay runs
+ * exactly the same code as the user did. While a SessionRecorder is set,
+ * every edit is recorded.
+ *
+ * Points are in world coordinates.
+ */
+public class SceneEditor {
+    // the 'v' animation and the 'n' dance, in milliseconds
+    static final int ANIMATE_FRAMES = 33;
+    static final int ANIMATE_INTERVAL = 300;
+    static final int DANCE_STEPS = 50;
+    static final int DANCE_INTERVAL = 100;
+    private static final String[] COLORS = { "BLUE", "GREEN", "YELLOW", "RED", "CYAN", "BLACK" };
+
+    private final Scene scene;
+    // null while the scene is chunked or paged
+    private SceneHistory history;
+    private SessionRecorder recorder;
+    // true while the selection is being scaled with the wheel
+    private boolean wheelScaling;
+    int distance = 25;
+
+    public SceneEditor(Scene scene) {
+        this.scene = scene;
+        this.history = SceneHistory.supports(scene) ? new SceneHistory(scene) : null;
+    }
+
+    public Scene getScene() {
+        return scene;
+    }
+
+    /**
+     * The history of the scene, or null if it is chunked or paged.
+     */
+    public SceneHistory getHistory() {
+        return history;
+    }
+
+    /**
+     * Record every edit from now on, or stop recording with null.
+     *
+     * @param recorder
+     */
+    public void setRecorder(SessionRecorder recorder) {
+        this.recorder = recorder;
+    }
+
+    public SessionRecorder getRecorder() {
+        return recorder;
+    }
+
+    /**
+     * Make the edit a version in the history, starting a new history if
+     * the scene stopped being chunked, for example after clear().
+     */
+    private void commit() {
+        if (history != null) {
+            history.commit(scene);
+        } else if (SceneHistory.supports(scene)) {
+            history = new SceneHistory(scene);
+        }
+    }
+
+    /**
+     * After loading a file: a keyframe, so undo goes back to the scene
+     * before. A scene that became chunked loses its history, and one that
+     * stopped being chunked starts a new one.
+     */
+    private void commitKeyframe() {
+        if (!SceneHistory.supports(scene)) {
+            if (history != null) {
+                history.close();
+                history = null;
+            }
+        } else if (history == null) {
+            history = new SceneHistory(scene);
+        } else {
+            history.commitKeyframe(scene);
+        }
+    }
+
+    private void record(SessionRecorder.Op op, int... args) {
+        if (op != SessionRecorder.Op.SCALE_BY) {
+            endWheelScaling();
+        }
+        if (recorder != null) {
+            recorder.record(op, args);
+        }
+    }
+
+    /**
+     * Make a run of scaleBy() one version in the history.
+     */
+    private void endWheelScaling() {
+        if (wheelScaling) {
+            wheelScaling = false;
+            commit();
+        }
+    }
+
+    /**
+     * Add a new shape of the given kind at the point.
+     */
+    public void addShape(DrawShapes.ShapeType type, Color color, Point p) {
+        record(SessionRecorder.Op.ADD, type.ordinal(), p.x, p.y, color.getRGB());
+        if (type == DrawShapes.ShapeType.SQUARE) {
+            scene.addShape(new Square(color, p.x, p.y, 100));
+        } else if (type == DrawShapes.ShapeType.CIRCLE) {
+            scene.addShape(new Circle(color, p, 100));
+        } else {
+            scene.addShape(new Rectangle(p, 100, 200, color));
+        }
+        commit();
+    }
+
+    /**
+     * Select the shapes containing the point, or deselect everything if
+     * there are none.
+     *
+     * @return how many shapes were selected
+     */
+    public int selectAt(Point p) {
+        record(SessionRecorder.Op.SELECT, p.x, p.y);
+        List<IShape> selected = scene.select(p);
+        if (selected.size() > 0) {
+            scene.setSelected(selected, true);
+        } else {
+            for (IShape s : scene) {
+                s.setSelected(false);
+            }
+        }
+        return selected.size();
+    }
+
+    /**
+     * Select exactly the shapes matching the query, see SceneQuery.
+     *
+     * @return how many shapes were selected
+     * @throws IllegalArgumentException if the query can't be parsed
+     */
+    public int selectWhere(String query) {
+        List<IShape> selected = scene.query(query);
+        endWheelScaling();
+        if (recorder != null) {
+            recorder.recordQuery(query);
+        }
+        for (IShape s : scene) {
+            s.setSelected(false);
+        }
+        scene.setSelected(selected, true);
+        return selected.size();
+    }
+
+    public void startDrag(Point p) {
+        record(SessionRecorder.Op.DRAG_START, p.x, p.y);
+        scene.startDrag(p);
+    }
+
+    public void dragTo(Point p) {
+        record(SessionRecorder.Op.DRAG, p.x, p.y);
+        scene.updateSelectRect(p);
+    }
+
+    public void stopDrag() {
+        record(SessionRecorder.Op.DRAG_STOP);
+        scene.stopDrag();
+    }
+
+    public void move(int dx, int dy) {
+        record(SessionRecorder.Op.MOVE, dx, dy);
+        scene.move(dx, dy);
+        commit();
+    }
+
+    public void scale(boolean up) {
+        record(SessionRecorder.Op.SCALE, up ? 1 : 0);
+        scene.scale(up);
+        commit();
+    }
+
+    /**
+     * Scale the selection by any factor, for the mouse wheel. A run of
+     * these with no other edit in between is one step for undo.
+     *
+     * @param factor
+     */
+    public void scaleBy(float factor) {
+        record(SessionRecorder.Op.SCALE_BY, Float.floatToIntBits(factor));
+        wheelScaling = true;
+        scene.scale(factor);
+    }
+
+    public void undo() {
+        record(SessionRecorder.Op.UNDO);
+        if (history != null) {
+            history.undo(scene);
+        }
+    }
+
+    public void redo() {
+        record(SessionRecorder.Op.REDO);
+        if (history != null) {
+            history.redo(scene);
+        }
+    }
+
+    /**
+     * Go to any version in the history, see SceneHistory.
+     *
+     * @param version
+     */
+    public void jumpTo(int version) {
+        record(SessionRecorder.Op.JUMP, version);
+        if (history != null && version < history.getVersionCount()) {
+            history.jumpTo(scene, version);
+        }
+    }
+
+    public void group() {
+        record(SessionRecorder.Op.GROUP);
+        scene.groupSelection();
+        commit();
+    }
+
+    public void ungroup() {
+        record(SessionRecorder.Op.UNGROUP);
+        scene.ungroupSelection();
+        commit();
+    }
+
+    public void instance() {
+        record(SessionRecorder.Op.INSTANCE);
+        scene.instanceSelection();
+        commit();
+    }
+
+    public void bringForward() {
+        record(SessionRecorder.Op.FORWARD);
+        scene.bringForward();
+        commit();
+    }
+
+    public void sendBackward() {
+        record(SessionRecorder.Op.BACKWARD);
+        scene.sendBackward();
+        commit();
+    }
+
+    /**
+     * Turn every selected square into a circle, circle into a rectangle
+     * and rectangle into a square.
+     */
+    public void changeShapes() {
+        record(SessionRecorder.Op.CHANGE);
+        // replacing shapes while iterating over the scene would be fragile
+        for (IShape s : scene.selectedShapes()) {
+            changeShape(s);
+        }
+        commit();
+    }
+
+    void changeShape(IShape shape) {
+        if (shape instanceof Square) {
+            // Convert to Circle
+            Circle newShape = new Circle(shape.getColor(), shape.getAnchorPoint(), shape.getLength());
+            newShape.setSelected(true);
+            scene.replaceShape(shape, newShape);
+        } else if (shape instanceof Circle) {
+            // Convert to Rectangle
+            Circle circle = (Circle) shape;
+            Rectangle newShape = new Rectangle(shape.getAnchorPoint(), (int) (circle.getLength() * 0.75),
+                    (int) (circle.getLength() * 1.5),
+                    shape.getColor());
+            newShape.setSelected(true);
+            scene.replaceShape(shape, newShape);
+        } else if (shape instanceof Rectangle) {
+            // Convert to Square
+            Square newShape = new Square(shape.getColor(), shape.getAnchorPoint().x, shape.getAnchorPoint().y,
+                    shape.getLength());
+            newShape.setSelected(true);
+            scene.replaceShape(shape, newShape);
+        }
+    }
+
+    public void copy(ShapeClipboard clipboard) {
+        record(SessionRecorder.Op.COPY);
+        clipboard.set(scene.copySelection());
+    }
+
+    /**
+     * @return false if nothing was selected
+     */
+    public boolean cut(ShapeClipboard clipboard) {
+        record(SessionRecorder.Op.CUT);
+        List<IShape> selected = scene.selectedShapes();
+        if (selected.isEmpty()) {
+            return false;
+        }
+        clipboard.set(scene.copySelection());
+        scene.removeShapes(selected);
+        commit();
+        return true;
+    }
+
+    /**
+     * Paste, a little further away every time.
+     *
+     * @return false if the clipboard was empty
+     */
+    public boolean paste(ShapeClipboard clipboard) {
+        record(SessionRecorder.Op.PASTE);
+        List<IShape> shapes = clipboard.get();
+        if (shapes.isEmpty()) {
+            return false;
+        }
+        int offset = clipboard.nextPaste() * distance;
+        scene.paste(shapes, offset, offset);
+        commit();
+        return true;
+    }
+
+    /**
+     * Copy and paste in one step, leaving the clipboard alone.
+     *
+     * @return false if nothing was selected
+     */
+    public boolean duplicate() {
+        record(SessionRecorder.Op.DUPLICATE);
+        List<IShape> copies = scene.copySelection();
+        if (copies.isEmpty()) {
+            return false;
+        }
+        scene.paste(copies, distance, distance);
+        commit();
+        return true;
+    }
+
+    /**
+     * Start the 'v' animation of the selected shapes: every
+     * ANIMATE_INTERVAL they get a random color and are scaled up or back
+     * down, ANIMATE_FRAMES times. The seed is recorded, so a replay picks
+     * the same colors. The caller runs the effects, see EffectRuntime.
+     *
+     * @param seed
+     * @return one effect per selected shape
+     */
+    public List<Effect> startAnimation(int seed) {
+        record(SessionRecorder.Op.ANIMATE_SEEDED, seed);
+        Random rand = new Random(seed);
+        List<Effect> effects = new ArrayList<Effect>();
+        for (IShape s : scene.selectedShapes()) {
+            Effect e = new Effect(scene, s, true);
+            for (int i = 0; i < ANIMATE_FRAMES; i++) {
+                e.keyframe(i * ANIMATE_INTERVAL, 0, 0, i % 2 == 0 ? AbstractShape.SCALE_UP : 1.0,
+                        Util.stringToColor(COLORS[rand.nextInt(COLORS.length)]));
+            }
+            effects.add(e);
+        }
+        return effects;
+    }
+
+    /**
+     * Make what the effects did a version in the history, once the last
+     * one is over. The effects journal their shapes themselves, see
+     * Effect.settle().
+     */
+    public void effectsFinished() {
+        commit();
+    }
+
+    /**
+     * Start the 'n' dance of the selected shapes: every DANCE_INTERVAL
+     * they take a random step, DANCE_STEPS times. The seed is recorded,
+     * so a replay dances the same steps. The caller runs the effects.
+     *
+     * @param seed
+     * @return one effect per selected shape
+     */
+    public List<Effect> startDance(int seed) {
+        record(SessionRecorder.Op.DANCE, seed);
+        List<IShape> dancers = scene.selectedShapes();
+        List<Effect> effects = new ArrayList<Effect>();
+        for (int n = 0; n < dancers.size(); n++) {
+            Random rand = new Random(seed * 31L + n);
+            Effect e = new Effect(scene, dancers.get(n), true);
+            int x = 0;
+            int y = 0;
+            for (int i = 0; i < DANCE_STEPS; i++) {
+                x += rand.nextInt(20) - 10;
+                y += rand.nextInt(20) - 10;
+                e.keyframe(i * DANCE_INTERVAL, x, y, 1.0, null);
+            }
+            effects.add(e);
+        }
+        return effects;
+    }
+
+    /**
+     * Replace the scene with the shapes in a file. Undo goes back to the
+     * scene before.
+     */
+    public void load(File file) throws Exception {
+        scene.loadShapes(file);
+        wheelScaling = false;
+        commitKeyframe();
+        if (recorder != null) {
+            recorder.recordLoad(SessionRecorder.Op.LOAD, file);
+        }
+    }
+
+    /**
+     * Open a chunked scene file, see Scene.loadChunked().
+     */
+    public void loadChunked(File file) throws IOException {
+        scene.loadChunked(file);
+        wheelScaling = false;
+        commitKeyframe();
+        if (recorder != null) {
+            recorder.recordLoad(SessionRecorder.Op.LOAD_CHUNKED, file);
+        }
+    }
+
+    /**
+     * Empty the scene, as File-&gt;Save does after saving.
+     */
+    public void clear() {
+        record(SessionRecorder.Op.CLEAR);
+        scene.reload(new Scene());
+        commit();
+    }
+}
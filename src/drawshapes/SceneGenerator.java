@@ -0,0 +1,195 @@
+package drawshapes;
+
+import java.awt.Color;
+import java.awt.Point;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Builds scenes of squares, rectangles and circles with a given number of
+ * shapes and a given spatial distribution, for benchmarks and stress
+ * tests. The same seed always gives the same scene.
+ *
+ * Run with:
+ * java drawshapes.SceneGenerator [--count N] [--distribution NAME] [--world N] [--seed N] [--chunked] file
+ *
+ * Without --chunked the file is in the File-&gt;Save format, with --chunked
+ * it is a ChunkedSceneFile, which is smaller and faster to open.
+ */
+public class SceneGenerator {
+    public enum Distribution {
+        /** sizes 10-60, anywhere in the world */
+        UNIFORM,
+        /** sizes 10-60, in gaussian clusters of about 1000 shapes */
+        CLUSTERED,
+        /** sizes 50-250, all piled up in a small area in the middle */
+        OVERLAPPING,
+        /** sizes 1-3, anywhere in the world */
+        TINY,
+        /** like UNIFORM, plus one in a thousand shapes a quarter to half the world wide */
+        HUGE
+    }
+
+    private static final Color[] COLORS = { Color.RED, Color.BLUE, Color.GREEN, Color.YELLOW, Color.CYAN,
+            Color.BLACK };
+
+    private final Random rand;
+    private final int world;
+
+    /**
+     * @param seed
+     * @param world the shapes are centered in 0..world in both directions
+     */
+    public SceneGenerator(long seed, int world) {
+        this.rand = new Random(seed);
+        this.world = world;
+    }
+
+    /**
+     * Build a new scene.
+     *
+     * @param count
+     * @param distribution
+     * @return
+     */
+    public Scene generate(int count, Distribution distribution) {
+        Scene scene = new Scene();
+        scene.addShapes(Arrays.asList(shapes(count, distribution)));
+        return scene;
+    }
+
+    /**
+     * Build the shapes without putting them in a scene.
+     *
+     * @param count
+     * @param distribution
+     * @return
+     */
+    public IShape[] shapes(int count, Distribution distribution) {
+        IShape[] shapes = new IShape[count];
+        int[][] centers = null;
+        if (distribution == Distribution.CLUSTERED) {
+            centers = new int[count / 1000 + 1][2];
+            for (int[] c : centers) {
+                c[0] = rand.nextInt(world);
+                c[1] = rand.nextInt(world);
+            }
+        }
+        for (int i = 0; i < count; i++) {
+            int x;
+            int y;
+            int size;
+            switch (distribution) {
+                case CLUSTERED:
+                    int[] c = centers[rand.nextInt(centers.length)];
+                    x = clamp(c[0] + (int) (rand.nextGaussian() * world / 50));
+                    y = clamp(c[1] + (int) (rand.nextGaussian() * world / 50));
+                    size = 10 + rand.nextInt(51);
+                    break;
+                case OVERLAPPING:
+                    x = world / 2 - world / 40 + rand.nextInt(world / 20 + 1);
+                    y = world / 2 - world / 40 + rand.nextInt(world / 20 + 1);
+                    size = 50 + rand.nextInt(201);
+                    break;
+                case TINY:
+                    x = rand.nextInt(world);
+                    y = rand.nextInt(world);
+                    size = 1 + rand.nextInt(3);
+                    break;
+                case HUGE:
+                    x = rand.nextInt(world);
+                    y = rand.nextInt(world);
+                    size = rand.nextInt(1000) == 0 ? world / 4 + rand.nextInt(world / 4 + 1) : 10 + rand.nextInt(51);
+                    break;
+                default:
+                    x = rand.nextInt(world);
+                    y = rand.nextInt(world);
+                    size = 10 + rand.nextInt(51);
+            }
+            shapes[i] = shape(x, y, size);
+        }
+        return shapes;
+    }
+
+    private IShape shape(int x, int y, int size) {
+        Color color = COLORS[rand.nextInt(COLORS.length)];
+        switch (rand.nextInt(3)) {
+            case 0:
+                return new Square(color, x, y, size);
+            case 1:
+                return new Circle(color, new Point(x, y), size);
+            default:
+                return new Rectangle(new Point(x, y), size, Math.max(size / 2, 1), color);
+        }
+    }
+
+    private int clamp(int v) {
+        return Math.max(0, Math.min(world - 1, v));
+    }
+
+    /**
+     * Write the shapes in the File-&gt;Save format.
+     *
+     * @param shapes
+     * @param file
+     * @throws IOException
+     */
+    public static void writeText(Iterable<IShape> shapes, File file) throws IOException {
+        try (PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(file), 1 << 16))) {
+            for (IShape s : shapes) {
+                out.println(s.toString());
+            }
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        int count = intArg(args, "--count", 100000);
+        int world = intArg(args, "--world", 20000);
+        long seed = intArg(args, "--seed", 42);
+        Distribution distribution = Distribution.valueOf(stringArg(args, "--distribution", "UNIFORM").toUpperCase());
+        boolean chunked = false;
+        File file = null;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--chunked")) {
+                chunked = true;
+            } else if (args[i].startsWith("--")) {
+                i++;
+            } else {
+                file = new File(args[i]);
+            }
+        }
+        if (file == null) {
+            System.err.println("usage: java drawshapes.SceneGenerator [--count N] [--distribution "
+                    + Arrays.toString(Distribution.values()) + "] [--world N] [--seed N] [--chunked] file");
+            System.exit(1);
+        }
+
+        long start = System.nanoTime();
+        Scene scene = new SceneGenerator(seed, world).generate(count, distribution);
+        if (chunked) {
+            ChunkedSceneFile.write(scene, file, ChunkedSceneFile.DEFAULT_CELL_SIZE);
+        } else {
+            writeText(scene, file);
+        }
+        System.err.printf("%d %s shapes written to %s (%d bytes) in %.0f ms%n", count, distribution, file,
+                file.length(), (System.nanoTime() - start) / 1e6);
+    }
+
+    static int intArg(String[] args, String name, int otherwise) {
+        return Integer.parseInt(stringArg(args, name, Integer.toString(otherwise)));
+    }
+
+    static String stringArg(String[] args, String name, String otherwise) {
+        for (int i = 0; i + 1 < args.length; i++) {
+            if (args[i].equals(name)) {
+                return args[i + 1];
+            }
+        }
+        return otherwise;
+    }
+}
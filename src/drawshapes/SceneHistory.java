@@ -0,0 +1,714 @@
+package drawshapes;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.awt.Color;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.Scanner;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Every version of a scene, for undo, redo and jumping anywhere in the
+ * past.
+ *
+ * Every interval versions (and when a file is loaded) the whole scene is
+ * kept as a keyframe. The versions in between only keep a delta: the ids
+ * of the removed shapes, copies of the added and changed shapes, and the
+ * new drawing order if it changed other than by adding at the end. Going
+ * to any version loads the keyframe before it and applies at most
+ * interval deltas.
+ *
+ * A delta is built from the edits the scene reports to its listeners,
+ * so committing costs as much as the edit and not the whole scene. Only
+ * a reload (or a scene other than the one the history started with) is
+ * compared shape by shape. Selecting alone isn't reported and is not a
+ * version of its own: a version keeps the selection the shapes had when
+ * they were last edited.
+ *
+ * Only the latest keyframes stay in memory; older ones are written to a
+ * temporary file (in the File-&gt;Save format, gzipped) and read back when
+ * they are needed, and so are all but the latest one when the heap is
+ * nearly full.
+ *
+ * Chunked and paged scenes have no history: their shapes come and go
+ * with the view, so they can't be compared shape by shape, and a copy
+ * of the whole scene for every version would cost as much as the scene.
+ * See supports().
+ */
+public class SceneHistory {
+    static final int DEFAULT_INTERVAL = 32;
+    static final int DEFAULT_KEYFRAMES_IN_MEMORY = 8;
+    // rough sizes, for getMemoryBytes()
+    private static final int SHAPE_BYTES = 64;
+    private static final int VERSION_BYTES = 48;
+
+    /**
+     * One version: a keyframe, or a delta from the version before.
+     */
+    private static class Version {
+        // the whole scene; never changed, only copied from
+        Scene keyframe;
+        // where the keyframe was spilled to, or -1
+        long spillOffset = -1;
+        int spillLength;
+        int keyframeShapes;
+        long[] removed;
+        List<IShape> changed;
+        // the ids in drawing order, or null if only shapes were added at the end
+        long[] order;
+
+        boolean isKeyframe() {
+            return keyframe != null || spillOffset != -1;
+        }
+    }
+
+    private final int interval;
+    private final int keyframesInMemory;
+    private final List<Version> versions = new ArrayList<Version>();
+    // the version the scene is at
+    private int cursor;
+    private int sinceKeyframe;
+    // a private copy of the scene at the cursor, to compare with
+    private Scene current;
+    // the last spilled keyframe read back, since scrubbing tends to stay near it
+    private Version lastRead;
+    private Scene lastReadKeyframe;
+    private File spillFile;
+    // the scene we listen to, and the ids of the shapes it reported as
+    // edited since the current version
+    private final Scene tracked;
+    private final Set<Long> edited = new LinkedHashSet<Long>();
+    // shapes may not be in the old order plus new ones at the end
+    private boolean reordered;
+    // the scene was replaced, so compare all of it
+    private boolean reloaded;
+    private final SceneListener listener = new SceneListener() {
+        @Override
+        public void shapeAdded(IShape s) {
+            // only new shapes are known to be on top of the old ones
+            if (current.getShapeById(s.getId()) != null || edited.contains(s.getId())) {
+                reordered = true;
+            }
+            edited.add(s.getId());
+        }
+
+        @Override
+        public void shapesRemoved(Collection<IShape> shapes) {
+            edit(shapes);
+        }
+
+        @Override
+        public void shapesMoved(Collection<IShape> shapes, int dx, int dy) {
+            edit(shapes);
+        }
+
+        @Override
+        public void shapesRecolored(Collection<IShape> shapes, Color color) {
+            edit(shapes);
+        }
+
+        @Override
+        public void shapesScaled(Collection<IShape> shapes) {
+            edit(shapes);
+        }
+
+        @Override
+        public void shapesSwapped(IShape a, IShape b) {
+            reordered = true;
+        }
+
+        @Override
+        public void shapeReplaced(IShape curr, IShape newShape) {
+            edited.add(curr.getId());
+            edited.add(newShape.getId());
+            if (curr.getId() != newShape.getId()) {
+                // the new shape took the place of the old one
+                reordered = true;
+            }
+        }
+
+        @Override
+        public void sceneReloaded() {
+            reloaded = true;
+        }
+
+        private void edit(Collection<IShape> shapes) {
+            for (IShape s : shapes) {
+                edited.add(s.getId());
+            }
+        }
+    };
+    private RandomAccessFile spill;
+    private long memoryBytes;
+
+    /**
+     * Start with the scene as it is as version 0.
+     *
+     * @param scene
+     */
+    public SceneHistory(Scene scene) {
+        this(scene, DEFAULT_INTERVAL, DEFAULT_KEYFRAMES_IN_MEMORY);
+    }
+
+    /**
+     * @param scene
+     * @param interval          versions between keyframes
+     * @param keyframesInMemory how many keyframes to keep in memory
+     * @throws IllegalArgumentException if the scene is chunked or paged
+     */
+    public SceneHistory(Scene scene, int interval, int keyframesInMemory) {
+        checkSupported(scene);
+        this.interval = Math.max(1, interval);
+        this.keyframesInMemory = Math.max(1, keyframesInMemory);
+        this.tracked = scene;
+        addKeyframe(scene);
+        scene.addListener(listener);
+    }
+
+    /**
+     * Can the scene have a history? Not if it is chunked or paged.
+     */
+    public static boolean supports(Scene scene) {
+        return !scene.isChunked() && !(scene instanceof PagedScene);
+    }
+
+    private static void checkSupported(Scene scene) {
+        if (!supports(scene)) {
+            throw new IllegalArgumentException("Chunked and paged scenes have no history");
+        }
+    }
+
+    /**
+     * Copy the shapes of the scene into a new scene, with the same ids
+     * and selection. Copies share geometry until they change, so this is
+     * cheap.
+     */
+    private static Scene snapshot(Scene scene) {
+        Scene sc = new Scene();
+        List<IShape> shapes = new ArrayList<IShape>(scene.size());
+        for (IShape s : scene) {
+            shapes.add(snapshot(s));
+        }
+        sc.addShapes(shapes);
+        return sc;
+    }
+
+    /**
+     * A copy with the same id and selection, children too.
+     */
+    static IShape snapshot(IShape s) {
+        IShape c = s.copy();
+        keepIds(s, c);
+        return c;
+    }
+
+    private static void keepIds(IShape s, IShape c) {
+        c.setId(s.getId());
+        c.setSelected(s.isSelected());
+        if (s instanceof Group) {
+            List<IShape> from = ((Group) s).getChildren();
+            List<IShape> to = ((Group) c).getChildren();
+            for (int i = 0; i < from.size(); i++) {
+                keepIds(from.get(i), to.get(i));
+            }
+        }
+    }
+
+    /**
+     * Add a new version if the scene changed since the version it is at.
+     * Versions after the current one (that were undone) are dropped.
+     *
+     * @param scene
+     * @return true if there was a change
+     * @throws IllegalArgumentException if the scene is chunked or paged
+     */
+    public boolean commit(Scene scene) {
+        checkSupported(scene);
+        Version v = scene == tracked && !reloaded ? edits(scene) : delta(scene);
+        forgetEdits();
+        if (v == null) {
+            return false;
+        }
+        truncate();
+        if (sinceKeyframe + 1 >= interval) {
+            addKeyframe(scene);
+        } else {
+            versions.add(v);
+            cursor = versions.size() - 1;
+            sinceKeyframe++;
+            current = apply(current, v);
+            memoryBytes += VERSION_BYTES + SHAPE_BYTES * v.changed.size()
+                    + 8L * (v.removed.length + (v.order == null ? 0 : v.order.length));
+        }
+        return true;
+    }
+
+    /**
+     * Add a keyframe of the scene as it is, for example after loading a
+     * file, even if nothing changed.
+     *
+     * @param scene
+     * @throws IllegalArgumentException if the scene is chunked or paged
+     */
+    public void commitKeyframe(Scene scene) {
+        checkSupported(scene);
+        truncate();
+        addKeyframe(scene);
+    }
+
+    private void addKeyframe(Scene scene) {
+        Version v = new Version();
+        v.keyframe = snapshot(scene);
+        v.keyframeShapes = v.keyframe.size();
+        versions.add(v);
+        cursor = versions.size() - 1;
+        sinceKeyframe = 0;
+        current = snapshot(v.keyframe);
+        forgetEdits();
+        memoryBytes += VERSION_BYTES + (long) SHAPE_BYTES * v.keyframeShapes;
+        spillIfNeeded();
+    }
+
+    /**
+     * Forget the versions after the cursor.
+     */
+    private void truncate() {
+        while (versions.size() > cursor + 1) {
+            Version v = versions.remove(versions.size() - 1);
+            if (v == lastRead) {
+                lastRead = null;
+                lastReadKeyframe = null;
+            }
+            memoryBytes -= bytes(v);
+        }
+    }
+
+    private static long bytes(Version v) {
+        long b = VERSION_BYTES;
+        if (v.keyframe != null) {
+            b += (long) SHAPE_BYTES * v.keyframeShapes;
+        }
+        if (v.changed != null) {
+            b += SHAPE_BYTES * v.changed.size() + 8L * (v.removed.length + (v.order == null ? 0 : v.order.length));
+        }
+        return b;
+    }
+
+    private void forgetEdits() {
+        edited.clear();
+        reordered = false;
+        reloaded = false;
+    }
+
+    /**
+     * The delta from the edits the scene reported since the current
+     * version: only the edited shapes are compared, and the drawing order
+     * only if shapes may have changed places.
+     *
+     * @return the delta, or null if nothing changed
+     */
+    private Version edits(Scene scene) {
+        List<IShape> changed = new ArrayList<IShape>();
+        List<Long> removed = new ArrayList<Long>();
+        for (long id : edited) {
+            IShape s = scene.getShapeById(id);
+            IShape old = current.getShapeById(id);
+            if (s == null) {
+                if (old != null) {
+                    removed.add(id);
+                }
+            } else if (old == null || !sameState(old, s)) {
+                changed.add(snapshot(s));
+            }
+        }
+        long[] order = null;
+        if (reordered) {
+            order = new long[scene.size()];
+            int i = 0;
+            for (IShape s : scene) {
+                order[i++] = s.getId();
+            }
+            if (isAppended(order, changed, removed)) {
+                order = null;
+            }
+        }
+        if (changed.isEmpty() && removed.isEmpty() && order == null) {
+            return null;
+        }
+        Version v = new Version();
+        v.changed = changed;
+        v.removed = new long[removed.size()];
+        for (int i = 0; i < v.removed.length; i++) {
+            v.removed[i] = removed.get(i);
+        }
+        v.order = order;
+        return v;
+    }
+
+    /**
+     * Is the order the current one, minus the removed shapes, plus the
+     * new ones at the end, as apply() would put them without an order?
+     */
+    private boolean isAppended(long[] order, List<IShape> changed, List<Long> removed) {
+        Set<Long> gone = new HashSet<Long>(removed);
+        int i = 0;
+        for (IShape s : current) {
+            if (gone.contains(s.getId())) {
+                continue;
+            }
+            if (i == order.length || order[i++] != s.getId()) {
+                return false;
+            }
+        }
+        for (IShape s : changed) {
+            if (current.getShapeById(s.getId()) != null) {
+                continue;
+            }
+            if (i == order.length || order[i++] != s.getId()) {
+                return false;
+            }
+        }
+        return i == order.length;
+    }
+
+    /**
+     * Compare the whole scene with the current version.
+     *
+     * @return the delta, or null if nothing changed
+     */
+    private Version delta(Scene scene) {
+        List<IShape> changed = new ArrayList<IShape>();
+        List<Long> removed = new ArrayList<Long>();
+        long[] before = new long[current.size()];
+        int n = 0;
+        for (IShape s : current) {
+            before[n++] = s.getId();
+        }
+        // is the order the old one, minus removed shapes, plus new ones at the end?
+        boolean inOrder = true;
+        boolean added = false;
+        int next = 0;
+        int count = 0;
+        for (IShape s : scene) {
+            count++;
+            IShape old = current.getShapeById(s.getId());
+            if (old == null) {
+                added = true;
+                changed.add(snapshot(s));
+                continue;
+            }
+            if (!sameState(old, s)) {
+                changed.add(snapshot(s));
+            }
+            if (inOrder) {
+                while (next < n && before[next] != s.getId() && scene.getShapeById(before[next]) == null) {
+                    next++;
+                }
+                if (added || next == n || before[next] != s.getId()) {
+                    inOrder = false;
+                } else {
+                    next++;
+                }
+            }
+        }
+        for (int i = 0; i < n; i++) {
+            if (scene.getShapeById(before[i]) == null) {
+                removed.add(before[i]);
+            }
+        }
+        if (changed.isEmpty() && removed.isEmpty() && inOrder) {
+            return null;
+        }
+        Version v = new Version();
+        v.changed = changed;
+        v.removed = new long[removed.size()];
+        for (int i = 0; i < v.removed.length; i++) {
+            v.removed[i] = removed.get(i);
+        }
+        if (!inOrder) {
+            v.order = new long[count];
+            int i = 0;
+            for (IShape s : scene) {
+                v.order[i++] = s.getId();
+            }
+        }
+        return v;
+    }
+
+    /**
+     * Would the two shapes be saved the same?
+     */
+    static boolean sameState(IShape a, IShape b) {
+        if (a.getClass() != b.getClass() || a.getColor() != b.getColor() || a.isSelected() != b.isSelected()
+                || a.getLength() != b.getLength() || !a.getAnchorPoint().equals(b.getAnchorPoint())) {
+            return false;
+        }
+        BoundingBox x = a.getBoundingBox();
+        BoundingBox y = b.getBoundingBox();
+        if (x.getLeft() != y.getLeft() || x.getRight() != y.getRight() || x.getTop() != y.getTop()
+                || x.getBottom() != y.getBottom()) {
+            return false;
+        }
+        if (!sameExactSize(a, b)) {
+            return false;
+        }
+        // what is inside could still be different
+        if (a instanceof Group) {
+            return ((Group) a).getVersion() == ((Group) b).getVersion();
+        }
+        if (a instanceof InstancedShape) {
+            return ((InstancedShape) a).getVersion() == ((InstancedShape) b).getVersion();
+        }
+        return true;
+    }
+
+    /**
+     * Do the two shapes of the same class have the same size before
+     * rounding? Scaling can change that without changing the rounded size.
+     */
+    static boolean sameExactSize(IShape a, IShape b) {
+        if (a instanceof Circle) {
+            return ((Circle) a).getExactDiameter() == ((Circle) b).getExactDiameter();
+        }
+        if (a instanceof Rectangle) {
+            Rectangle x = (Rectangle) a;
+            Rectangle y = (Rectangle) b;
+            return x.getExactWidth() == y.getExactWidth() && x.getExactHeight() == y.getExactHeight();
+        }
+        return true;
+    }
+
+    /**
+     * Apply a delta to a scene that is at the version before it.
+     *
+     * @return the scene, or a new one if the order changed
+     */
+    private static Scene apply(Scene scene, Version v) {
+        List<IShape> gone = new ArrayList<IShape>(v.removed.length);
+        for (long id : v.removed) {
+            gone.add(scene.getShapeById(id));
+        }
+        scene.removeShapes(gone);
+        List<IShape> added = new ArrayList<IShape>();
+        for (IShape s : v.changed) {
+            IShape c = snapshot(s);
+            if (!scene.replaceShapeById(s.getId(), c)) {
+                added.add(c);
+            }
+        }
+        scene.addShapes(added);
+        if (v.order != null) {
+            List<IShape> ordered = new ArrayList<IShape>(v.order.length);
+            for (long id : v.order) {
+                ordered.add(scene.getShapeById(id));
+            }
+            scene = new Scene();
+            scene.addShapes(ordered);
+        }
+        return scene;
+    }
+
+    /**
+     * Put the scene at the given version.
+     *
+     * @param scene
+     * @param version 0 to getVersionCount() - 1
+     */
+    public void jumpTo(Scene scene, int version) {
+        commitPending(scene);
+        if (version < 0 || version >= versions.size()) {
+            throw new IndexOutOfBoundsException("No version " + version);
+        }
+        go(scene, version);
+    }
+
+    /**
+     * Edits that aren't a version yet become one before going anywhere,
+     * so they can be undone and redone too.
+     */
+    private void commitPending(Scene scene) {
+        commit(scene);
+    }
+
+    private void go(Scene scene, int version) {
+        int k = version;
+        while (!versions.get(k).isKeyframe()) {
+            k--;
+        }
+        Scene target = keyframe(versions.get(k));
+        for (int i = k + 1; i <= version; i++) {
+            target = apply(target, versions.get(i));
+        }
+        cursor = version;
+        sinceKeyframe = version - k;
+        current = snapshot(target);
+        scene.reload(target);
+        // that is the version, not an edit
+        forgetEdits();
+    }
+
+    /**
+     * A copy of the keyframe, read back from disk if it was spilled.
+     */
+    private Scene keyframe(Version v) {
+        if (v.keyframe != null) {
+            return snapshot(v.keyframe);
+        }
+        if (v == lastRead) {
+            return snapshot(lastReadKeyframe);
+        }
+        try {
+            byte[] data = new byte[v.spillLength];
+            spill.seek(v.spillOffset);
+            spill.readFully(data);
+            Scene sc = new Scene();
+            List<IShape> shapes = new ArrayList<IShape>(v.keyframeShapes);
+            try (Reader in = new InputStreamReader(new GZIPInputStream(new ByteArrayInputStream(data)),
+                    StandardCharsets.UTF_8)) {
+                Scanner records = new Scanner(in);
+                while (records.hasNext()) {
+                    shapes.add(Scene.readShape(records));
+                }
+            }
+            sc.addShapes(shapes);
+            lastRead = v;
+            lastReadKeyframe = sc;
+            return snapshot(sc);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Write the oldest keyframes to disk if there are too many in memory,
+     * or all but the latest if the heap is nearly full.
+     */
+    private void spillIfNeeded() {
+        Runtime rt = Runtime.getRuntime();
+        boolean tight = rt.maxMemory() - (rt.totalMemory() - rt.freeMemory()) < rt.maxMemory() / 5;
+        int inMemory = 0;
+        for (int i = versions.size() - 1; i >= 0; i--) {
+            Version v = versions.get(i);
+            if (v.keyframe == null) {
+                continue;
+            }
+            inMemory++;
+            if (inMemory > keyframesInMemory || (tight && inMemory > 1)) {
+                spill(v);
+            }
+        }
+    }
+
+    private void spill(Version v) {
+        try {
+            if (spill == null) {
+                spillFile = File.createTempFile("drawshapes-history", ".tmp");
+                spillFile.deleteOnExit();
+                spill = new RandomAccessFile(spillFile, "rw");
+            }
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (Writer out = new OutputStreamWriter(new GZIPOutputStream(bytes), StandardCharsets.UTF_8)) {
+                for (IShape s : v.keyframe) {
+                    out.write(s.toString());
+                    out.write('\n');
+                }
+            }
+            v.spillOffset = spill.length();
+            v.spillLength = bytes.size();
+            spill.seek(v.spillOffset);
+            spill.write(bytes.toByteArray());
+            v.keyframe = null;
+            memoryBytes -= (long) SHAPE_BYTES * v.keyframeShapes;
+        } catch (IOException e) {
+            // keep it in memory then
+            e.printStackTrace();
+        }
+    }
+
+    public boolean canUndo() {
+        return cursor > 0;
+    }
+
+    public boolean canRedo() {
+        return cursor < versions.size() - 1;
+    }
+
+    /**
+     * Go back one version.
+     *
+     * @param scene
+     */
+    public void undo(Scene scene) {
+        commitPending(scene);
+        if (canUndo()) {
+            go(scene, cursor - 1);
+        }
+    }
+
+    /**
+     * Go forward one version.
+     *
+     * @param scene
+     */
+    public void redo(Scene scene) {
+        if (canRedo()) {
+            go(scene, cursor + 1);
+        }
+    }
+
+    /**
+     * The version the scene is at.
+     */
+    public int getCursor() {
+        return cursor;
+    }
+
+    public int getVersionCount() {
+        return versions.size();
+    }
+
+    /**
+     * A rough estimate of the memory the history takes.
+     */
+    public long getMemoryBytes() {
+        return memoryBytes;
+    }
+
+    /**
+     * The size of the file keyframes were spilled to.
+     */
+    public long getDiskBytes() {
+        return spillFile == null ? 0 : spillFile.length();
+    }
+
+    /**
+     * Stop listening to the scene and delete the spill file.
+     */
+    public void close() {
+        tracked.removeListener(listener);
+        if (spill != null) {
+            try {
+                spill.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            spillFile.delete();
+            spill = null;
+        }
+    }
+}
@@ -0,0 +1,513 @@
+package drawshapes;
+
+import java.awt.Color;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Scanner;
+
+/**
+ * Append-only journal of scene mutations, used for autosave and
+ * crash recovery.
+ *
+ * Every mutation of a Scene (add, remove, move, recolor, scale, reorder,
+ * replace) is appended as one text line to a journal file, so the cost
+ * of autosaving is proportional to the edit and not to the size of the scene.
+ * Undo and redo replace the whole scene, and are journaled as the shapes
+ * that differ, see recordReload().
+ * Every CHECKPOINT_INTERVAL records the whole scene is written to a snapshot
+ * file (in the same format as File->Save) and the journal is truncated.
+ *
+ * On startup, recover() loads the snapshot and replays the journal on top
+ * of it. A line that was only partly written when we crashed is ignored.
+ *
+ * Each checkpoint has a generation, counting up, on the first line of both
+ * the snapshot and the journal written after it. If we crash after the new
+ * snapshot is in place but before the journal is emptied, the journal still
+ * has the old generation, and recover() skips it: the snapshot already has
+ * its edits, and replaying them by position would apply them twice.
+ *
+ * Journal lines look like this (shape indexes are positions in the
+ * drawing order at the time of the edit):
+ *
+ * <pre>
+ * GENERATION 12
+ * ADD SQUARE 185 110 100 RED false
+ * REMOVE 3 7
+ * MOVE 25 0 1 2
+ * RECOLOR BLUE 1 2
+ * SCALE UP 1 2
+ * SCALE 1.1 1 2
+ * REORDER 4 5
+ * REPLACE 4 CIRCLE 243 211 100 RED true
+ * INSERT 2 SQUARE 185 110 100 RED false
+ * </pre>
+ */
+public class SceneJournal implements Closeable {
+    static final String SNAPSHOT_NAME = "drawshapes.snapshot";
+    static final String JOURNAL_NAME = "drawshapes.journal";
+    private static final int CHECKPOINT_INTERVAL = 500;
+    private static final String GENERATION = "GENERATION";
+
+    private final File snapshotFile;
+    private final File journalFile;
+    private final Scene scene;
+    private FileChannel channel;
+    private ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+    private StringBuilder line = new StringBuilder();
+    private int recordsSinceCheckpoint;
+    // the generation of the last snapshot, see recover()
+    private long generation;
+
+    private SceneJournal(Scene scene, File dir) throws IOException {
+        this.scene = scene;
+        this.snapshotFile = new File(dir, SNAPSHOT_NAME);
+        this.journalFile = new File(dir, JOURNAL_NAME);
+        this.generation = snapshotFile.exists() ? snapshotGeneration(snapshotFile) : 0;
+        boolean current = journalFile.exists() && journalGeneration(journalFile) == generation;
+        this.channel = FileChannel.open(journalFile.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        if (!current) {
+            // recover() skipped it, start the journal of this snapshot
+            channel.truncate(0);
+            writeHeader();
+        }
+    }
+
+    /**
+     * Recover the scene from an autosave in the given directory (if there is
+     * one), and then attach a new journal to the scene.
+     *
+     * @param scene the scene to recover into and to journal
+     * @param dir   directory holding the snapshot and journal files
+     * @return the journal, already attached to the scene
+     * @throws IOException
+     */
+    public static SceneJournal open(Scene scene, File dir) throws IOException {
+        recover(scene, dir);
+        SceneJournal journal = new SceneJournal(scene, dir);
+        scene.setJournal(journal);
+        return journal;
+    }
+
+    /**
+     * Load the last snapshot and replay the journal written after it.
+     *
+     * @param scene
+     * @param dir
+     * @return true if there was anything to recover
+     * @throws IOException
+     */
+    public static boolean recover(Scene scene, File dir) throws IOException {
+        File snapshot = new File(dir, SNAPSHOT_NAME);
+        File journal = new File(dir, JOURNAL_NAME);
+        boolean recovered = false;
+        SceneJournal old = scene.getJournal();
+        scene.setJournal(null);
+        try {
+            long generation = 0;
+            if (snapshot.exists()) {
+                try (Scanner sc = new Scanner(new FileInputStream(snapshot), StandardCharsets.UTF_8)) {
+                    generation = readGeneration(sc);
+                    scene.loadShapes(sc);
+                }
+                recovered = true;
+            }
+            if (journal.exists()) {
+                String text = new String(Files.readAllBytes(journal.toPath()), StandardCharsets.UTF_8);
+                // only complete lines, the last one may have been cut off by the crash
+                int end = text.lastIndexOf('\n');
+                if (end >= 0 && generationOf(text) == generation) {
+                    boolean replayed = false;
+                    for (String record : text.substring(0, end).split("\n")) {
+                        if (!record.isEmpty() && !record.startsWith(GENERATION)) {
+                            replay(scene, record);
+                            replayed = true;
+                        }
+                    }
+                    if (replayed) {
+                        // replay() changes the shapes without telling the listeners
+                        scene.fireReloaded();
+                        recovered = true;
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            // bad records from loadShapes() or replay()
+            throw new IOException("Cannot recover autosave: " + e.getMessage(), e);
+        } finally {
+            scene.setJournal(old);
+        }
+        return recovered;
+    }
+
+    /**
+     * Read the generation at the start of a snapshot, 0 if it has none.
+     */
+    private static long readGeneration(Scanner sc) {
+        if (sc.hasNext(GENERATION)) {
+            sc.next();
+            return sc.nextLong();
+        }
+        return 0;
+    }
+
+    private static long snapshotGeneration(File snapshot) throws IOException {
+        try (Scanner sc = new Scanner(new FileInputStream(snapshot), StandardCharsets.UTF_8)) {
+            return readGeneration(sc);
+        } catch (NoSuchElementException e) {
+            throw new IOException("Bad autosave snapshot " + snapshot, e);
+        }
+    }
+
+    private static long journalGeneration(File journal) throws IOException {
+        return generationOf(new String(Files.readAllBytes(journal.toPath()), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * The generation on the first line of a journal, 0 if it has none, or
+     * -1 if the line was cut off.
+     */
+    private static long generationOf(String journal) {
+        if (!journal.startsWith(GENERATION)) {
+            return 0;
+        }
+        int end = journal.indexOf('\n');
+        if (end < 0) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(journal.substring(GENERATION.length(), end).trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static void replay(Scene scene, String record) {
+        Scanner sc = new Scanner(record);
+        String op = sc.next();
+        if (op.equals("ADD")) {
+            scene.addShape(Scene.readShape(sc));
+        } else if (op.equals("REMOVE")) {
+            // indexes are increasing, so remove from the back
+            List<Integer> indices = new ArrayList<Integer>();
+            while (sc.hasNextInt()) {
+                indices.add(sc.nextInt());
+            }
+            for (int i = indices.size() - 1; i >= 0; i--) {
+                scene.removeShapeAt(indices.get(i));
+            }
+        } else if (op.equals("MOVE")) {
+            int dx = sc.nextInt();
+            int dy = sc.nextInt();
+            while (sc.hasNextInt()) {
+                scene.getShape(sc.nextInt()).move(dx, dy);
+            }
+        } else if (op.equals("RECOLOR")) {
+            Color color = Util.stringToColor(sc.next());
+            while (sc.hasNextInt()) {
+                scene.getShape(sc.nextInt()).setColor(color);
+            }
+        } else if (op.equals("SCALE")) {
+            // UP, DOWN or a factor
+            String how = sc.next();
+            while (sc.hasNextInt()) {
+                IShape s = scene.getShape(sc.nextInt());
+                if (how.equals("UP")) {
+                    s.scaleUp();
+                } else if (how.equals("DOWN")) {
+                    s.scaleDown();
+                } else {
+                    s.scale(Double.parseDouble(how));
+                }
+            }
+        } else if (op.equals("REORDER")) {
+            scene.swap(sc.nextInt(), sc.nextInt());
+        } else if (op.equals("REPLACE")) {
+            int index = sc.nextInt();
+            scene.setShape(index, Scene.readShape(sc));
+        } else if (op.equals("INSERT")) {
+            int index = sc.nextInt();
+            scene.insertShape(index, Scene.readShape(sc));
+        } else {
+            throw new UnsupportedOperationException("Unknown journal record " + op);
+        }
+    }
+
+    public synchronized void recordAdd(IShape s) {
+        line.append("ADD ").append(s.toString());
+        append();
+    }
+
+    /**
+     * Record adding many shapes, written to the file in one go.
+     */
+    public synchronized void recordAdd(Collection<IShape> shapes) {
+        if (shapes.isEmpty()) {
+            return;
+        }
+        for (IShape s : shapes) {
+            if (line.length() > 0) {
+                line.append('\n');
+            }
+            line.append("ADD ").append(s.toString());
+        }
+        append();
+    }
+
+    public synchronized void recordRemove(List<Integer> indices) {
+        line.append("REMOVE");
+        appendIndices(indices);
+        append();
+    }
+
+    public synchronized void recordMove(int dx, int dy, List<Integer> indices) {
+        line.append("MOVE ").append(dx).append(' ').append(dy);
+        appendIndices(indices);
+        append();
+    }
+
+    public synchronized void recordRecolor(Color color, List<Integer> indices) {
+        line.append("RECOLOR ").append(Util.colorToString(color));
+        appendIndices(indices);
+        append();
+    }
+
+    public synchronized void recordScale(boolean up, List<Integer> indices) {
+        line.append("SCALE ").append(up ? "UP" : "DOWN");
+        appendIndices(indices);
+        append();
+    }
+
+    public synchronized void recordScale(double factor, List<Integer> indices) {
+        line.append("SCALE ").append(factor);
+        appendIndices(indices);
+        append();
+    }
+
+    public synchronized void recordReorder(int i, int j) {
+        line.append("REORDER ").append(i).append(' ').append(j);
+        append();
+    }
+
+    public synchronized void recordReplace(int index, IShape s) {
+        line.append("REPLACE ").append(index).append(' ').append(s.toString());
+        append();
+    }
+
+    /**
+     * Record that the shapes of the scene were replaced by others, as undo
+     * and redo do, by the shapes that differ: the removed ones, the ones
+     * that changed or moved in the drawing order, and the new ones.
+     * Shapes are matched by id. Written to the file in one go.
+     *
+     * @param before the shapes before, in drawing order
+     * @param after  the scene now
+     */
+    public synchronized void recordReload(List<IShape> before, Scene after) {
+        IdIndex afterIds = new IdIndex(after.size());
+        int n = 0;
+        for (IShape s : after) {
+            afterIds.put(s.getId(), n++);
+        }
+        List<Integer> removed = new ArrayList<Integer>();
+        List<IShape> kept = new ArrayList<IShape>(before.size());
+        for (int i = 0; i < before.size(); i++) {
+            if (afterIds.get(before.get(i).getId()) == -1) {
+                removed.add(i);
+            } else {
+                kept.add(before.get(i));
+            }
+        }
+        int records = 0;
+        if (!removed.isEmpty()) {
+            line.append("REMOVE");
+            appendIndices(removed);
+            records++;
+        }
+        IdIndex keptAt = new IdIndex(kept.size());
+        for (int k = 0; k < kept.size(); k++) {
+            keptAt.put(kept.get(k).getId(), k);
+        }
+        // the scene as replayed so far is the shapes of after before i,
+        // followed by the kept shapes from next on that weren't placed yet
+        boolean[] placed = new boolean[kept.size()];
+        int next = 0;
+        int i = 0;
+        for (IShape s : after) {
+            while (next < kept.size() && placed[next]) {
+                next++;
+            }
+            int k = keptAt.get(s.getId());
+            if (k == next) {
+                if (!SceneHistory.sameState(kept.get(k), s)) {
+                    newLine().append("REPLACE ").append(i).append(' ').append(s.toString());
+                    records++;
+                }
+                placed[k] = true;
+            } else {
+                if (k != -1) {
+                    // further back, take it out from where it is now
+                    int from = i;
+                    for (int m = next; m < k; m++) {
+                        if (!placed[m]) {
+                            from++;
+                        }
+                    }
+                    newLine().append("REMOVE ").append(from);
+                    records++;
+                    placed[k] = true;
+                }
+                newLine().append("INSERT ").append(i).append(' ').append(s.toString());
+                records++;
+            }
+            i++;
+        }
+        if (records > 0) {
+            recordsSinceCheckpoint += records - 1;
+            append();
+        }
+    }
+
+    private StringBuilder newLine() {
+        if (line.length() > 0) {
+            line.append('\n');
+        }
+        return line;
+    }
+
+    private void appendIndices(List<Integer> indices) {
+        for (int i : indices) {
+            line.append(' ').append(i);
+        }
+    }
+
+    /**
+     * Move the current line into the buffer and write the buffer to the file.
+     * Writing after every record means a crash of this process can lose at
+     * most the record being written.
+     */
+    private void append() {
+        line.append('\n');
+        byte[] bytes = line.toString().getBytes(StandardCharsets.UTF_8);
+        line.setLength(0);
+        try {
+            if (bytes.length > buffer.remaining()) {
+                flush();
+            }
+            if (bytes.length > buffer.capacity()) {
+                channel.write(ByteBuffer.wrap(bytes));
+            } else {
+                buffer.put(bytes);
+            }
+            flush();
+        } catch (IOException e) {
+            System.err.println("Cannot write autosave journal: " + e);
+            return;
+        }
+        recordsSinceCheckpoint++;
+        if (recordsSinceCheckpoint >= CHECKPOINT_INTERVAL) {
+            checkpoint(scene);
+        }
+    }
+
+    private void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    private void writeHeader() throws IOException {
+        buffer.clear();
+        buffer.put((GENERATION + " " + generation + "\n").getBytes(StandardCharsets.UTF_8));
+        flush();
+        channel.force(true);
+    }
+
+    /**
+     * Write the whole scene to the snapshot file and empty the journal.
+     * The snapshot is written to a temporary file, forced to the disk and
+     * then renamed, so a crash or a full disk in the middle of a checkpoint
+     * leaves the old snapshot and journal.
+     *
+     * @param scene
+     */
+    public synchronized void checkpoint(Scene scene) {
+        recordsSinceCheckpoint = 0;
+        long next = generation + 1;
+        File tmp = new File(snapshotFile.getPath() + ".tmp");
+        try {
+            try (FileOutputStream file = new FileOutputStream(tmp);
+                    Writer out = new BufferedWriter(new OutputStreamWriter(file, StandardCharsets.UTF_8), 64 * 1024)) {
+                out.write(GENERATION + " " + next + "\n");
+                for (IShape s : scene) {
+                    out.write(s.toString());
+                    out.write('\n');
+                }
+                out.flush();
+                file.getChannel().force(true);
+            }
+            Files.move(tmp.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            forceDirectory();
+        } catch (IOException e) {
+            tmp.delete();
+            System.err.println("Cannot write autosave snapshot: " + e);
+            return;
+        }
+        generation = next;
+        try {
+            channel.truncate(0);
+            writeHeader();
+        } catch (IOException e) {
+            // the journal still has the old generation, recover() skips it
+            System.err.println("Cannot reset autosave journal: " + e);
+        }
+    }
+
+    /**
+     * Make the rename of the snapshot durable. Not every platform can
+     * open a directory, and there it is left to the file system.
+     */
+    private void forceDirectory() {
+        File dir = snapshotFile.getAbsoluteFile().getParentFile();
+        try (FileChannel d = FileChannel.open(dir.toPath(), StandardOpenOption.READ)) {
+            d.force(true);
+        } catch (IOException e) {
+            // nothing more we can do
+        }
+    }
+
+    /**
+     * Close the journal after a clean shutdown. There is nothing to
+     * recover, so the autosave files are deleted.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (scene.getJournal() == this) {
+            scene.setJournal(null);
+        }
+        channel.close();
+        journalFile.delete();
+        snapshotFile.delete();
+    }
+}
@@ -0,0 +1,34 @@
+package drawshapes;
+
+import java.awt.Color;
+import java.util.Collection;
+
+/**
+ * Listener for changes to the shapes of a Scene.
+ *
+ * The Scene calls these methods after the change was made.
+ */
+public interface SceneListener
+{
+    public void shapeAdded(IShape s);
+
+    public void shapesRemoved(Collection<IShape> shapes);
+
+    public void shapesMoved(Collection<IShape> shapes, int dx, int dy);
+
+    public void shapesRecolored(Collection<IShape> shapes, Color color);
+
+    public void shapesScaled(Collection<IShape> shapes);
+
+    /**
+     * Two shapes traded places in the drawing order.
+     */
+    public void shapesSwapped(IShape a, IShape b);
+
+    public void shapeReplaced(IShape curr, IShape newShape);
+
+    /**
+     * All shapes were replaced, for example by loading a file or by undo.
+     */
+    public void sceneReloaded();
+}
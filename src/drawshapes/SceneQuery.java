@@ -0,0 +1,668 @@
+package drawshapes;
+
+import java.awt.Color;
+import java.awt.Point;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.function.Predicate;
+
+/**
+ * A query selecting shapes by their attributes and where they are, for
+ * example
+ *
+ * <pre>
+ * type=CIRCLE and color=RED and within(0,0,500,500) and length&gt;50
+ * </pre>
+ *
+ * The terms are:
+ * <ul>
+ * <li>type = or != SQUARE, CIRCLE, RECTANGLE, GROUP or INSTANCES</li>
+ * <li>color = or != one of the color names of Util.stringToColor()</li>
+ * <li>length =, !=, &lt;, &lt;=, &gt; or &gt;= a number</li>
+ * <li>within(x1,y1,x2,y2), the bounding box is inside the rectangle</li>
+ * <li>intersects(x1,y1,x2,y2), the bounding box touches the rectangle</li>
+ * <li>contains(x,y), the shape contains the point</li>
+ * <li>selected</li>
+ * </ul>
+ * combined with and, or, not and parentheses. Keywords and names can be
+ * in any case.
+ *
+ * A query is run against the indexes of the scene (see ShapeIndex): of an
+ * and, only the term with the fewest candidates is looked up, and the
+ * rest is tested on those candidates. Queries with no selective term, and
+ * queries on chunked or paged scenes, test every shape.
+ */
+public class SceneQuery implements Predicate<IShape> {
+    // looking up more than this fraction of the scene is slower than a scan
+    static final int SCAN_FRACTION = 4;
+
+    private final String text;
+    private final Node root;
+
+    private SceneQuery(String text, Node root) {
+        this.text = text;
+        this.root = root;
+    }
+
+    /**
+     * @param text
+     * @return the parsed query
+     * @throws IllegalArgumentException if the text is not a valid query
+     */
+    public static SceneQuery parse(String text) {
+        Parser p = new Parser(text);
+        Node root = p.or();
+        if (p.peek() != null) {
+            throw p.error("unexpected '" + p.peek() + "'");
+        }
+        return new SceneQuery(text, root);
+    }
+
+    @Override
+    public boolean test(IShape s) {
+        return root.test(s);
+    }
+
+    /**
+     * The shapes of the scene matching the query, in drawing order.
+     *
+     * @param scene
+     * @return
+     */
+    public List<IShape> run(Scene scene) {
+        ShapeIndex index = scene.shapeIndex();
+        if (index == null) {
+            List<IShape> selected = new ArrayList<IShape>();
+            for (IShape s : scene) {
+                if (root.test(s)) {
+                    selected.add(s);
+                }
+            }
+            return selected;
+        }
+        if (root.estimate(index) > index.size() / SCAN_FRACTION) {
+            return scene.select(root);
+        }
+        List<IShape> matches = new ArrayList<IShape>();
+        for (IShape s : root.candidates(index)) {
+            if (root.test(s)) {
+                matches.add(s);
+            }
+        }
+        // sort by position in the drawing order, packed with the index
+        // into matches so a primitive sort does it
+        long[] order = new long[matches.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = (long) scene.orderOf(matches.get(i).getId()) << 32 | i;
+        }
+        Arrays.sort(order);
+        List<IShape> selected = new ArrayList<IShape>(order.length);
+        for (int i = 0; i < order.length; i++) {
+            // an or may find the same shape twice
+            if (i == 0 || order[i] >>> 32 != order[i - 1] >>> 32) {
+                selected.add(matches.get((int) order[i]));
+            }
+        }
+        return selected;
+    }
+
+    /**
+     * How run() would find the shapes of the scene, for example
+     * "index color=RED (~1200 of 100000 shapes)".
+     */
+    public String explain(Scene scene) {
+        ShapeIndex index = scene.shapeIndex();
+        if (index == null) {
+            return "scan, the scene has no indexes";
+        }
+        int estimate = root.estimate(index);
+        if (estimate > index.size() / SCAN_FRACTION) {
+            return "scan " + index.size() + " shapes";
+        }
+        return "index " + root.plan(index) + " (~" + estimate + " of " + index.size() + " shapes)";
+    }
+
+    @Override
+    public String toString() {
+        return text;
+    }
+
+    /**
+     * A part of a query. Parts that can't be looked up in the indexes
+     * estimate Integer.MAX_VALUE candidates.
+     */
+    private abstract static class Node implements Predicate<IShape> {
+        int estimate(ShapeIndex index) {
+            return Integer.MAX_VALUE;
+        }
+
+        /**
+         * A superset of the shapes matching this part, maybe with some
+         * more than once; only called when the estimate is less than
+         * Integer.MAX_VALUE.
+         */
+        Collection<IShape> candidates(ShapeIndex index) {
+            throw new UnsupportedOperationException();
+        }
+
+        /**
+         * The terms looked up by candidates().
+         */
+        String plan(ShapeIndex index) {
+            return toString();
+        }
+    }
+
+    private static class TypeTerm extends Node {
+        private final String name;
+        private final Class<?> type;
+        private final boolean equal;
+
+        TypeTerm(String name, Class<?> type, boolean equal) {
+            this.name = name;
+            this.type = type;
+            this.equal = equal;
+        }
+
+        @Override
+        public boolean test(IShape s) {
+            // Square extends Rectangle, so compare the classes exactly
+            return (s.getClass() == type) == equal;
+        }
+
+        @Override
+        int estimate(ShapeIndex index) {
+            return equal ? index.countType(type) : Integer.MAX_VALUE;
+        }
+
+        @Override
+        Collection<IShape> candidates(ShapeIndex index) {
+            return index.ofType(type);
+        }
+
+        @Override
+        public String toString() {
+            return "type" + (equal ? "=" : "!=") + name;
+        }
+    }
+
+    private static class ColorTerm extends Node {
+        private final String name;
+        private final Color color;
+        private final boolean equal;
+
+        ColorTerm(String name, Color color, boolean equal) {
+            this.name = name;
+            this.color = color;
+            this.equal = equal;
+        }
+
+        @Override
+        public boolean test(IShape s) {
+            return color.equals(s.getColor()) == equal;
+        }
+
+        @Override
+        int estimate(ShapeIndex index) {
+            return equal ? index.countColor(color) : Integer.MAX_VALUE;
+        }
+
+        @Override
+        Collection<IShape> candidates(ShapeIndex index) {
+            return index.ofColor(color);
+        }
+
+        @Override
+        public String toString() {
+            return "color" + (equal ? "=" : "!=") + name;
+        }
+    }
+
+    /**
+     * min &lt;= length &lt;= max, or outside that if not equal.
+     */
+    private static class LengthTerm extends Node {
+        private final String text;
+        private final int min;
+        private final int max;
+        private final boolean equal;
+
+        LengthTerm(String text, int min, int max, boolean equal) {
+            this.text = text;
+            this.min = min;
+            this.max = max;
+            this.equal = equal;
+        }
+
+        @Override
+        public boolean test(IShape s) {
+            int length = s.getLength();
+            return (length >= min && length <= max) == equal;
+        }
+
+        @Override
+        int estimate(ShapeIndex index) {
+            return equal ? index.countLength(min, max) : Integer.MAX_VALUE;
+        }
+
+        @Override
+        Collection<IShape> candidates(ShapeIndex index) {
+            return index.ofLength(min, max);
+        }
+
+        @Override
+        public String toString() {
+            return text;
+        }
+    }
+
+    private static class RegionTerm extends Node {
+        private final String name;
+        private final BoundingBox box;
+
+        RegionTerm(String name, BoundingBox box) {
+            this.name = name;
+            this.box = box;
+        }
+
+        @Override
+        public boolean test(IShape s) {
+            BoundingBox b = s.getBoundingBox();
+            if (name.equals("within")) {
+                return b.getLeft() >= box.getLeft() && b.getRight() <= box.getRight() && b.getTop() >= box.getTop()
+                        && b.getBottom() <= box.getBottom();
+            }
+            if (name.equals("intersects")) {
+                return b.getLeft() <= box.getRight() && b.getRight() >= box.getLeft() && b.getTop() <= box.getBottom()
+                        && b.getBottom() >= box.getTop();
+            }
+            return s.contains(new Point(box.getLeft(), box.getTop()));
+        }
+
+        @Override
+        int estimate(ShapeIndex index) {
+            return index.estimateRegion(box);
+        }
+
+        @Override
+        Collection<IShape> candidates(ShapeIndex index) {
+            List<IShape> candidates = new ArrayList<IShape>();
+            index.regionCandidates(box, candidates::add);
+            return candidates;
+        }
+
+        @Override
+        public String toString() {
+            if (name.equals("contains")) {
+                return "contains(" + box.getLeft() + "," + box.getTop() + ")";
+            }
+            return name + "(" + box.getLeft() + "," + box.getTop() + "," + box.getRight() + "," + box.getBottom() + ")";
+        }
+    }
+
+    private static class SelectedTerm extends Node {
+        @Override
+        public boolean test(IShape s) {
+            return s.isSelected();
+        }
+
+        @Override
+        public String toString() {
+            return "selected";
+        }
+    }
+
+    private static class Not extends Node {
+        private final Node child;
+
+        Not(Node child) {
+            this.child = child;
+        }
+
+        @Override
+        public boolean test(IShape s) {
+            return !child.test(s);
+        }
+
+        @Override
+        public String toString() {
+            return "not " + child;
+        }
+    }
+
+    private static class And extends Node {
+        private final List<Node> children;
+
+        And(List<Node> children) {
+            this.children = children;
+        }
+
+        @Override
+        public boolean test(IShape s) {
+            for (Node n : children) {
+                if (!n.test(s)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        int estimate(ShapeIndex index) {
+            return estimate(index, best(index));
+        }
+
+        private static int estimate(ShapeIndex index, Node n) {
+            return n == null ? Integer.MAX_VALUE : n.estimate(index);
+        }
+
+        /**
+         * The child with the fewest candidates.
+         */
+        private Node best(ShapeIndex index) {
+            Node best = null;
+            int fewest = Integer.MAX_VALUE;
+            for (Node n : children) {
+                int e = n.estimate(index);
+                if (e < fewest) {
+                    best = n;
+                    fewest = e;
+                }
+            }
+            return best;
+        }
+
+        @Override
+        Collection<IShape> candidates(ShapeIndex index) {
+            return best(index).candidates(index);
+        }
+
+        @Override
+        String plan(ShapeIndex index) {
+            return best(index).plan(index);
+        }
+
+        @Override
+        public String toString() {
+            return "(" + join(children, " and ") + ")";
+        }
+    }
+
+    private static class Or extends Node {
+        private final List<Node> children;
+
+        Or(List<Node> children) {
+            this.children = children;
+        }
+
+        @Override
+        public boolean test(IShape s) {
+            for (Node n : children) {
+                if (n.test(s)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        int estimate(ShapeIndex index) {
+            long sum = 0;
+            for (Node n : children) {
+                sum += n.estimate(index);
+            }
+            return (int) Math.min(sum, Integer.MAX_VALUE);
+        }
+
+        @Override
+        Collection<IShape> candidates(ShapeIndex index) {
+            List<IShape> candidates = new ArrayList<IShape>();
+            for (Node n : children) {
+                candidates.addAll(n.candidates(index));
+            }
+            return candidates;
+        }
+
+        @Override
+        String plan(ShapeIndex index) {
+            List<String> plans = new ArrayList<String>();
+            for (Node n : children) {
+                plans.add(n.plan(index));
+            }
+            return "(" + String.join(" or ", plans) + ")";
+        }
+
+        @Override
+        public String toString() {
+            return "(" + join(children, " or ") + ")";
+        }
+    }
+
+    private static String join(List<Node> nodes, String separator) {
+        List<String> parts = new ArrayList<String>();
+        for (Node n : nodes) {
+            parts.add(n.toString());
+        }
+        return String.join(separator, parts);
+    }
+
+    /**
+     * Recursive descent over the tokens of a query:
+     *
+     * <pre>
+     * or   := and ("or" and)*
+     * and  := not ("and" not)*
+     * not  := "not" not | "(" or ")" | term
+     * </pre>
+     */
+    private static class Parser {
+        private final String text;
+        private final List<String> tokens = new ArrayList<String>();
+        private int next;
+
+        Parser(String text) {
+            this.text = text;
+            int i = 0;
+            while (i < text.length()) {
+                char c = text.charAt(i);
+                if (Character.isWhitespace(c)) {
+                    i++;
+                } else if (Character.isLetterOrDigit(c) || c == '-' || c == '_') {
+                    int start = i;
+                    while (i < text.length() && (Character.isLetterOrDigit(text.charAt(i)) || text.charAt(i) == '_'
+                            || (i == start && text.charAt(i) == '-'))) {
+                        i++;
+                    }
+                    tokens.add(text.substring(start, i));
+                } else if ((c == '!' || c == '<' || c == '>') && i + 1 < text.length() && text.charAt(i + 1) == '=') {
+                    tokens.add(text.substring(i, i + 2));
+                    i += 2;
+                } else if ("=<>(),".indexOf(c) != -1) {
+                    tokens.add(String.valueOf(c));
+                    i++;
+                } else {
+                    throw new IllegalArgumentException("Unexpected '" + c + "' in query: " + text);
+                }
+            }
+            if (tokens.isEmpty()) {
+                throw new IllegalArgumentException("Empty query");
+            }
+        }
+
+        String peek() {
+            return next < tokens.size() ? tokens.get(next) : null;
+        }
+
+        private boolean accept(String token) {
+            if (token.equalsIgnoreCase(peek())) {
+                next++;
+                return true;
+            }
+            return false;
+        }
+
+        private String take(String what) {
+            String token = peek();
+            if (token == null) {
+                throw error("expected " + what + " at the end");
+            }
+            next++;
+            return token;
+        }
+
+        private void expect(String token) {
+            if (!accept(token)) {
+                throw error("expected '" + token + "'" + (peek() == null ? " at the end" : " before '" + peek() + "'"));
+            }
+        }
+
+        IllegalArgumentException error(String message) {
+            return new IllegalArgumentException("Bad query, " + message + ": " + text);
+        }
+
+        Node or() {
+            List<Node> children = new ArrayList<Node>();
+            children.add(and());
+            while (accept("or")) {
+                children.add(and());
+            }
+            return children.size() == 1 ? children.get(0) : new Or(children);
+        }
+
+        private Node and() {
+            List<Node> children = new ArrayList<Node>();
+            children.add(not());
+            while (accept("and")) {
+                children.add(not());
+            }
+            return children.size() == 1 ? children.get(0) : new And(children);
+        }
+
+        private Node not() {
+            if (accept("not")) {
+                return new Not(not());
+            }
+            if (accept("(")) {
+                Node n = or();
+                expect(")");
+                return n;
+            }
+            return term();
+        }
+
+        private Node term() {
+            String name = take("a term").toLowerCase(Locale.ROOT);
+            switch (name) {
+                case "selected":
+                    return new SelectedTerm();
+                case "within":
+                case "intersects": {
+                    int[] a = arguments(4);
+                    BoundingBox box = new BoundingBox(Math.min(a[0], a[2]), Math.max(a[0], a[2]), Math.min(a[1], a[3]),
+                            Math.max(a[1], a[3]));
+                    return new RegionTerm(name, box);
+                }
+                case "contains": {
+                    int[] a = arguments(2);
+                    return new RegionTerm(name, new BoundingBox(a[0], a[0], a[1], a[1]));
+                }
+                case "type": {
+                    boolean equal = equality();
+                    String type = take("a type").toUpperCase(Locale.ROOT);
+                    return new TypeTerm(type, typeOf(type), equal);
+                }
+                case "color": {
+                    boolean equal = equality();
+                    String color = take("a color").toUpperCase(Locale.ROOT);
+                    return new ColorTerm(color, colorOf(color), equal);
+                }
+                case "length":
+                    return length();
+                default:
+                    throw error("unknown term '" + name + "'");
+            }
+        }
+
+        private boolean equality() {
+            if (accept("=")) {
+                return true;
+            }
+            if (accept("!=")) {
+                return false;
+            }
+            throw error("expected = or !=");
+        }
+
+        private Node length() {
+            String op = take("a comparison");
+            int n = number();
+            String text = "length" + op + n;
+            switch (op) {
+                case "=":
+                    return new LengthTerm(text, n, n, true);
+                case "!=":
+                    return new LengthTerm(text, n, n, false);
+                case "<":
+                    return new LengthTerm(text, Integer.MIN_VALUE, n - 1, true);
+                case "<=":
+                    return new LengthTerm(text, Integer.MIN_VALUE, n, true);
+                case ">":
+                    return new LengthTerm(text, n + 1, Integer.MAX_VALUE, true);
+                case ">=":
+                    return new LengthTerm(text, n, Integer.MAX_VALUE, true);
+                default:
+                    throw error("unknown comparison '" + op + "'");
+            }
+        }
+
+        private int[] arguments(int count) {
+            expect("(");
+            int[] a = new int[count];
+            for (int i = 0; i < count; i++) {
+                if (i > 0) {
+                    expect(",");
+                }
+                a[i] = number();
+            }
+            expect(")");
+            return a;
+        }
+
+        private int number() {
+            String token = take("a number");
+            try {
+                return Integer.parseInt(token);
+            } catch (NumberFormatException e) {
+                throw error("'" + token + "' is not a number");
+            }
+        }
+
+        private Class<?> typeOf(String type) {
+            switch (type) {
+                case "SQUARE":
+                    return Square.class;
+                case "CIRCLE":
+                    return Circle.class;
+                case "RECTANGLE":
+                    return Rectangle.class;
+                case "GROUP":
+                    return Group.class;
+                case "INSTANCES":
+                    return InstancedShape.class;
+                default:
+                    throw error("unknown type '" + type + "'");
+            }
+        }
+
+        private Color colorOf(String color) {
+            try {
+                return Util.stringToColor(color);
+            } catch (RuntimeException e) {
+                throw error("unknown color '" + color + "'");
+            }
+        }
+    }
+}
@@ -0,0 +1,618 @@
+package drawshapes;
+
+import java.awt.Color;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Scanner;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Keeps a Scene in sync with the same scene on other sites, by sending the
+ * operations made on it to the others through a ReplicaTransport and
+ * applying the operations they send back.
+ *
+ * Every operation carries a Lamport stamp (clock, site), so all sites
+ * agree on which of two concurrent operations came last:
+ * <ul>
+ * <li>moves are deltas, so they commute and are all applied</li>
+ * <li>recolor: the last recolor of a shape wins</li>
+ * <li>replace (and scale, which is sent as a replace): the last one wins,
+ * and the moves stamped after it are applied again on top</li>
+ * <li>remove wins over everything; removed ids are never brought back</li>
+ * <li>drawing order: every shape has a z key, the last change to a key
+ * wins, and shapes are drawn by (z, id)</li>
+ * </ul>
+ *
+ * Local operations are queued and sent by flush(). Consecutive moves of
+ * the same shapes are merged into one, ids are delta-encoded varints and
+ * the whole batch is deflated, so dragging 10,000 shapes costs a few
+ * bytes per mouse event.
+ *
+ * Shapes are known by ids of the form (site &lt;&lt; 40 | counter).
+ */
+public class SceneReplica implements SceneListener {
+    private static final int ADD = 1;
+    private static final int REMOVE = 2;
+    private static final int MOVE = 3;
+    private static final int RECOLOR = 4;
+    private static final int Z = 5;
+    private static final int REPLACE = 6;
+
+    private static class Op {
+        int type;
+        long stamp;
+        long[] ids;
+        int dx;
+        int dy;
+        String color;
+        double z;
+        String record;
+
+        Op(int type, long stamp, long[] ids) {
+            this.type = type;
+            this.stamp = stamp;
+            this.ids = ids;
+        }
+    }
+
+    /**
+     * What we know about one live shape.
+     */
+    private static class Meta {
+        final long id;
+        IShape shape;
+        long baseStamp;
+        long colorStamp;
+        double z;
+        long zStamp;
+
+        Meta(long id, IShape shape) {
+            this.id = id;
+            this.shape = shape;
+        }
+    }
+
+    private final Scene scene;
+    private final ReplicaTransport transport;
+    private final int site;
+    private long clock;
+    private long counter;
+    private double maxZ;
+    private final Map<IShape, Meta> byShape = new IdentityHashMap<IShape, Meta>();
+    private final Map<Long, Meta> byId = new HashMap<Long, Meta>();
+    private final Set<Long> removed = new HashSet<Long>();
+    // every op seen, local and remote, for replaying moves after a replace
+    private final List<Op> log = new ArrayList<Op>();
+    private final List<Op> pending = new ArrayList<Op>();
+    private boolean applying;
+    // whether the next local move may be merged into the last pending op
+    private boolean mergeable;
+    private long bytesSent;
+
+    /**
+     * Start replicating the scene. Shapes already in the scene are sent to
+     * the other sites by the first flush().
+     *
+     * @param scene
+     * @param transport
+     * @param site      a number between 0 and 65535, different on every site
+     */
+    public SceneReplica(Scene scene, ReplicaTransport transport, int site) {
+        if (site < 0 || site > 0xFFFF) {
+            throw new IllegalArgumentException("Site must fit in 16 bits: " + site);
+        }
+        this.scene = scene;
+        this.transport = transport;
+        this.site = site;
+        for (IShape s : scene) {
+            shapeAdded(s);
+        }
+        scene.addListener(this);
+        transport.setReceiver(this::receive);
+    }
+
+    /**
+     * Stop sending and receiving operations.
+     */
+    public void detach() {
+        scene.removeListener(this);
+        transport.setReceiver(null);
+    }
+
+    public synchronized long getBytesSent() {
+        return bytesSent;
+    }
+
+    private long tick() {
+        clock++;
+        return clock << 16 | site;
+    }
+
+    private long[] idsOf(Collection<IShape> shapes) {
+        long[] ids = new long[shapes.size()];
+        int n = 0;
+        for (IShape s : shapes) {
+            Meta m = byShape.get(s);
+            if (m != null) {
+                ids[n++] = m.id;
+            }
+        }
+        ids = Arrays.copyOf(ids, n);
+        Arrays.sort(ids);
+        return ids;
+    }
+
+    private void queue(Op op) {
+        if (op.type == MOVE && mergeable) {
+            Op last = pending.get(pending.size() - 1);
+            if (last.type == MOVE && Arrays.equals(last.ids, op.ids)) {
+                // the same Op is also the last one in the log, so this site
+                // sees the merged move exactly as the others will
+                last.dx += op.dx;
+                last.dy += op.dy;
+                last.stamp = op.stamp;
+                return;
+            }
+        }
+        log.add(op);
+        pending.add(op);
+        mergeable = true;
+    }
+
+    //
+    // Local changes, reported by the scene
+    //
+
+    @Override
+    public synchronized void shapeAdded(IShape s) {
+        if (applying) {
+            return;
+        }
+        long stamp = tick();
+        Meta m = new Meta((long) site << 40 | counter++, s);
+        m.baseStamp = stamp;
+        m.colorStamp = stamp;
+        m.z = ++maxZ;
+        m.zStamp = stamp;
+        byShape.put(s, m);
+        byId.put(m.id, m);
+        Op op = new Op(ADD, stamp, new long[] { m.id });
+        op.z = m.z;
+        op.record = record(s);
+        queue(op);
+    }
+
+    @Override
+    public synchronized void shapesRemoved(Collection<IShape> shapes) {
+        if (applying) {
+            return;
+        }
+        long[] ids = idsOf(shapes);
+        for (long id : ids) {
+            forget(id);
+        }
+        queue(new Op(REMOVE, tick(), ids));
+    }
+
+    @Override
+    public synchronized void shapesMoved(Collection<IShape> shapes, int dx, int dy) {
+        if (applying) {
+            return;
+        }
+        Op op = new Op(MOVE, tick(), idsOf(shapes));
+        op.dx = dx;
+        op.dy = dy;
+        queue(op);
+    }
+
+    @Override
+    public synchronized void shapesRecolored(Collection<IShape> shapes, Color color) {
+        if (applying) {
+            return;
+        }
+        Op op = new Op(RECOLOR, tick(), idsOf(shapes));
+        op.color = Util.colorToString(color);
+        for (long id : op.ids) {
+            byId.get(id).colorStamp = op.stamp;
+        }
+        queue(op);
+    }
+
+    @Override
+    public synchronized void shapesScaled(Collection<IShape> shapes) {
+        if (applying) {
+            return;
+        }
+        for (IShape s : shapes) {
+            replaced(byShape.get(s));
+        }
+    }
+
+    @Override
+    public synchronized void shapesSwapped(IShape a, IShape b) {
+        if (applying) {
+            return;
+        }
+        Meta ma = byShape.get(a);
+        Meta mb = byShape.get(b);
+        if (ma == null || mb == null) {
+            return;
+        }
+        double za = ma.z;
+        ma.z = mb.z;
+        mb.z = za;
+        if (ma.z == mb.z || before(ma, mb) != (scene.indexOf(a) < scene.indexOf(b))) {
+            // the ids would break the tie the wrong way
+            Meta front = scene.indexOf(a) > scene.indexOf(b) ? ma : mb;
+            front.z = Math.nextUp(front.z);
+            maxZ = Math.max(maxZ, front.z);
+        }
+        for (Meta m : new Meta[] { ma, mb }) {
+            Op op = new Op(Z, tick(), new long[] { m.id });
+            op.z = m.z;
+            m.zStamp = op.stamp;
+            queue(op);
+        }
+    }
+
+    @Override
+    public synchronized void shapeReplaced(IShape curr, IShape newShape) {
+        if (applying) {
+            return;
+        }
+        Meta m = byShape.remove(curr);
+        if (m == null) {
+            return;
+        }
+        m.shape = newShape;
+        byShape.put(newShape, m);
+        replaced(m);
+    }
+
+    private void replaced(Meta m) {
+        if (m == null) {
+            return;
+        }
+        Op op = new Op(REPLACE, tick(), new long[] { m.id });
+        op.record = record(m.shape);
+        m.baseStamp = op.stamp;
+        m.colorStamp = Math.max(m.colorStamp, op.stamp);
+        queue(op);
+    }
+
+    @Override
+    public synchronized void sceneReloaded() {
+        if (applying) {
+            return;
+        }
+        // everything we had is gone, and everything in the scene is new
+        long[] ids = new long[byId.size()];
+        int n = 0;
+        for (long id : byId.keySet()) {
+            ids[n++] = id;
+        }
+        Arrays.sort(ids);
+        for (long id : ids) {
+            forget(id);
+        }
+        queue(new Op(REMOVE, tick(), ids));
+        for (IShape s : scene) {
+            shapeAdded(s);
+        }
+    }
+
+    private void forget(long id) {
+        Meta m = byId.remove(id);
+        if (m != null) {
+            byShape.remove(m.shape);
+        }
+        removed.add(id);
+    }
+
+    private static String record(IShape s) {
+        // selection is local to each site
+        boolean selected = s.isSelected();
+        s.setSelected(false);
+        String record = s.toString();
+        s.setSelected(selected);
+        return record;
+    }
+
+    //
+    // Sending and receiving
+    //
+
+    /**
+     * Send the queued local operations to the other sites.
+     */
+    public synchronized void flush() {
+        if (pending.isEmpty()) {
+            return;
+        }
+        byte[] batch = encode(pending);
+        pending.clear();
+        mergeable = false;
+        bytesSent += batch.length;
+        transport.send(batch);
+    }
+
+    /**
+     * Apply a batch of operations sent by another site.
+     *
+     * @param batch
+     */
+    public synchronized void receive(byte[] batch) {
+        List<Op> ops = decode(batch);
+        mergeable = false;
+        applying = true;
+        try {
+            for (Op op : ops) {
+                clock = Math.max(clock, op.stamp >>> 16);
+                log.add(op);
+                apply(op);
+            }
+        } finally {
+            applying = false;
+        }
+    }
+
+    private void apply(Op op) {
+        if (op.type == ADD) {
+            long id = op.ids[0];
+            if (removed.contains(id) || byId.containsKey(id)) {
+                return;
+            }
+            IShape s = Scene.readShape(new Scanner(op.record));
+            Meta m = new Meta(id, s);
+            m.baseStamp = op.stamp;
+            m.colorStamp = op.stamp;
+            m.z = op.z;
+            m.zStamp = op.stamp;
+            maxZ = Math.max(maxZ, m.z);
+            byShape.put(s, m);
+            byId.put(id, m);
+            scene.addShape(s);
+            reposition(m);
+        } else if (op.type == REMOVE) {
+            List<IShape> shapes = new ArrayList<IShape>();
+            for (long id : op.ids) {
+                Meta m = byId.get(id);
+                if (m != null) {
+                    shapes.add(m.shape);
+                }
+                forget(id);
+            }
+            if (!shapes.isEmpty()) {
+                scene.removeShapes(shapes);
+            }
+        } else if (op.type == MOVE) {
+            List<IShape> shapes = new ArrayList<IShape>();
+            for (long id : op.ids) {
+                Meta m = byId.get(id);
+                // moves older than the shape's geometry are already in it
+                if (m != null && op.stamp > m.baseStamp) {
+                    shapes.add(m.shape);
+                }
+            }
+            if (!shapes.isEmpty()) {
+                scene.moveShapes(shapes, op.dx, op.dy);
+            }
+        } else if (op.type == RECOLOR) {
+            List<IShape> shapes = new ArrayList<IShape>();
+            for (long id : op.ids) {
+                Meta m = byId.get(id);
+                if (m != null && op.stamp > m.colorStamp) {
+                    m.colorStamp = op.stamp;
+                    shapes.add(m.shape);
+                }
+            }
+            if (!shapes.isEmpty()) {
+                scene.recolorShapes(shapes, Util.stringToColor(op.color));
+            }
+        } else if (op.type == Z) {
+            Meta m = byId.get(op.ids[0]);
+            if (m != null && op.stamp > m.zStamp) {
+                m.z = op.z;
+                m.zStamp = op.stamp;
+                maxZ = Math.max(maxZ, m.z);
+                reposition(m);
+            }
+        } else if (op.type == REPLACE) {
+            Meta m = byId.get(op.ids[0]);
+            if (m == null || op.stamp < m.baseStamp) {
+                return;
+            }
+            IShape s = Scene.readShape(new Scanner(op.record));
+            s.setSelected(m.shape.isSelected());
+            if (m.colorStamp > op.stamp) {
+                // a later recolor already reached us
+                s.setColor(m.shape.getColor());
+            } else {
+                m.colorStamp = op.stamp;
+            }
+            IShape old = m.shape;
+            byShape.remove(old);
+            m.shape = s;
+            m.baseStamp = op.stamp;
+            byShape.put(s, m);
+            scene.replaceShape(old, s);
+            // moves made after the replace still apply on top of it
+            List<IShape> one = List.of(s);
+            for (Op o : log) {
+                if (o.type == MOVE && o.stamp > op.stamp && Arrays.binarySearch(o.ids, m.id) >= 0) {
+                    scene.moveShapes(one, o.dx, o.dy);
+                }
+            }
+        }
+    }
+
+    private static boolean before(Meta a, Meta b) {
+        return a.z < b.z || (a.z == b.z && a.id < b.id);
+    }
+
+    /**
+     * Move the shape to where its (z, id) belongs in the drawing order,
+     * one swap at a time.
+     */
+    private void reposition(Meta m) {
+        int i = scene.indexOf(m.shape);
+        while (i > 0) {
+            Meta below = byShape.get(scene.getShape(i - 1));
+            if (below == null || before(below, m)) {
+                break;
+            }
+            scene.swap(i - 1, i);
+            i--;
+        }
+        while (i < scene.size() - 1) {
+            Meta above = byShape.get(scene.getShape(i + 1));
+            if (above == null || before(m, above)) {
+                break;
+            }
+            scene.swap(i, i + 1);
+            i++;
+        }
+    }
+
+    //
+    // Wire format
+    //
+
+    private static byte[] encode(List<Op> ops) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            writeVarint(out, ops.size());
+            for (Op op : ops) {
+                out.writeByte(op.type);
+                writeVarint(out, op.stamp);
+                writeVarint(out, op.ids.length);
+                long prev = 0;
+                for (long id : op.ids) {
+                    writeVarint(out, id - prev);
+                    prev = id;
+                }
+                if (op.type == ADD || op.type == Z) {
+                    out.writeDouble(op.z);
+                }
+                if (op.type == ADD || op.type == REPLACE) {
+                    out.writeUTF(op.record);
+                } else if (op.type == MOVE) {
+                    writeVarint(out, zigzag(op.dx));
+                    writeVarint(out, zigzag(op.dy));
+                } else if (op.type == RECOLOR) {
+                    out.writeUTF(op.color);
+                }
+            }
+            out.flush();
+            byte[] raw = bytes.toByteArray();
+
+            Deflater deflater = new Deflater();
+            deflater.setInput(raw);
+            deflater.finish();
+            ByteArrayOutputStream packed = new ByteArrayOutputStream();
+            DataOutputStream packedOut = new DataOutputStream(packed);
+            packedOut.writeInt(raw.length);
+            byte[] buf = new byte[4096];
+            while (!deflater.finished()) {
+                packedOut.write(buf, 0, deflater.deflate(buf));
+            }
+            deflater.end();
+            packedOut.flush();
+            return packed.toByteArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static List<Op> decode(byte[] batch) {
+        try {
+            DataInputStream packed = new DataInputStream(new ByteArrayInputStream(batch));
+            byte[] raw = new byte[packed.readInt()];
+            Inflater inflater = new Inflater();
+            inflater.setInput(batch, 4, batch.length - 4);
+            int n = 0;
+            while (n < raw.length) {
+                int k = inflater.inflate(raw, n, raw.length - n);
+                if (k == 0 && (inflater.finished() || inflater.needsInput())) {
+                    throw new IOException("Truncated replica batch");
+                }
+                n += k;
+            }
+            inflater.end();
+
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(raw));
+            int count = (int) readVarint(in);
+            List<Op> ops = new ArrayList<Op>(count);
+            for (int i = 0; i < count; i++) {
+                int type = in.readByte();
+                long stamp = readVarint(in);
+                long[] ids = new long[(int) readVarint(in)];
+                long prev = 0;
+                for (int j = 0; j < ids.length; j++) {
+                    prev += readVarint(in);
+                    ids[j] = prev;
+                }
+                Op op = new Op(type, stamp, ids);
+                if (type == ADD || type == Z) {
+                    op.z = in.readDouble();
+                }
+                if (type == ADD || type == REPLACE) {
+                    op.record = in.readUTF();
+                } else if (type == MOVE) {
+                    op.dx = unzigzag(readVarint(in));
+                    op.dy = unzigzag(readVarint(in));
+                } else if (type == RECOLOR) {
+                    op.color = in.readUTF();
+                }
+                ops.add(op);
+            }
+            return ops;
+        } catch (IOException | DataFormatException e) {
+            throw new IllegalArgumentException("Bad replica batch", e);
+        }
+    }
+
+    static void writeVarint(DataOutputStream out, long v) throws IOException {
+        while ((v & ~0x7FL) != 0) {
+            out.writeByte((int) (v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        out.writeByte((int) v);
+    }
+
+    static long readVarint(DataInputStream in) throws IOException {
+        long v = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            v |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return v;
+            }
+        }
+        throw new IOException("Bad varint");
+    }
+
+    static long zigzag(int v) {
+        return ((v << 1) ^ (v >> 31)) & 0xFFFFFFFFL;
+    }
+
+    static int unzigzag(long v) {
+        return (int) (v >>> 1) ^ -(int) (v & 1);
+    }
+}
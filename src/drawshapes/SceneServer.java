@@ -0,0 +1,258 @@
+package drawshapes;
+
+import java.awt.Color;
+import java.awt.Point;
+import java.awt.image.BufferedImage;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.Scanner;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Headless server hosting any number of named scenes, driven by text
+ * commands over a local TCP or Unix-domain socket. No Swing is involved.
+ *
+ * Every command is one line, and every reply is one line starting with
+ * OK or ERROR. Shapes use the same records as File-&gt;Save.
+ *
+ * <pre>
+ * SCENE name                          switch to (and create) a scene
+ * ADD SQUARE 185 110 100 RED false    add a shape
+ * SELECT x y                          select the shapes containing a point
+ * SELECT left top right bottom        select the shapes intersecting a box
+ * MOVE dx dy                          move the selected shapes
+ * COUNT                               number of shapes
+ * RENDER width height file.png        render the scene to an image
+ * LOAD file / SAVE file               read or write the scene
+ * QUIT
+ * </pre>
+ *
+ * Every client gets its own thread. Commands that change a scene are
+ * serialized by locking the scene, so clients working on different
+ * scenes don't wait for each other, and publish a SceneSnapshot when
+ * done. COUNT, RENDER and SAVE read the last snapshot without the lock,
+ * so a slow render never holds up edits.
+ */
+public class SceneServer implements Closeable {
+    static final int DEFAULT_PORT = 7070;
+    static final String DEFAULT_SCENE = "default";
+
+    private final Map<String, Scene> scenes = new ConcurrentHashMap<String, Scene>();
+    private final ServerSocketChannel server;
+    private final ExecutorService clients = Executors.newCachedThreadPool();
+
+    /**
+     * Listen on the given address, either an InetSocketAddress or a
+     * UnixDomainSocketAddress.
+     *
+     * @param address
+     * @throws IOException
+     */
+    public SceneServer(SocketAddress address) throws IOException {
+        if (address instanceof UnixDomainSocketAddress) {
+            Files.deleteIfExists(((UnixDomainSocketAddress) address).getPath());
+            server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        } else {
+            server = ServerSocketChannel.open();
+        }
+        server.bind(address);
+    }
+
+    public SocketAddress getAddress() throws IOException {
+        return server.getLocalAddress();
+    }
+
+    /**
+     * Return the scene with the given name, creating it if needed.
+     *
+     * @param name
+     * @return
+     */
+    public Scene getScene(String name) {
+        return scenes.computeIfAbsent(name, n -> new Scene());
+    }
+
+    /**
+     * Accept clients until the server is closed.
+     */
+    public void serve() {
+        while (server.isOpen()) {
+            try {
+                SocketChannel client = server.accept();
+                clients.execute(() -> handle(client));
+            } catch (IOException e) {
+                if (server.isOpen()) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private void handle(SocketChannel client) {
+        try (BufferedReader in = new BufferedReader(
+                new InputStreamReader(Channels.newInputStream(client), StandardCharsets.UTF_8));
+                PrintWriter out = new PrintWriter(new BufferedWriter(
+                        new OutputStreamWriter(Channels.newOutputStream(client), StandardCharsets.UTF_8)))) {
+            String[] current = { DEFAULT_SCENE };
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.trim().equals("QUIT")) {
+                    out.println("OK bye");
+                    out.flush();
+                    break;
+                }
+                out.println(execute(current, line));
+                out.flush();
+            }
+        } catch (IOException e) {
+            // client went away
+        }
+    }
+
+    /**
+     * Run one command and return the reply.
+     *
+     * @param current holds the name of the client's current scene
+     * @param line    the command
+     * @return
+     */
+    String execute(String[] current, String line) {
+        Scanner sc = new Scanner(line);
+        if (!sc.hasNext()) {
+            return "ERROR empty command";
+        }
+        String command = sc.next();
+        try {
+            if (command.equals("SCENE")) {
+                current[0] = sc.next();
+                getScene(current[0]);
+                return "OK " + current[0];
+            }
+            Scene scene = getScene(current[0]);
+            if (command.equals("COUNT") || command.equals("RENDER") || command.equals("SAVE")) {
+                return read(scene.getSnapshot(), command, sc);
+            }
+            synchronized (scene) {
+                String reply = execute(scene, command, sc);
+                scene.publish();
+                return reply;
+            }
+        } catch (Exception e) {
+            return "ERROR " + e;
+        }
+    }
+
+    private String execute(Scene scene, String command, Scanner sc) throws Exception {
+        if (command.equals("ADD")) {
+            scene.addShape(Scene.readShape(sc));
+            return "OK " + scene.size();
+        } else if (command.equals("MOVE")) {
+            scene.move(sc.nextInt(), sc.nextInt());
+            return "OK";
+        } else if (command.equals("SELECT")) {
+            int a = sc.nextInt();
+            int b = sc.nextInt();
+            List<IShape> selected;
+            if (sc.hasNextInt()) {
+                int c = sc.nextInt();
+                int d = sc.nextInt();
+                selected = scene.select(new SelectionRectangle(a, c, b, d));
+            } else {
+                selected = scene.select(new Point(a, b));
+            }
+            for (IShape s : scene) {
+                s.setSelected(false);
+            }
+            for (IShape s : selected) {
+                s.setSelected(true);
+            }
+            return "OK " + selected.size();
+        } else if (command.equals("LOAD")) {
+            scene.loadShapes(new File(sc.next()));
+            return "OK " + scene.size();
+        }
+        return "ERROR unknown command " + command;
+    }
+
+    private String read(SceneSnapshot snapshot, String command, Scanner sc) throws Exception {
+        if (command.equals("COUNT")) {
+            return "OK " + snapshot.size();
+        } else if (command.equals("RENDER")) {
+            int width = sc.nextInt();
+            int height = sc.nextInt();
+            File file = new File(sc.next());
+            BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+            RasterRenderer raster = new RasterRenderer(image, new Viewport());
+            raster.clear(Color.WHITE.getRGB());
+            snapshot.render(raster);
+            raster.dispose();
+            ImageIO.write(image, "png", file);
+            return "OK " + file;
+        }
+        File file = new File(sc.next());
+        try (PrintWriter out = new PrintWriter(file)) {
+            for (IShape s : snapshot) {
+                out.println(s.toString());
+            }
+        }
+        return "OK " + file;
+    }
+
+    @Override
+    public void close() throws IOException {
+        server.close();
+        clients.shutdownNow();
+    }
+
+    /**
+     * Parse "--port N" or "--unix path" into an address. The default is
+     * TCP on localhost:DEFAULT_PORT.
+     */
+    static SocketAddress parseAddress(String[] args) {
+        for (int i = 0; i + 1 < args.length; i++) {
+            if (args[i].equals("--unix")) {
+                return UnixDomainSocketAddress.of(Path.of(args[i + 1]));
+            }
+            if (args[i].equals("--port")) {
+                return new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.parseInt(args[i + 1]));
+            }
+        }
+        return new InetSocketAddress(InetAddress.getLoopbackAddress(), DEFAULT_PORT);
+    }
+
+    /**
+     * Run with: java drawshapes.SceneServer [--port N | --unix path]
+     *
+     * @param args
+     * @throws IOException
+     */
+    public static void main(String[] args) throws IOException {
+        System.setProperty("java.awt.headless", "true");
+        SceneServer server = new SceneServer(parseAddress(args));
+        System.out.println("Scene server listening on " + server.getAddress());
+        server.serve();
+    }
+}
@@ -0,0 +1,268 @@
+package drawshapes;
+
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.Point;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * An immutable picture of a Scene, for reading it from other threads.
+ *
+ * The thread that edits a scene calls Scene.publish() after each batch of
+ * edits, which makes a new snapshot and swaps it in atomically. Anyone
+ * can then read Scene.getSnapshot() without locks, for example to render
+ * a frame while the next edit is being made; every frame shows the scene
+ * as it was after some batch, never halfway through one.
+ *
+ * The shapes of a snapshot are copies that nobody changes. A shape that
+ * didn't change since the previous snapshot keeps the copy it had there,
+ * and copies share their geometry with the original until it changes, so
+ * publishing costs little more than a pass over the scene.
+ */
+public final class SceneSnapshot implements Iterable<IShape> {
+    static final SceneSnapshot EMPTY = new SceneSnapshot(new IShape[0], new IdIndex(), null, null, true, true, 0);
+
+    private final IShape[] shapes;
+    // position of every shape in shapes, by id; only read after construction
+    private final IdIndex index;
+    private final SelectionRectangle selectRect;
+    private final BoundingBox region;
+    private final boolean batchRendering;
+    private final boolean occlusionCulling;
+    private final long version;
+    // the shapes hidden under opaque shapes drawn after them, found on the
+    // second draw; like Scene.hiddenShapes(), but the snapshot never
+    // changes, so it is kept for as long as the snapshot
+    private volatile Culled culled;
+    private volatile boolean drawn;
+
+    private static class Culled {
+        static final BitSet NONE = new BitSet();
+
+        final int margin;
+        final BitSet hidden;
+
+        Culled(int margin, BitSet hidden) {
+            this.margin = margin;
+            this.hidden = hidden;
+        }
+    }
+
+    private SceneSnapshot(IShape[] shapes, IdIndex index, SelectionRectangle selectRect, BoundingBox region,
+            boolean batchRendering, boolean occlusionCulling, long version) {
+        this.shapes = shapes;
+        this.index = index;
+        this.selectRect = selectRect;
+        this.region = region;
+        this.batchRendering = batchRendering;
+        this.occlusionCulling = occlusionCulling;
+        this.version = version;
+    }
+
+    /**
+     * Make the next snapshot, reusing the copies of the previous one for
+     * the shapes that didn't change.
+     *
+     * @param live           the shapes of the scene, in drawing order
+     * @param previous
+     * @param selectRect     the selection rectangle being dragged, or null
+     * @param region         where the shapes were taken from, or null for
+     *                       the whole scene
+     * @param batchRendering
+     * @param occlusionCulling
+     * @return the previous snapshot if nothing changed
+     */
+    static SceneSnapshot of(List<IShape> live, SceneSnapshot previous, SelectionRectangle selectRect,
+            BoundingBox region, boolean batchRendering, boolean occlusionCulling) {
+        IShape[] shapes = new IShape[live.size()];
+        IShape[] before = previous.shapes;
+        boolean changed = shapes.length != before.length || selectRect != previous.selectRect
+                || batchRendering != previous.batchRendering || occlusionCulling != previous.occlusionCulling
+                || !sameRegion(region, previous.region);
+        // while every shape is where it was, the index of ids can be kept
+        boolean sameOrder = shapes.length == before.length;
+        for (int i = 0; i < shapes.length; i++) {
+            IShape s = live.get(i);
+            long id = s.getId();
+            IShape old;
+            if (i < before.length && before[i].getId() == id) {
+                old = before[i];
+            } else {
+                sameOrder = false;
+                old = previous.getShapeById(id);
+            }
+            if (old != null && SceneHistory.sameState(old, s)) {
+                shapes[i] = old;
+            } else {
+                shapes[i] = SceneHistory.snapshot(s);
+            }
+            if (!changed && shapes[i] != before[i]) {
+                changed = true;
+            }
+        }
+        if (!changed) {
+            return previous;
+        }
+        IdIndex index = previous.index;
+        if (!sameOrder) {
+            index = new IdIndex(shapes.length);
+            for (int i = 0; i < shapes.length; i++) {
+                index.put(shapes[i].getId(), i);
+            }
+        }
+        return new SceneSnapshot(shapes, index, selectRect, region, batchRendering, occlusionCulling,
+                previous.version + 1);
+    }
+
+    private static boolean sameRegion(BoundingBox a, BoundingBox b) {
+        if (a == null || b == null) {
+            return a == b;
+        }
+        return a.getLeft() == b.getLeft() && a.getRight() == b.getRight() && a.getTop() == b.getTop()
+                && a.getBottom() == b.getBottom();
+    }
+
+    /**
+     * Counts up with every snapshot of the same scene that differs from
+     * the one before.
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * The region the shapes were taken from, or null if the snapshot has
+     * every shape of the scene. Paged scenes only publish what is in view.
+     */
+    public BoundingBox getRegion() {
+        return region;
+    }
+
+    public int size() {
+        return shapes.length;
+    }
+
+    public IShape getShape(int i) {
+        return shapes[i];
+    }
+
+    public IShape getShapeById(long id) {
+        int i = index.get(id);
+        return i == -1 ? null : shapes[i];
+    }
+
+    /**
+     * The shapes in drawing order. They must not be changed.
+     */
+    @Override
+    public Iterator<IShape> iterator() {
+        return Collections.unmodifiableList(Arrays.asList(shapes)).iterator();
+    }
+
+    /**
+     * Draw the shapes and the selection rectangle, like Scene.draw().
+     *
+     * @param g
+     */
+    public void draw(Graphics g) {
+        drawShapes(g);
+        drawSelection(g);
+    }
+
+    public void drawSelection(Graphics g) {
+        if (selectRect != null) {
+            selectRect.draw(g);
+        }
+    }
+
+    private void drawShapes(Graphics g) {
+        BoundingBox clip = Scene.clipOf(g);
+        double scale = Scene.scaleOf(g);
+        BitSet hidden = hiddenShapes(scale);
+        if (batchRendering && g instanceof Graphics2D) {
+            BatchRenderer batch = new BatchRenderer(g, scale);
+            for (int i = hidden.nextClearBit(0); i < shapes.length; i = hidden.nextClearBit(i + 1)) {
+                if (Scene.isVisible(shapes[i], clip)) {
+                    batch.add(shapes[i]);
+                }
+            }
+            batch.flush();
+        } else {
+            for (int i = hidden.nextClearBit(0); i < shapes.length; i = hidden.nextClearBit(i + 1)) {
+                if (Scene.isVisible(shapes[i], clip)) {
+                    Scene.drawShape(g, shapes[i], scale);
+                }
+            }
+        }
+    }
+
+    /**
+     * Draw the shapes into the pixels of an image, like Scene.render().
+     *
+     * @param raster
+     */
+    public void render(RasterRenderer raster) {
+        BoundingBox clip = raster.getWorldBounds();
+        BitSet hidden = hiddenShapes(raster.getScale());
+        for (int i = hidden.nextClearBit(0); i < shapes.length; i = hidden.nextClearBit(i + 1)) {
+            if (Scene.isVisible(shapes[i], clip)) {
+                raster.add(shapes[i]);
+            }
+        }
+    }
+
+    /**
+     * The positions of the shapes hidden at the given scale, or none on
+     * the first draw: while shapes are dragged or animated every frame is
+     * a new snapshot, and finding them would cost more than it saves.
+     */
+    private BitSet hiddenShapes(double scale) {
+        if (!occlusionCulling) {
+            return Culled.NONE;
+        }
+        if (!drawn) {
+            drawn = true;
+            return Culled.NONE;
+        }
+        int margin = OcclusionCuller.marginFor(scale);
+        Culled c = culled;
+        if (c == null || c.margin != margin) {
+            // racing threads may both find them, either answer is right
+            c = new Culled(margin, OcclusionCuller.findHidden(Arrays.asList(shapes), margin));
+            culled = c;
+        }
+        return c.hidden;
+    }
+
+    /**
+     * The shapes containing the point, in drawing order.
+     */
+    public List<IShape> select(Point point) {
+        return ParallelSelect.select(Arrays.asList(shapes), s -> s.contains(point));
+    }
+
+    /**
+     * The shapes intersecting the given shape, in drawing order.
+     */
+    public List<IShape> select(IShape shape) {
+        return ParallelSelect.select(Arrays.asList(shapes), s -> s.intersects(shape));
+    }
+
+    /**
+     * The selected shapes, in drawing order.
+     */
+    public List<IShape> selectedShapes() {
+        List<IShape> selected = new ArrayList<IShape>();
+        for (IShape s : shapes) {
+            if (s.isSelected()) {
+                selected.add(s);
+            }
+        }
+        return selected;
+    }
+}
@@ -0,0 +1,190 @@
+package drawshapes;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Records an editing session in DrawShapes to a file, so it can be
+ * replayed later with SessionReplayer, for example to compare how long
+ * the same session takes before and after a change.
+ *
+ * The file starts with the scene and the view as they were when
+ * recording started. After that comes one event per edit made through
+ * SceneEditor, plus the pans and zooms of the view. Each event is the
+ * time since the previous one in milliseconds, the kind of event and its
+ * arguments, all as varints, and the whole file is gzipped. A long
+ * session of clicking and dragging takes a few bytes per event.
+ */
+public class SessionRecorder implements Closeable {
+    static final int MAGIC = 0x44535331;
+
+    /**
+     * The kinds of events, with the number of int arguments each one
+     * has. Only add new ones at the end, the ordinal is in the file.
+     */
+    public enum Op {
+        /** shape type, x, y, rgb */
+        ADD(4),
+        /** x, y */
+        SELECT(2),
+        /** x, y */
+        DRAG_START(2),
+        /** x, y */
+        DRAG(2),
+        DRAG_STOP(0),
+        /** dx, dy */
+        MOVE(2),
+        /** 1 for up, 0 for down */
+        SCALE(1),
+        UNDO(0),
+        REDO(0),
+        GROUP(0),
+        UNGROUP(0),
+        INSTANCE(0),
+        FORWARD(0),
+        BACKWARD(0),
+        CHANGE(0),
+        COPY(0),
+        CUT(0),
+        PASTE(0),
+        DUPLICATE(0),
+        /** from before the seed was recorded, see ANIMATE_SEEDED */
+        ANIMATE(0),
+        /** seed */
+        DANCE(1),
+        /** followed by the path of the file */
+        LOAD(0),
+        /** followed by the path of the file */
+        LOAD_CHUNKED(0),
+        CLEAR(0),
+        /** dx, dy in pixels */
+        PAN(2),
+        /** wheel rotation in thousandths of a notch, x, y on the panel */
+        ZOOM(3),
+        /** the end of the session */
+        END(0),
+        /** the factor, as the bits of a float */
+        SCALE_BY(1),
+        /** version in the history */
+        JUMP(1),
+        /** followed by the query */
+        QUERY(0),
+        /** seed */
+        ANIMATE_SEEDED(1);
+
+        final int args;
+
+        Op(int args) {
+            this.args = args;
+        }
+    }
+
+    private final DataOutputStream out;
+    private final long start = System.nanoTime();
+    private long last;
+    private int events;
+
+    /**
+     * Start recording, writing the current scene and view to the file.
+     *
+     * @param file
+     * @param scene
+     * @param viewport
+     * @param width    of the view, in pixels
+     * @param height
+     * @throws IOException
+     */
+    public SessionRecorder(File file, Scene scene, Viewport viewport, int width, int height) throws IOException {
+        out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(file)), 1 << 16));
+        out.writeInt(MAGIC);
+        out.writeDouble(viewport.getOriginX());
+        out.writeDouble(viewport.getOriginY());
+        out.writeDouble(viewport.getScale());
+        out.writeInt(width);
+        out.writeInt(height);
+        out.writeInt(scene.size());
+        for (IShape s : scene) {
+            byte[] record = s.toString().getBytes(StandardCharsets.UTF_8);
+            SceneReplica.writeVarint(out, record.length);
+            out.write(record);
+        }
+    }
+
+    /**
+     * Record one event, which must have the number of arguments its
+     * kind says.
+     *
+     * @param op
+     * @param args
+     */
+    public synchronized void record(Op op, int... args) {
+        if (args.length != op.args) {
+            throw new IllegalArgumentException(op + " takes " + op.args + " arguments");
+        }
+        try {
+            writeHeader(op);
+            for (int a : args) {
+                SceneReplica.writeVarint(out, SceneReplica.zigzag(a));
+            }
+        } catch (IOException e) {
+            // losing the recording shouldn't stop the user from drawing
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Record loading a file.
+     *
+     * @param op   LOAD or LOAD_CHUNKED
+     * @param file
+     */
+    public synchronized void recordLoad(Op op, File file) {
+        try {
+            writeHeader(op);
+            out.writeUTF(file.getAbsolutePath());
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Record selecting the shapes matching a query.
+     *
+     * @param query
+     */
+    public synchronized void recordQuery(String query) {
+        try {
+            writeHeader(Op.QUERY);
+            out.writeUTF(query);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void writeHeader(Op op) throws IOException {
+        long now = (System.nanoTime() - start) / 1000000;
+        SceneReplica.writeVarint(out, now - last);
+        out.writeByte(op.ordinal());
+        last = now;
+        events++;
+    }
+
+    /**
+     * How many events were recorded so far.
+     */
+    public synchronized int getEvents() {
+        return events;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        writeHeader(Op.END);
+        out.close();
+    }
+}
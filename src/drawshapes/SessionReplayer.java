@@ -0,0 +1,351 @@
+package drawshapes;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Point;
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Scanner;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Replays a session recorded with SessionRecorder against a scene,
+ * without a window, and reports latency percentiles for every kind of
+ * edit.
+ *
+ * Edits go through a SceneEditor, like they did in DrawShapes. The
+ * animations, which DrawShapes runs in an EffectRuntime, jump to their
+ * end on the spot, with the steps and colors they had when they were
+ * recorded. With --render, the scene is
+ * drawn after every edit, into an image the size the window was, through
+ * the recorded pans and zooms, and that is timed as RENDER.
+ *
+ * By default events are replayed as fast as possible. With --realtime
+ * they are replayed at the time they were recorded, which shows how far
+ * behind the user the program would have fallen.
+ *
+ * Run with:
+ * java drawshapes.SessionReplayer [--realtime] [--render] [--java2d] session
+ */
+public class SessionReplayer {
+    /**
+     * One recorded event.
+     */
+    static class Event {
+        // milliseconds since recording started
+        final long time;
+        final SessionRecorder.Op op;
+        final int[] args;
+        // the file for LOAD and LOAD_CHUNKED, the query for QUERY
+        final String text;
+
+        Event(long time, SessionRecorder.Op op, int[] args, String text) {
+            this.time = time;
+            this.op = op;
+            this.args = args;
+            this.text = text;
+        }
+    }
+
+    private final Scene scene = new Scene();
+    private final SceneEditor editor = new SceneEditor(scene);
+    private final ShapeClipboard clipboard = new ShapeClipboard(null);
+    private final List<Event> events = new ArrayList<Event>();
+    private final LatencyStats latencies = new LatencyStats();
+    private Viewport viewport;
+    private BufferedImage image;
+    private boolean render;
+    private boolean raster;
+    private long lag;
+
+    /**
+     * Read a recorded session.
+     *
+     * @param file
+     * @throws IOException
+     */
+    public SessionReplayer(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new GZIPInputStream(new FileInputStream(file)), 1 << 16))) {
+            if (in.readInt() != SessionRecorder.MAGIC) {
+                throw new IOException(file + " is not a recorded session");
+            }
+            viewport = new Viewport(in.readDouble(), in.readDouble(), in.readDouble());
+            int width = in.readInt();
+            int height = in.readInt();
+            image = new BufferedImage(Math.max(1, width), Math.max(1, height), BufferedImage.TYPE_INT_RGB);
+            int count = in.readInt();
+            List<IShape> shapes = new ArrayList<IShape>(count);
+            for (int i = 0; i < count; i++) {
+                byte[] record = new byte[(int) SceneReplica.readVarint(in)];
+                in.readFully(record);
+                shapes.add(Scene.readShape(new Scanner(new String(record, StandardCharsets.UTF_8))));
+            }
+            scene.addShapes(shapes);
+
+            SessionRecorder.Op[] ops = SessionRecorder.Op.values();
+            long time = 0;
+            while (true) {
+                time += SceneReplica.readVarint(in);
+                SessionRecorder.Op op = ops[in.readUnsignedByte()];
+                if (op == SessionRecorder.Op.END) {
+                    break;
+                }
+                int[] args = new int[op.args];
+                for (int i = 0; i < args.length; i++) {
+                    args[i] = SceneReplica.unzigzag(SceneReplica.readVarint(in));
+                }
+                String text = null;
+                if (op == SessionRecorder.Op.LOAD || op == SessionRecorder.Op.LOAD_CHUNKED
+                        || op == SessionRecorder.Op.QUERY) {
+                    text = in.readUTF();
+                }
+                events.add(new Event(time, op, args, text));
+            }
+        } catch (EOFException e) {
+            // DrawShapes was killed before the recording was closed, replay what we have
+        }
+    }
+
+    /**
+     * Draw the scene after every event.
+     *
+     * @param render
+     * @param raster with RasterRenderer instead of Java2D
+     */
+    public void setRender(boolean render, boolean raster) {
+        this.render = render;
+        this.raster = raster;
+    }
+
+    public Scene getScene() {
+        return scene;
+    }
+
+    public List<Event> getEvents() {
+        return events;
+    }
+
+    /**
+     * Replay every event, timing each one.
+     *
+     * @param realtime wait until the time each event was recorded at
+     * @throws Exception if a file the session loaded can't be loaded
+     */
+    public void replay(boolean realtime) throws Exception {
+        long start = System.nanoTime();
+        for (Event e : events) {
+            if (realtime) {
+                long wait = e.time - (System.nanoTime() - start) / 1000000;
+                if (wait > 0) {
+                    Thread.sleep(wait);
+                } else {
+                    lag = Math.max(lag, -wait);
+                }
+            }
+            long t = System.nanoTime();
+            execute(e);
+            latencies.record(e.op.name(), System.nanoTime() - t);
+            if (render && e.op != SessionRecorder.Op.DRAG_START) {
+                t = System.nanoTime();
+                render();
+                latencies.record("RENDER", System.nanoTime() - t);
+            }
+        }
+    }
+
+    private void execute(Event e) throws Exception {
+        int[] a = e.args;
+        switch (e.op) {
+            case ADD:
+                editor.addShape(DrawShapes.ShapeType.values()[a[0]], color(a[3]), new Point(a[1], a[2]));
+                break;
+            case SELECT:
+                editor.selectAt(new Point(a[0], a[1]));
+                break;
+            case DRAG_START:
+                editor.startDrag(new Point(a[0], a[1]));
+                break;
+            case DRAG:
+                editor.dragTo(new Point(a[0], a[1]));
+                break;
+            case DRAG_STOP:
+                editor.stopDrag();
+                break;
+            case MOVE:
+                editor.move(a[0], a[1]);
+                break;
+            case SCALE:
+                editor.scale(a[0] == 1);
+                break;
+            case SCALE_BY:
+                editor.scaleBy(Float.intBitsToFloat(a[0]));
+                break;
+            case UNDO:
+                editor.undo();
+                break;
+            case REDO:
+                editor.redo();
+                break;
+            case JUMP:
+                editor.jumpTo(a[0]);
+                break;
+            case QUERY:
+                editor.selectWhere(e.text);
+                break;
+            case GROUP:
+                editor.group();
+                break;
+            case UNGROUP:
+                editor.ungroup();
+                break;
+            case INSTANCE:
+                editor.instance();
+                break;
+            case FORWARD:
+                editor.bringForward();
+                break;
+            case BACKWARD:
+                editor.sendBackward();
+                break;
+            case CHANGE:
+                editor.changeShapes();
+                break;
+            case COPY:
+                editor.copy(clipboard);
+                break;
+            case CUT:
+                editor.cut(clipboard);
+                break;
+            case PASTE:
+                editor.paste(clipboard);
+                break;
+            case DUPLICATE:
+                editor.duplicate();
+                break;
+            case ANIMATE:
+                // recorded without a seed, so the colors can't be the same
+                for (Effect effect : editor.startAnimation(0)) {
+                    effect.finish();
+                }
+                editor.effectsFinished();
+                break;
+            case ANIMATE_SEEDED:
+                for (Effect effect : editor.startAnimation(a[0])) {
+                    effect.finish();
+                }
+                editor.effectsFinished();
+                break;
+            case DANCE:
+                for (Effect effect : editor.startDance(a[0])) {
+                    effect.finish();
+                }
+                editor.effectsFinished();
+                break;
+            case LOAD:
+                editor.load(new File(e.text));
+                break;
+            case LOAD_CHUNKED:
+                editor.loadChunked(new File(e.text));
+                break;
+            case CLEAR:
+                editor.clear();
+                break;
+            case PAN:
+                viewport.pan(a[0], a[1]);
+                break;
+            case ZOOM:
+                viewport.zoom(Math.pow(DrawShapes.ZOOM_STEP, -a[0] / 1000.0), new Point(a[1], a[2]));
+                break;
+            default:
+                throw new IllegalStateException("Can't replay " + e.op);
+        }
+    }
+
+    /**
+     * The color constant with the given rgb, since shapes can only save
+     * the constants.
+     */
+    private static Color color(int rgb) {
+        for (String name : new String[] { "RED", "BLUE", "GREEN", "YELLOW", "BLACK", "CYAN" }) {
+            Color c = Util.stringToColor(name);
+            if (c.getRGB() == rgb) {
+                return c;
+            }
+        }
+        return new Color(rgb, true);
+    }
+
+    private void render() {
+        if (raster) {
+            RasterRenderer r = new RasterRenderer(image, viewport);
+            r.clear(Color.WHITE.getRGB());
+            scene.render(r);
+            r.dispose();
+        } else {
+            Graphics2D g = image.createGraphics();
+            g.setColor(Color.WHITE);
+            g.fillRect(0, 0, image.getWidth(), image.getHeight());
+            g.transform(viewport.getTransform());
+            scene.draw(g);
+            g.dispose();
+        }
+    }
+
+    /**
+     * Print count, p50, p95, p99 and max latency for every kind of event.
+     */
+    public void report() {
+        latencies.report();
+    }
+
+    /**
+     * The most a realtime replay fell behind the recording, in
+     * milliseconds.
+     */
+    public long getLag() {
+        return lag;
+    }
+
+    public static void main(String[] args) throws Exception {
+        boolean realtime = false;
+        boolean render = false;
+        boolean java2d = false;
+        File file = null;
+        for (String arg : args) {
+            if (arg.equals("--realtime")) {
+                realtime = true;
+            } else if (arg.equals("--render")) {
+                render = true;
+            } else if (arg.equals("--java2d")) {
+                java2d = true;
+            } else {
+                file = new File(arg);
+            }
+        }
+        if (file == null) {
+            System.err.println("usage: java drawshapes.SessionReplayer [--realtime] [--render] [--java2d] session");
+            System.exit(1);
+        }
+
+        SessionReplayer replayer = new SessionReplayer(file);
+        replayer.setRender(render, !java2d);
+        System.out.printf("%d shapes, %d events%n", replayer.getScene().size(), replayer.getEvents().size());
+        long start = System.nanoTime();
+        replayer.replay(realtime);
+        System.out.printf("total %.0f ms, %d shapes at the end%n", (System.nanoTime() - start) / 1e6,
+                replayer.getScene().size());
+        if (realtime) {
+            System.out.printf("fell behind the recording by up to %d ms%n", replayer.getLag());
+        }
+        replayer.report();
+    }
+}
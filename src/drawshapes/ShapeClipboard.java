@@ -0,0 +1,124 @@
+package drawshapes;
+
+import java.awt.HeadlessException;
+import java.awt.Toolkit;
+import java.awt.datatransfer.Clipboard;
+import java.awt.datatransfer.ClipboardOwner;
+import java.awt.datatransfer.DataFlavor;
+import java.awt.datatransfer.StringSelection;
+import java.awt.datatransfer.Transferable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Scanner;
+
+/**
+ * Clipboard for shapes.
+ *
+ * Copied shapes are kept here as copies sharing their geometry with the
+ * originals (see AbstractShape.copy()), so copying a large selection is
+ * cheap. The system clipboard gets the same text records as File-&gt;Save,
+ * so shapes can be pasted into another DrawShapes window, or into a text
+ * editor. If something else takes over the system clipboard, pasting
+ * reads whatever shape records are on it.
+ */
+public class ShapeClipboard implements ClipboardOwner {
+    private final Clipboard system;
+    private List<IShape> shapes = Collections.emptyList();
+    // false once something else was put on the system clipboard
+    private boolean owner = true;
+    // how many times the current contents were pasted
+    private int pastes;
+
+    public ShapeClipboard() {
+        this(systemClipboard());
+    }
+
+    /**
+     * @param system the system clipboard, or null to keep shapes only here
+     */
+    public ShapeClipboard(Clipboard system) {
+        this.system = system;
+    }
+
+    private static Clipboard systemClipboard() {
+        try {
+            return Toolkit.getDefaultToolkit().getSystemClipboard();
+        } catch (HeadlessException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Put the given shapes on the clipboard. They should already be
+     * copies, see Scene.copySelection().
+     *
+     * @param copies
+     */
+    public synchronized void set(List<IShape> copies) {
+        shapes = copies;
+        pastes = 0;
+        owner = true;
+        if (system != null) {
+            StringBuilder text = new StringBuilder(copies.size() * 32);
+            for (IShape s : copies) {
+                text.append(s.toString()).append('\n');
+            }
+            try {
+                system.setContents(new StringSelection(text.toString()), this);
+            } catch (IllegalStateException e) {
+                // the system clipboard is busy, we still have our own copy
+            }
+        }
+    }
+
+    /**
+     * Return the shapes on the clipboard. Don't change them, paste copies.
+     */
+    public synchronized List<IShape> get() {
+        if (!owner) {
+            shapes = readSystem();
+        }
+        return shapes;
+    }
+
+    /**
+     * Count one more paste and return how far (in multiples of the paste
+     * offset) this one should be moved, so repeated pastes don't land on
+     * top of each other.
+     */
+    public synchronized int nextPaste() {
+        return ++pastes;
+    }
+
+    @Override
+    public synchronized void lostOwnership(Clipboard clipboard, Transferable contents) {
+        owner = false;
+        shapes = Collections.emptyList();
+        pastes = 0;
+    }
+
+    /**
+     * Read shape records from the system clipboard, ignoring anything
+     * that isn't one.
+     */
+    private List<IShape> readSystem() {
+        List<IShape> result = new ArrayList<IShape>();
+        try {
+            if (system == null || !system.isDataFlavorAvailable(DataFlavor.stringFlavor)) {
+                return result;
+            }
+            String text = (String) system.getData(DataFlavor.stringFlavor);
+            for (String line : text.split("\n")) {
+                try {
+                    result.add(Scene.readShape(new Scanner(line)));
+                } catch (RuntimeException e) {
+                    // not one of ours
+                }
+            }
+        } catch (Exception e) {
+            // the system clipboard is busy or holds something else
+        }
+        return result;
+    }
+}
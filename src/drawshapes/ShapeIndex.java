@@ -0,0 +1,414 @@
+package drawshapes;
+
+import java.awt.Color;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+
+/**
+ * Secondary indexes over the shapes of a scene, for SceneQuery: by type,
+ * by color, sorted by length, and a uniform grid over the bounding boxes.
+ *
+ * Each index can say cheaply how many shapes a lookup would return, so a
+ * query can start from the most selective one. Shapes covering more than
+ * MAX_CELLS grid cells aren't put in the grid but in a list of big shapes
+ * that every region lookup returns.
+ *
+ * The scene keeps the indexes up to date as it changes: add() and
+ * remove() shapes, and update() a shape after changing its color, size
+ * or position. Every shape gets a slot, found by its id, that remembers
+ * what the shape was indexed under and where it is in every bucket, so an
+ * update only touches the buckets that changed and removing a shape from
+ * a bucket moves the last one into its place. Buckets are arrays of slots
+ * rather than sets of shapes, so building the index doesn't box or hash
+ * anything but the keys.
+ *
+ * The cell size is picked when the index is built; once the scene has
+ * grown far beyond that, isStale() tells the scene to build a new one.
+ */
+class ShapeIndex {
+    // a shape in more cells than this is a big shape
+    static final int MAX_CELLS = 64;
+    // rebuild once the scene is this many times the size it was built for
+    static final int GROWTH = 4;
+
+    /**
+     * The slots of the shapes in one bucket, in no particular order.
+     */
+    private static class Bucket {
+        int[] slots = new int[4];
+        int size;
+
+        int add(int slot) {
+            if (size == slots.length) {
+                slots = Arrays.copyOf(slots, size * 2);
+            }
+            slots[size] = slot;
+            return size++;
+        }
+
+        /**
+         * Remove the slot at i by moving the last one there.
+         *
+         * @return the slot that moved to i, or -1
+         */
+        int removeAt(int i) {
+            size--;
+            if (i == size) {
+                return -1;
+            }
+            slots[i] = slots[size];
+            return slots[i];
+        }
+    }
+
+    private final int builtSize;
+    private final int cellSize;
+    // the slot of every shape, by id
+    private final IdIndex slotOf;
+    private IShape[] shapes;
+    private int slots;
+    private int[] free = new int[16];
+    private int freeCount;
+    private int size;
+    // what every slot was indexed under
+    private Color[] colors;
+    private int[] lengths;
+    // the cells of every slot; big shapes have left > right
+    private int[] left;
+    private int[] right;
+    private int[] top;
+    private int[] bottom;
+    // where every slot is in its type, color and length buckets
+    private int[] typeAt;
+    private int[] colorAt;
+    private int[] lengthAt;
+    private final Map<Class<?>, Bucket> byType = new HashMap<Class<?>, Bucket>();
+    private final Map<Color, Bucket> byColor = new HashMap<Color, Bucket>();
+    private final NavigableMap<Integer, Bucket> byLength = new TreeMap<Integer, Bucket>();
+    // cell key -> number of its bucket in cells
+    private final IdIndex cellOf;
+    private final List<Bucket> cells = new ArrayList<Bucket>();
+    private final Bucket big = new Bucket();
+    private int[] bigAt;
+
+    ShapeIndex(Iterable<IShape> shapes, int count) {
+        this.builtSize = count;
+        long minX = Long.MAX_VALUE;
+        long maxX = Long.MIN_VALUE;
+        long minY = Long.MAX_VALUE;
+        long maxY = Long.MIN_VALUE;
+        long extent = 0;
+        for (IShape s : shapes) {
+            BoundingBox b = s.getBoundingBox();
+            minX = Math.min(minX, b.getLeft());
+            maxX = Math.max(maxX, b.getRight());
+            minY = Math.min(minY, b.getTop());
+            maxY = Math.max(maxY, b.getBottom());
+            extent += Math.max(b.getRight() - b.getLeft(), b.getBottom() - b.getTop());
+        }
+        // about one shape per cell if they were spread evenly, but not
+        // smaller than a shape, so most shapes are in a few cells
+        double area = count == 0 ? 1 : (double) (maxX - minX + 1) * (maxY - minY + 1);
+        double even = Math.sqrt(area / Math.max(1, count));
+        double average = (double) extent / Math.max(1, count);
+        cellSize = (int) Math.max(16, Math.min(1 << 20, Math.max(even, average)));
+        slotOf = new IdIndex(count);
+        cellOf = new IdIndex(count);
+        allocate(Math.max(16, count));
+        for (IShape s : shapes) {
+            add(s);
+        }
+    }
+
+    private void allocate(int capacity) {
+        shapes = shapes == null ? new IShape[capacity] : Arrays.copyOf(shapes, capacity);
+        colors = colors == null ? new Color[capacity] : Arrays.copyOf(colors, capacity);
+        lengths = grow(lengths, capacity);
+        left = grow(left, capacity);
+        right = grow(right, capacity);
+        top = grow(top, capacity);
+        bottom = grow(bottom, capacity);
+        typeAt = grow(typeAt, capacity);
+        colorAt = grow(colorAt, capacity);
+        lengthAt = grow(lengthAt, capacity);
+        bigAt = grow(bigAt, capacity);
+    }
+
+    private static int[] grow(int[] a, int capacity) {
+        return a == null ? new int[capacity] : Arrays.copyOf(a, capacity);
+    }
+
+    private int cell(int coordinate) {
+        return Math.floorDiv(coordinate, cellSize);
+    }
+
+    private static long key(int x, int y) {
+        return ((long) x << 32) | (y & 0xffffffffL);
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * True once the scene has outgrown the cell size of the grid.
+     */
+    boolean isStale() {
+        return size > (long) GROWTH * builtSize + 1024;
+    }
+
+    void add(IShape s) {
+        if (slotOf.containsKey(s.getId())) {
+            return;
+        }
+        int slot;
+        if (freeCount > 0) {
+            slot = free[--freeCount];
+        } else {
+            if (slots == shapes.length) {
+                allocate(slots * 2);
+            }
+            slot = slots++;
+        }
+        slotOf.put(s.getId(), slot);
+        shapes[slot] = s;
+        size++;
+        typeAt[slot] = byType.computeIfAbsent(s.getClass(), k -> new Bucket()).add(slot);
+        addAttributes(slot);
+        addCells(slot);
+    }
+
+    void remove(IShape s) {
+        int slot = slotOf.get(s.getId());
+        if (slot == -1 || shapes[slot] != s) {
+            return;
+        }
+        slotOf.remove(s.getId());
+        removeFrom(byType.get(s.getClass()), slot, typeAt);
+        removeAttributes(slot);
+        removeCells(slot);
+        shapes[slot] = null;
+        colors[slot] = null;
+        if (freeCount == free.length) {
+            free = Arrays.copyOf(free, freeCount * 2);
+        }
+        free[freeCount++] = slot;
+        size--;
+    }
+
+    /**
+     * Index the shape again after its color, size or position changed.
+     */
+    void update(IShape s) {
+        int slot = slotOf.get(s.getId());
+        if (slot == -1 || shapes[slot] != s) {
+            return;
+        }
+        if (!colors[slot].equals(s.getColor()) || lengths[slot] != s.getLength()) {
+            removeAttributes(slot);
+            addAttributes(slot);
+        }
+        BoundingBox b = s.getBoundingBox();
+        boolean moved = left[slot] > right[slot] ? cellsAcross(b) <= MAX_CELLS
+                : left[slot] != cell(b.getLeft()) || right[slot] != cell(b.getRight())
+                        || top[slot] != cell(b.getTop()) || bottom[slot] != cell(b.getBottom());
+        if (moved) {
+            removeCells(slot);
+            addCells(slot);
+        }
+    }
+
+    /**
+     * Take the slot out of a bucket, using and fixing the positions in at.
+     */
+    private static void removeFrom(Bucket bucket, int slot, int[] at) {
+        int moved = bucket.removeAt(at[slot]);
+        if (moved != -1) {
+            at[moved] = at[slot];
+        }
+    }
+
+    private void addAttributes(int slot) {
+        IShape s = shapes[slot];
+        colors[slot] = s.getColor();
+        lengths[slot] = s.getLength();
+        colorAt[slot] = byColor.computeIfAbsent(colors[slot], k -> new Bucket()).add(slot);
+        lengthAt[slot] = byLength.computeIfAbsent(lengths[slot], k -> new Bucket()).add(slot);
+    }
+
+    private void removeAttributes(int slot) {
+        Bucket c = byColor.get(colors[slot]);
+        removeFrom(c, slot, colorAt);
+        if (c.size == 0) {
+            byColor.remove(colors[slot]);
+        }
+        Bucket l = byLength.get(lengths[slot]);
+        removeFrom(l, slot, lengthAt);
+        if (l.size == 0) {
+            byLength.remove(lengths[slot]);
+        }
+    }
+
+    private long cellsAcross(BoundingBox b) {
+        return (long) (cell(b.getRight()) - cell(b.getLeft()) + 1) * (cell(b.getBottom()) - cell(b.getTop()) + 1);
+    }
+
+    private void addCells(int slot) {
+        BoundingBox b = shapes[slot].getBoundingBox();
+        if (cellsAcross(b) > MAX_CELLS) {
+            left[slot] = 1;
+            right[slot] = 0;
+            bigAt[slot] = big.add(slot);
+            return;
+        }
+        left[slot] = cell(b.getLeft());
+        right[slot] = cell(b.getRight());
+        top[slot] = cell(b.getTop());
+        bottom[slot] = cell(b.getBottom());
+        for (int x = left[slot]; x <= right[slot]; x++) {
+            for (int y = top[slot]; y <= bottom[slot]; y++) {
+                long key = key(x, y);
+                int c = cellOf.get(key);
+                if (c == -1) {
+                    c = cells.size();
+                    cells.add(new Bucket());
+                    cellOf.put(key, c);
+                }
+                cells.get(c).add(slot);
+            }
+        }
+    }
+
+    private void removeCells(int slot) {
+        if (left[slot] > right[slot]) {
+            removeFrom(big, slot, bigAt);
+            return;
+        }
+        for (int x = left[slot]; x <= right[slot]; x++) {
+            for (int y = top[slot]; y <= bottom[slot]; y++) {
+                Bucket c = cells.get(cellOf.get(key(x, y)));
+                // cells hold a few shapes, a linear search is fine
+                for (int i = 0; i < c.size; i++) {
+                    if (c.slots[i] == slot) {
+                        c.removeAt(i);
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    private List<IShape> shapesOf(Bucket bucket) {
+        if (bucket == null) {
+            return new ArrayList<IShape>(0);
+        }
+        List<IShape> list = new ArrayList<IShape>(bucket.size);
+        for (int i = 0; i < bucket.size; i++) {
+            list.add(shapes[bucket.slots[i]]);
+        }
+        return list;
+    }
+
+    int countType(Class<?> type) {
+        Bucket b = byType.get(type);
+        return b == null ? 0 : b.size;
+    }
+
+    List<IShape> ofType(Class<?> type) {
+        return shapesOf(byType.get(type));
+    }
+
+    int countColor(Color color) {
+        Bucket b = byColor.get(color);
+        return b == null ? 0 : b.size;
+    }
+
+    List<IShape> ofColor(Color color) {
+        return shapesOf(byColor.get(color));
+    }
+
+    /**
+     * How many shapes have lengths in min..max, both included.
+     */
+    int countLength(int min, int max) {
+        if (min > max) {
+            return 0;
+        }
+        int n = 0;
+        for (Bucket b : byLength.subMap(min, true, max, true).values()) {
+            n += b.size;
+        }
+        return n;
+    }
+
+    /**
+     * The shapes with lengths in min..max, both included.
+     */
+    List<IShape> ofLength(int min, int max) {
+        List<IShape> list = new ArrayList<IShape>();
+        if (min > max) {
+            return list;
+        }
+        for (Bucket b : byLength.subMap(min, true, max, true).values()) {
+            for (int i = 0; i < b.size; i++) {
+                list.add(shapes[b.slots[i]]);
+            }
+        }
+        return list;
+    }
+
+    /**
+     * About how many shapes regionCandidates() would return.
+     */
+    int estimateRegion(BoundingBox region) {
+        if (cellsAcross(region) > cells.size()) {
+            return size;
+        }
+        int n = big.size;
+        for (int x = cell(region.getLeft()); x <= cell(region.getRight()); x++) {
+            for (int y = cell(region.getTop()); y <= cell(region.getBottom()); y++) {
+                int c = cellOf.get(key(x, y));
+                if (c != -1) {
+                    n += cells.get(c).size;
+                }
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Every shape whose bounding box may intersect the region, each once,
+     * plus possibly some that don't.
+     */
+    void regionCandidates(BoundingBox region, Consumer<IShape> action) {
+        int l = cell(region.getLeft());
+        int r = cell(region.getRight());
+        int t = cell(region.getTop());
+        int b = cell(region.getBottom());
+        for (int x = l; x <= r; x++) {
+            for (int y = t; y <= b; y++) {
+                int c = cellOf.get(key(x, y));
+                if (c == -1) {
+                    continue;
+                }
+                Bucket cell = cells.get(c);
+                for (int i = 0; i < cell.size; i++) {
+                    int slot = cell.slots[i];
+                    // a shape in several cells is only reported from the first one in the region
+                    if (Math.max(left[slot], l) == x && Math.max(top[slot], t) == y) {
+                        action.accept(shapes[slot]);
+                    }
+                }
+            }
+        }
+        for (int i = 0; i < big.size; i++) {
+            action.accept(shapes[big.slots[i]]);
+        }
+    }
+}
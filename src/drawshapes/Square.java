@@ -12,11 +12,12 @@ public class Square extends Rectangle
     }
     
     public String toString() {
-        return String.format("SQUARE %d %d %d %s %s", 
+        return String.format("SQUARE %d %d %s %s %s #%d", 
                 getAnchorPoint().x,
                 getAnchorPoint().y,
-                width,
+                Util.sizeToString(getExactWidth()),
                 Util.colorToString(getColor()),
-                selected);
+                selected,
+                getId());
     }
 }
@@ -0,0 +1,225 @@
+package drawshapes;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Point;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.Scanner;
+
+/**
+ * Replays a scripted editing session against a scene and reports latency
+ * percentiles for every kind of command.
+ *
+ * A script has one command per line (blank lines and lines starting with
+ * # are ignored):
+ *
+ * <pre>
+ * SELECT x y                  select the shapes containing a point
+ * SELECT left top right bottom select the shapes intersecting a box
+ * MOVE dx dy                  move the selection
+ * RECOLOR BLUE                recolor the selection
+ * SCALE UP / SCALE DOWN       scale the selection
+ * ADD SQUARE 185 110 100 RED false
+ * DELETE                      remove the selection
+ * DUPLICATE dx dy             paste a copy of the selection
+ * ANIMATE frames              animate the selection, drawing every frame
+ * RENDER                      draw the whole scene once
+ * </pre>
+ *
+ * Without a script, a random session of the given kind is generated.
+ *
+ * Run with:
+ * java drawshapes.StressTest [--scene file | --count N --distribution NAME]
+ * [--script file | --session edit|select|animate|mixed] [--ops N] [--seed N]
+ */
+public class StressTest {
+    private static final int WIDTH = 1400;
+    private static final int HEIGHT = 1200;
+
+    private final Scene scene;
+    private final BufferedImage image = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+    private final Viewport viewport;
+    private final LatencyStats latencies = new LatencyStats();
+
+    /**
+     * @param scene
+     * @param world size of the world, so RENDER shows all of it
+     */
+    public StressTest(Scene scene, int world) {
+        this.scene = scene;
+        this.viewport = new Viewport(0, 0, Math.min((double) WIDTH / world, (double) HEIGHT / world));
+    }
+
+    /**
+     * Run every command of the script, timing each one.
+     *
+     * @param script
+     */
+    public void run(List<String> script) {
+        for (String line : script) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            Scanner sc = new Scanner(line);
+            String command = sc.next();
+            long start = System.nanoTime();
+            execute(command, sc);
+            latencies.record(command, System.nanoTime() - start);
+        }
+    }
+
+    private void execute(String command, Scanner sc) {
+        if (command.equals("SELECT")) {
+            int a = sc.nextInt();
+            int b = sc.nextInt();
+            List<IShape> selected;
+            if (sc.hasNextInt()) {
+                selected = scene.select(new SelectionRectangle(a, sc.nextInt(), b, sc.nextInt()));
+            } else {
+                selected = scene.select(new Point(a, b));
+            }
+            for (IShape s : scene) {
+                s.setSelected(false);
+            }
+            for (IShape s : selected) {
+                s.setSelected(true);
+            }
+        } else if (command.equals("MOVE")) {
+            scene.move(sc.nextInt(), sc.nextInt());
+        } else if (command.equals("RECOLOR")) {
+            scene.recolor(Util.stringToColor(sc.next()));
+        } else if (command.equals("SCALE")) {
+            scene.scale(sc.next().equals("UP"));
+        } else if (command.equals("ADD")) {
+            scene.addShape(Scene.readShape(sc));
+        } else if (command.equals("DELETE")) {
+            scene.removeShapes(scene.selectedShapes());
+        } else if (command.equals("DUPLICATE")) {
+            scene.paste(scene.copySelection(), sc.nextInt(), sc.nextInt());
+        } else if (command.equals("ANIMATE")) {
+            int frames = sc.nextInt();
+            List<IShape> selected = scene.selectedShapes();
+            for (int i = 0; i < frames; i++) {
+                for (IShape s : selected) {
+                    if (i % 2 == 0) {
+                        s.scaleUp();
+                    } else {
+                        s.scaleDown();
+                    }
+                    s.animate();
+                }
+                render();
+            }
+        } else if (command.equals("RENDER")) {
+            render();
+        } else {
+            throw new IllegalArgumentException("Unknown command " + command);
+        }
+    }
+
+    private void render() {
+        Graphics2D g = image.createGraphics();
+        g.setColor(Color.WHITE);
+        g.fillRect(0, 0, WIDTH, HEIGHT);
+        g.transform(viewport.getTransform());
+        scene.draw(g);
+        g.dispose();
+    }
+
+    /**
+     * Print count, p50, p95, p99 and max latency for every command.
+     */
+    public void report() {
+        latencies.report();
+    }
+
+    /**
+     * Generate a random session.
+     *
+     * @param kind  edit (select, move, recolor, scale, add, delete,
+     *              duplicate), select (mostly selecting), animate (select
+     *              and animate) or mixed (all of them, with some renders)
+     * @param ops   number of commands
+     * @param world size of the world
+     * @param rand
+     * @return
+     */
+    public static List<String> session(String kind, int ops, int world, Random rand) {
+        String[] colors = { "RED", "BLUE", "GREEN", "YELLOW", "CYAN", "BLACK" };
+        List<String> script = new ArrayList<String>();
+        for (int i = 0; i < ops; i++) {
+            int x = rand.nextInt(world);
+            int y = rand.nextInt(world);
+            int box = world / 20;
+            int pick = rand.nextInt(100);
+            if (kind.equals("select") || (kind.equals("animate") && pick < 70) || pick < 30) {
+                if (rand.nextBoolean()) {
+                    script.add("SELECT " + x + " " + y);
+                } else {
+                    script.add("SELECT " + x + " " + y + " " + (x + box) + " " + (y + box));
+                }
+            } else if (kind.equals("animate")) {
+                script.add("ANIMATE 4");
+            } else if (pick < 50) {
+                script.add("MOVE " + (rand.nextInt(41) - 20) + " " + (rand.nextInt(41) - 20));
+            } else if (pick < 60) {
+                script.add("RECOLOR " + colors[rand.nextInt(colors.length)]);
+            } else if (pick < 68) {
+                script.add(rand.nextBoolean() ? "SCALE UP" : "SCALE DOWN");
+            } else if (pick < 82) {
+                script.add("ADD SQUARE " + x + " " + y + " " + (10 + rand.nextInt(50)) + " "
+                        + colors[rand.nextInt(colors.length)] + " false");
+            } else if (pick < 88) {
+                script.add("DELETE");
+            } else if (pick < 94 || !kind.equals("mixed")) {
+                script.add("DUPLICATE 25 25");
+            } else if (pick < 97) {
+                script.add("ANIMATE 2");
+            } else {
+                script.add("RENDER");
+            }
+        }
+        return script;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int world = SceneGenerator.intArg(args, "--world", 20000);
+        long seed = SceneGenerator.intArg(args, "--seed", 42);
+        int ops = SceneGenerator.intArg(args, "--ops", 2000);
+        Random rand = new Random(seed);
+
+        Scene scene;
+        String sceneFile = SceneGenerator.stringArg(args, "--scene", null);
+        if (sceneFile != null) {
+            scene = new Scene();
+            scene.loadShapes(new File(sceneFile));
+        } else {
+            int count = SceneGenerator.intArg(args, "--count", 100000);
+            SceneGenerator.Distribution distribution = SceneGenerator.Distribution
+                    .valueOf(SceneGenerator.stringArg(args, "--distribution", "UNIFORM").toUpperCase());
+            scene = new SceneGenerator(seed, world).generate(count, distribution);
+        }
+
+        List<String> script;
+        String scriptFile = SceneGenerator.stringArg(args, "--script", null);
+        if (scriptFile != null) {
+            script = Files.readAllLines(new File(scriptFile).toPath(), StandardCharsets.UTF_8);
+        } else {
+            script = session(SceneGenerator.stringArg(args, "--session", "mixed"), ops, world, rand);
+        }
+
+        System.out.printf("%d shapes, %d commands%n", scene.size(), script.size());
+        StressTest test = new StressTest(scene, world);
+        long start = System.nanoTime();
+        test.run(script);
+        System.out.printf("total %.0f ms, %d shapes at the end%n", (System.nanoTime() - start) / 1e6, scene.size());
+        test.report();
+    }
+}
@@ -1,6 +1,8 @@
 package drawshapes;
 
 import java.awt.Color;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Utilities class containing methods to convert
@@ -11,12 +13,24 @@ import java.awt.Color;
  * make sene to create instances of this class.
  */
 public class Util {
+    // darker colors for selected shapes, so we don't allocate one every frame
+    private static final Map<Color, Color> selectedColors = new ConcurrentHashMap<Color, Color>();
+
     // private constructor
     private Util() {
     }
 
+    /**
+     * Return the color used to draw a selected shape of the given color.
+     * 
+     * @param color
+     * @return
+     */
+    public static Color selectedColor(Color color) {
+        return selectedColors.computeIfAbsent(color, Color::darker);
+    }
+
     public static String colorToString(Color color) {
-        System.out.println("The color is " + color);
         if (color == Color.RED) {
             return "RED";
         } else if (color == Color.BLUE) {
@@ -33,6 +47,25 @@ public class Util {
         throw new UnsupportedOperationException("Unexpected color: " + color);
     }
 
+    /**
+     * The size of a shape for its record: a whole number if it is one,
+     * as in files written before sizes were kept exactly, otherwise the
+     * exact value.
+     */
+    static String sizeToString(double size) {
+        if (size == Math.rint(size) && Math.abs(size) < Integer.MAX_VALUE) {
+            return Integer.toString((int) size);
+        }
+        return Double.toString(size);
+    }
+
+    /**
+     * Read a size written by sizeToString(), the same in every locale.
+     */
+    static double parseSize(String size) {
+        return Double.parseDouble(size);
+    }
+
     public static Color stringToColor(String color) {
         if (color.equals("RED")) {
             return Color.RED;
@@ -49,4 +82,35 @@ public class Util {
         }
         throw new UnsupportedOperationException("Unexpected color: " + color);
     }
+
+    /**
+     * Is the point inside the circle (or on its edge)?
+     */
+    static boolean circleContains(double cx, double cy, double r, int x, int y) {
+        double dx = x - cx;
+        double dy = y - cy;
+        return dx * dx + dy * dy <= r * r;
+    }
+
+    /**
+     * Does the circle overlap the box? Finds the point of the box closest
+     * to the center of the circle and checks if it is inside the circle.
+     */
+    static boolean circleIntersectsBox(double cx, double cy, double r, BoundingBox box) {
+        double nx = Math.max(box.getLeft(), Math.min(cx, box.getRight()));
+        double ny = Math.max(box.getTop(), Math.min(cy, box.getBottom()));
+        double dx = nx - cx;
+        double dy = ny - cy;
+        return dx * dx + dy * dy <= r * r;
+    }
+
+    /**
+     * Do the two circles overlap?
+     */
+    static boolean circlesIntersect(double cx1, double cy1, double r1, double cx2, double cy2, double r2) {
+        double dx = cx2 - cx1;
+        double dy = cy2 - cy1;
+        double r = r1 + r2;
+        return dx * dx + dy * dy <= r * r;
+    }
 }
@@ -0,0 +1,419 @@
+package drawshapes;
+
+import java.awt.Color;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Writes a scene as vector graphics, to SVG or to a simple line based
+ * vector format, streaming into a Writer.
+ *
+ * The shapes are first flattened into an array of primitives, filled
+ * rectangles and ovals in drawing order: groups are taken apart and the
+ * instances of an InstancedShape become one primitive each. Then
+ *
+ * <ul>
+ * <li>primitives completely hidden under opaque ones drawn after them
+ * are dropped, see OcclusionCuller;</li>
+ * <li>a rectangle right after a rectangle of the same color that it
+ * extends into a bigger rectangle (same top and bottom, touching or
+ * overlapping side by side, or the same the other way) is merged into
+ * it, which draws exactly the same pixels;</li>
+ * <li>the rest is written out as it goes, setting the color only when it
+ * changes.</li>
+ * </ul>
+ *
+ * So the size of the output follows what can be seen, not how many
+ * shapes the scene has. Shapes are written in their own colors, not
+ * darkened for the selection.
+ *
+ * The vector format has a header line, then one command per line:
+ *
+ * <pre>
+ * VECTOR 1 left top right bottom
+ * color RRGGBB
+ * rect x y width height
+ * oval x y width height
+ * end
+ * </pre>
+ *
+ * Run with:
+ * java drawshapes.VectorExporter [--svg|--vector] [--no-cull] [--no-merge] scene out
+ */
+public class VectorExporter {
+    public enum Format {
+        SVG, VECTOR
+    }
+
+    static final int RECT = 0;
+    static final int OVAL = 1;
+    // kind, x, y, width, height, rgb
+    private static final int FIELDS = 6;
+
+    private final Format format;
+    private boolean culling = true;
+    private boolean merging = true;
+    private BoundingBox region;
+    private int[] primitives = new int[FIELDS * 1024];
+    private int count;
+    // statistics of the last export
+    private int culled;
+    private int merged;
+    private int written;
+
+    public VectorExporter(Format format) {
+        this.format = format;
+    }
+
+    /**
+     * Drop primitives hidden under others, on by default.
+     */
+    public void setCulling(boolean culling) {
+        this.culling = culling;
+    }
+
+    /**
+     * Merge rectangles of the same color, on by default.
+     */
+    public void setMerging(boolean merging) {
+        this.merging = merging;
+    }
+
+    /**
+     * Only export the shapes intersecting the region, or everything if it
+     * is null. Paged scenes only load the pages in the region.
+     */
+    void setRegion(BoundingBox region) {
+        this.region = region;
+    }
+
+    /**
+     * @return how many primitives the last export started with
+     */
+    public int getPrimitives() {
+        return count;
+    }
+
+    public int getCulled() {
+        return culled;
+    }
+
+    public int getMerged() {
+        return merged;
+    }
+
+    /**
+     * @return how many rectangles and ovals the last export wrote
+     */
+    public int getWritten() {
+        return written;
+    }
+
+    public void export(Scene scene, File file) throws IOException {
+        try (Writer out = new BufferedWriter(
+                new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8), 1 << 16)) {
+            export(scene, out);
+        }
+    }
+
+    /**
+     * Write the scene. The writer should be buffered; it is not closed.
+     *
+     * @param scene
+     * @param out
+     * @throws IOException
+     */
+    public void export(Scene scene, Writer out) throws IOException {
+        count = 0;
+        culled = 0;
+        merged = 0;
+        written = 0;
+        scene.forEachVisible(region, s -> flatten(s, 0, 0));
+        int left = Integer.MAX_VALUE;
+        int top = Integer.MAX_VALUE;
+        int right = Integer.MIN_VALUE;
+        int bottom = Integer.MIN_VALUE;
+        long extent = 0;
+        for (int i = 0; i < count * FIELDS; i += FIELDS) {
+            left = Math.min(left, primitives[i + 1]);
+            top = Math.min(top, primitives[i + 2]);
+            right = Math.max(right, primitives[i + 1] + primitives[i + 3]);
+            bottom = Math.max(bottom, primitives[i + 2] + primitives[i + 4]);
+            extent += Math.max(primitives[i + 3], primitives[i + 4]);
+        }
+        if (count == 0) {
+            left = top = right = bottom = 0;
+        }
+        boolean[] hidden = culling && count > 0 ? cull(left, top, right, bottom, (int) (extent / count))
+                : new boolean[count];
+        header(out, left, top, right, bottom);
+        int rgb = -1;
+        // the rectangle waiting for more to merge into it
+        int pending = -1;
+        int[] p = new int[FIELDS];
+        for (int i = 0; i < count; i++) {
+            if (hidden[i]) {
+                continue;
+            }
+            int at = i * FIELDS;
+            if (pending != -1) {
+                if (merging && primitives[at] == RECT && mergeInto(p, at)) {
+                    merged++;
+                    continue;
+                }
+                rgb = write(out, p, rgb);
+                pending = -1;
+            }
+            System.arraycopy(primitives, at, p, 0, FIELDS);
+            if (p[0] == RECT) {
+                pending = i;
+            } else {
+                rgb = write(out, p, rgb);
+            }
+        }
+        if (pending != -1) {
+            rgb = write(out, p, rgb);
+        }
+        footer(out, rgb);
+        out.flush();
+    }
+
+    /**
+     * Add the primitives of a shape, moved by dx, dy.
+     */
+    private void flatten(IShape s, int dx, int dy) {
+        if (s instanceof Group) {
+            Group g = (Group) s;
+            for (IShape child : g.getChildren()) {
+                flatten(child, dx + g.getOffsetX(), dy + g.getOffsetY());
+            }
+        } else if (s instanceof InstancedShape) {
+            InstancedShape is = (InstancedShape) s;
+            int kind = is.isOval() ? OVAL : RECT;
+            int w = is.getWidth();
+            int h = is.getHeight();
+            for (int i = 0; i < is.getCount(); i++) {
+                add(kind, is.x(i) - w / 2 + dx, is.y(i) - h / 2 + dy, w, h, is.getInstanceColor(i));
+            }
+        } else if (s instanceof Rectangle) {
+            Rectangle r = (Rectangle) s;
+            add(RECT, r.getAnchorPoint().x - r.width / 2 + dx, r.getAnchorPoint().y - r.height / 2 + dy, r.width,
+                    r.height, r.getColor());
+        } else if (s instanceof Circle) {
+            int d = s.getLength();
+            add(OVAL, s.getAnchorPoint().x - d / 2 + dx, s.getAnchorPoint().y - d / 2 + dy, d, d, s.getColor());
+        } else {
+            // anything else as a box, like Scene.drawShape() draws tiny shapes
+            BoundingBox b = s.getBoundingBox();
+            add(RECT, b.getLeft() + dx, b.getTop() + dy, b.getRight() - b.getLeft(), b.getBottom() - b.getTop(),
+                    s.getColor());
+        }
+    }
+
+    private void add(int kind, int x, int y, int w, int h, Color color) {
+        if (w <= 0 || h <= 0) {
+            // fillRect() and fillOval() draw nothing
+            return;
+        }
+        if ((count + 1) * FIELDS > primitives.length) {
+            primitives = Arrays.copyOf(primitives, primitives.length * 2);
+        }
+        int at = count * FIELDS;
+        primitives[at] = kind;
+        primitives[at + 1] = x;
+        primitives[at + 2] = y;
+        primitives[at + 3] = w;
+        primitives[at + 4] = h;
+        primitives[at + 5] = color.getRGB() & 0xFFFFFF;
+        count++;
+    }
+
+    /**
+     * Mark what is hidden, from the top down.
+     */
+    private boolean[] cull(int left, int top, int right, int bottom, int averageSize) {
+        boolean[] hidden = new boolean[count];
+        OcclusionCuller culler = new OcclusionCuller(left, top, right, bottom, averageSize);
+        for (int i = count - 1; i >= 0; i--) {
+            int at = i * FIELDS;
+            int x = primitives[at + 1];
+            int y = primitives[at + 2];
+            int w = primitives[at + 3];
+            int h = primitives[at + 4];
+            if (culler.isHidden(x, y, x + w - 1, y + h - 1)) {
+                hidden[i] = true;
+                culled++;
+            } else if (primitives[at] == RECT) {
+                culler.addOccluder(x, y, x + w, y + h);
+            } else {
+                culler.addOval(x, y, w, h);
+            }
+        }
+        return hidden;
+    }
+
+    /**
+     * Grow the pending rectangle p by the rectangle at, if they are the
+     * same color and their union is a rectangle.
+     */
+    private boolean mergeInto(int[] p, int at) {
+        int x = primitives[at + 1];
+        int y = primitives[at + 2];
+        int w = primitives[at + 3];
+        int h = primitives[at + 4];
+        if (primitives[at + 5] != p[5]) {
+            return false;
+        }
+        if (y == p[2] && h == p[4] && x <= p[1] + p[3] && p[1] <= x + w) {
+            int l = Math.min(x, p[1]);
+            p[3] = Math.max(x + w, p[1] + p[3]) - l;
+            p[1] = l;
+            return true;
+        }
+        if (x == p[1] && w == p[3] && y <= p[2] + p[4] && p[2] <= y + h) {
+            int t = Math.min(y, p[2]);
+            p[4] = Math.max(y + h, p[2] + p[4]) - t;
+            p[2] = t;
+            return true;
+        }
+        return false;
+    }
+
+    private void header(Writer out, int left, int top, int right, int bottom) throws IOException {
+        if (format == Format.SVG) {
+            out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+            out.write("<svg xmlns=\"http://www.w3.org/2000/svg\" viewBox=\"");
+            out.write(left + " " + top + " " + (right - left) + " " + (bottom - top));
+            out.write("\" width=\"" + (right - left) + "\" height=\"" + (bottom - top) + "\">\n");
+        } else {
+            out.write("VECTOR 1 " + left + " " + top + " " + right + " " + bottom + "\n");
+        }
+    }
+
+    private void footer(Writer out, int rgb) throws IOException {
+        if (format == Format.SVG) {
+            if (rgb != -1) {
+                out.write("</g>\n");
+            }
+            out.write("</svg>\n");
+        } else {
+            out.write("end\n");
+        }
+    }
+
+    /**
+     * Write one primitive, first changing the color if it isn't rgb.
+     *
+     * @return the color now in effect
+     */
+    private int write(Writer out, int[] p, int rgb) throws IOException {
+        if (p[5] != rgb) {
+            if (format == Format.SVG) {
+                // one group per run of the same color, so the fill is only written once
+                if (rgb != -1) {
+                    out.write("</g>\n");
+                }
+                out.write("<g fill=\"#");
+                hex(out, p[5]);
+                out.write("\">\n");
+            } else {
+                out.write("color ");
+                hex(out, p[5]);
+                out.write('\n');
+            }
+        }
+        if (format == Format.SVG) {
+            if (p[0] == RECT) {
+                out.write("<rect x=\"");
+                out.write(Integer.toString(p[1]));
+                out.write("\" y=\"");
+                out.write(Integer.toString(p[2]));
+                out.write("\" width=\"");
+                out.write(Integer.toString(p[3]));
+                out.write("\" height=\"");
+                out.write(Integer.toString(p[4]));
+                out.write("\"/>\n");
+            } else {
+                // fillOval() fills the ellipse inside its box
+                out.write("<ellipse cx=\"");
+                out.write(half(2 * p[1] + p[3]));
+                out.write("\" cy=\"");
+                out.write(half(2 * p[2] + p[4]));
+                out.write("\" rx=\"");
+                out.write(half(p[3]));
+                out.write("\" ry=\"");
+                out.write(half(p[4]));
+                out.write("\"/>\n");
+            }
+        } else {
+            out.write(p[0] == RECT ? "rect " : "oval ");
+            out.write(Integer.toString(p[1]));
+            out.write(' ');
+            out.write(Integer.toString(p[2]));
+            out.write(' ');
+            out.write(Integer.toString(p[3]));
+            out.write(' ');
+            out.write(Integer.toString(p[4]));
+            out.write('\n');
+        }
+        written++;
+        return p[5];
+    }
+
+    /**
+     * n / 2, without a decimal point when it is whole.
+     */
+    private static String half(int n) {
+        return (n & 1) == 0 ? Integer.toString(n / 2) : (n < 0 ? "-" : "") + Math.abs(n / 2) + ".5";
+    }
+
+    private static void hex(Writer out, int rgb) throws IOException {
+        for (int shift = 20; shift >= 0; shift -= 4) {
+            out.write(Character.forDigit((rgb >> shift) & 0xF, 16));
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Format format = Format.SVG;
+        boolean cull = true;
+        boolean merge = true;
+        File in = null;
+        File out = null;
+        for (String a : args) {
+            if (a.equals("--svg")) {
+                format = Format.SVG;
+            } else if (a.equals("--vector")) {
+                format = Format.VECTOR;
+            } else if (a.equals("--no-cull")) {
+                cull = false;
+            } else if (a.equals("--no-merge")) {
+                merge = false;
+            } else if (in == null) {
+                in = new File(a);
+            } else {
+                out = new File(a);
+            }
+        }
+        if (out == null) {
+            System.err.println(
+                    "usage: java drawshapes.VectorExporter [--svg|--vector] [--no-cull] [--no-merge] scene out");
+            System.exit(1);
+        }
+        Scene scene = new Scene();
+        scene.loadShapes(in);
+        VectorExporter exporter = new VectorExporter(format);
+        exporter.setCulling(cull);
+        exporter.setMerging(merge);
+        long start = System.nanoTime();
+        exporter.export(scene, out);
+        System.err.printf("%d primitives, %d hidden, %d merged, %d written, %d bytes in %.0f ms%n",
+                exporter.getPrimitives(), exporter.getCulled(), exporter.getMerged(), exporter.getWritten(),
+                out.length(), (System.nanoTime() - start) / 1e6);
+    }
+}
@@ -0,0 +1,115 @@
+package drawshapes;
+
+import java.awt.Point;
+import java.awt.geom.AffineTransform;
+
+/**
+ * Maps between world coordinates (where the shapes live) and screen
+ * coordinates (pixels in the DrawShapesPanel).
+ *
+ * screen = (world - origin) * scale
+ *
+ * The origin is the world point shown in the top-left corner of the panel.
+ */
+public class Viewport {
+    static final double MIN_SCALE = 1.0 / 10000;
+    static final double MAX_SCALE = 64;
+
+    private double originX;
+    private double originY;
+    private double scale = 1.0;
+
+    public Viewport() {
+    }
+
+    public Viewport(double originX, double originY, double scale) {
+        this.originX = originX;
+        this.originY = originY;
+        this.scale = scale;
+    }
+
+    public double getOriginX() {
+        return originX;
+    }
+
+    public double getOriginY() {
+        return originY;
+    }
+
+    public double getScale() {
+        return scale;
+    }
+
+    /**
+     * Convert a point on the screen into world coordinates.
+     *
+     * @param screen
+     * @return
+     */
+    public Point toWorld(Point screen) {
+        return new Point((int) Math.floor(originX + screen.x / scale),
+                (int) Math.floor(originY + screen.y / scale));
+    }
+
+    /**
+     * Convert a point in world coordinates to the screen.
+     *
+     * @param world
+     * @return
+     */
+    public Point toScreen(Point world) {
+        return new Point((int) Math.floor((world.x - originX) * scale),
+                (int) Math.floor((world.y - originY) * scale));
+    }
+
+    /**
+     * Move the view by the given number of pixels.
+     *
+     * @param dx
+     * @param dy
+     */
+    public void pan(int dx, int dy) {
+        originX -= dx / scale;
+        originY -= dy / scale;
+    }
+
+    /**
+     * Zoom by the given factor, keeping the world point under the given
+     * screen point where it is.
+     *
+     * @param factor greater than 1 zooms in
+     * @param anchor screen point that stays fixed
+     */
+    public void zoom(double factor, Point anchor) {
+        double wx = originX + anchor.x / scale;
+        double wy = originY + anchor.y / scale;
+        scale = Math.max(MIN_SCALE, Math.min(MAX_SCALE, scale * factor));
+        originX = wx - anchor.x / scale;
+        originY = wy - anchor.y / scale;
+    }
+
+    /**
+     * Return the transform from world to screen coordinates.
+     */
+    public AffineTransform getTransform() {
+        AffineTransform t = AffineTransform.getScaleInstance(scale, scale);
+        t.translate(-originX, -originY);
+        return t;
+    }
+
+    /**
+     * Return the region of the world visible in a panel of the given size.
+     *
+     * @param width
+     * @param height
+     * @return
+     */
+    public BoundingBox getWorldBounds(int width, int height) {
+        return new BoundingBox((int) Math.floor(originX), (int) Math.ceil(originX + width / scale),
+                (int) Math.floor(originY), (int) Math.ceil(originY + height / scale));
+    }
+
+    public Viewport copy() {
+        return new Viewport(originX, originY, scale);
+    }
+}